@@ -0,0 +1,71 @@
+import map.ConnectionsBenchmark;
+import nio.AESEncoder;
+import nio.Metrics;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Blocking clients connected to the event loops of a server, or to a {@link BlockingMapServer} in front of it,
+ * all closed together.
+ * <p>
+ * Created by Edsuns@qq.com on 2022/5/8.
+ */
+public class ConnectionsTarget implements ConnectionsBenchmark.Target {
+
+    private final NIOMapServer server;
+    private final BlockingMapServer blockingServer;
+    private final BlockingMapClient[] clients;
+
+    public ConnectionsTarget(int port, int engine, int connections) throws IOException, NoSuchAlgorithmException {
+        AESEncoder encoder = AESEncoder.generateEncoder();
+        server = new NIOMapServer(new InetSocketAddress(port), encoder);
+        server.setWorkers(Runtime.getRuntime().availableProcessors(), NIOMapServer.BALANCE_LEAST_CONNECTIONS);
+        server.connect();
+        if (engine == 1) {
+            blockingServer = new BlockingMapServer(new InetSocketAddress(port + 1), server);
+            blockingServer.connect();
+        } else {
+            blockingServer = null;
+        }
+        InetSocketAddress address = new InetSocketAddress("localhost", blockingServer != null ? port + 1 : port);
+        // thousands of histograms otherwise
+        Metrics metrics = new Metrics();
+        clients = new BlockingMapClient[connections];
+        try {
+            for (int i = 0; i < connections; i++) {
+                clients[i] = new BlockingMapClient(address, encoder, metrics);
+                clients[i].connect();
+            }
+            clients[0].put("k-1", "v-1");
+        } catch (IOException | RuntimeException e) {
+            close();
+            throw e;
+        }
+    }
+
+    @Override
+    public String get(int connection, String key) throws IOException {
+        return clients[connection].get(key);
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            for (BlockingMapClient client : clients) {
+                if (client != null) {
+                    client.close();
+                }
+            }
+        } finally {
+            try {
+                if (blockingServer != null) {
+                    blockingServer.close();
+                }
+            } finally {
+                server.close();
+            }
+        }
+    }
+}
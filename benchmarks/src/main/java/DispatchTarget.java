@@ -0,0 +1,61 @@
+import map.DispatchBenchmark;
+import nio.AESEncoder;
+import nio.Loopback;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedList;
+import java.util.Queue;
+
+/**
+ * A server never bound, whose replies are dropped instead of written.
+ * <p>
+ * Created by Edsuns@qq.com on 2022/5/5.
+ */
+public class DispatchTarget extends NIOMapServer implements DispatchBenchmark.Target {
+
+    private final Loopback loopback;
+    private final ChannelContext<Queue<byte[]>> text, binary;
+
+    public DispatchTarget(int entries) throws IOException, NoSuchAlgorithmException {
+        super(new InetSocketAddress(0), AESEncoder.generateEncoder());
+        loopback = new Loopback();
+        text = loopback.context(new LinkedList<>(), PROTOCOL_TEXT, encoder);
+        binary = loopback.context(new LinkedList<>(), PROTOCOL_BINARY, encoder);
+        for (int i = 0; i < entries; i++) {
+            storage.put("k-" + i, "v-" + i);
+        }
+    }
+
+    @Override
+    public Runnable text(String message) {
+        return () -> onMessage(text, message);
+    }
+
+    @Override
+    public Runnable binary(byte opcode, String... fields) {
+        byte[] frame = MapCodec.encode(opcode, 1, fields);
+        return () -> onMessage(binary, ByteBuffer.wrap(frame));
+    }
+
+    @Override
+    protected void requestWrite(ChannelContext<Queue<byte[]>> context) {
+        context.attachment.clear();
+    }
+
+    @Override
+    protected void write(ChannelContext<Queue<byte[]>> context, byte[] head, int headLength, byte[] body) {
+        // the replies written by the dispatch itself
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            super.close();
+        } finally {
+            loopback.close();
+        }
+    }
+}
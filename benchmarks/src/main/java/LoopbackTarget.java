@@ -0,0 +1,38 @@
+import map.LoopbackBenchmark;
+import nio.AESEncoder;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * A client connected to a server of its own, closed together.
+ * <p>
+ * Created by Edsuns@qq.com on 2022/5/5.
+ */
+public class LoopbackTarget extends NIOMapClient implements LoopbackBenchmark.Target {
+
+    private final NIOMapServer server;
+
+    public LoopbackTarget(int port, int cipher, int protocol) throws IOException, NoSuchAlgorithmException {
+        this(port, AESEncoder.generateEncoder(), cipher, protocol);
+    }
+
+    private LoopbackTarget(int port, AESEncoder encoder, int cipher, int protocol) throws IOException {
+        super(new InetSocketAddress("localhost", port), encoder, protocol);
+        server = new NIOMapServer(new InetSocketAddress(port), encoder);
+        server.setPlaintextAllowed(true);
+        server.connect();
+        setCipher(cipher);
+        connect();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            super.close();
+        } finally {
+            server.close();
+        }
+    }
+}
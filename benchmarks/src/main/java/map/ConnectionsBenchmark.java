@@ -0,0 +1,69 @@
+package map;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Many connections held open to the event loops of a server or to a thread per connection,
+ * with the benchmark threads sending commands over connections picked at random.
+ * <p>
+ * 10,000 connections take two file descriptors each on loopback, so {@code ulimit -n} must allow for them.
+ * The thread per connection is virtual on JDK 21 and later, a platform one before.
+ * <p>
+ * Created by Edsuns@qq.com on 2022/5/8.
+ */
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(64)
+@State(Scope.Benchmark)
+public class ConnectionsBenchmark {
+
+    static final int PORT = 3392;
+
+    /**
+     * Implemented by {@code ConnectionsTarget}, {@code BlockingMapClient}s connected to a server of its own.
+     */
+    public interface Target extends Closeable {
+
+        String get(int connection, String key) throws IOException;
+    }
+
+    /**
+     * {@code 0} for the event loops of {@code NIOMapServer}, {@code 1} for {@code BlockingMapServer}
+     */
+    @Param({"0", "1"})
+    int engine;
+    @Param({"100", "10000"})
+    int connections;
+
+    Target target;
+
+    @Setup
+    public void setup() {
+        target = Targets.create(Target.class, "ConnectionsTarget", PORT, engine, connections);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        target.close();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public String latency() throws IOException {
+        return target.get(ThreadLocalRandom.current().nextInt(connections), "k-1");
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public String throughput() throws IOException {
+        return target.get(ThreadLocalRandom.current().nextInt(connections), "k-1");
+    }
+}
@@ -0,0 +1,90 @@
+package map;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@code NIOMapServer.onMessage} of the decrypted messages, from the parsing to the reply queued,
+ * without the transport.
+ * <p>
+ * Created by Edsuns@qq.com on 2022/5/5.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class DispatchBenchmark {
+
+    static final int BATCH = 100;
+
+    /**
+     * Implemented by {@code DispatchTarget}, over a server preloaded with {@code k-0} to {@code k-[entries - 1]}.
+     */
+    public interface Target extends Closeable {
+
+        /**
+         * @return the dispatch of a text message
+         */
+        Runnable text(String message);
+
+        /**
+         * @return the dispatch of a binary frame
+         */
+        Runnable binary(byte opcode, String... fields);
+    }
+
+    static final byte PUT = 1, GET = 2, MGET = 6;
+
+    Target target;
+    Runnable textGet, textPut, binaryGet, binaryPut, binaryMget;
+
+    @Setup
+    public void setup() {
+        target = Targets.create(Target.class, "DispatchTarget", BATCH);
+        textGet = target.text("get k-1");
+        textPut = target.text("put k-1 v-1");
+        binaryGet = target.binary(GET, "k-1");
+        binaryPut = target.binary(PUT, "k-1", "v-1");
+        String[] keys = new String[BATCH];
+        for (int i = 0; i < BATCH; i++) {
+            keys[i] = "k-" + i;
+        }
+        binaryMget = target.binary(MGET, keys);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        target.close();
+    }
+
+    @Benchmark
+    public void textGet() {
+        textGet.run();
+    }
+
+    @Benchmark
+    public void textPut() {
+        textPut.run();
+    }
+
+    @Benchmark
+    public void binaryGet() {
+        binaryGet.run();
+    }
+
+    @Benchmark
+    public void binaryPut() {
+        binaryPut.run();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void binaryMget() {
+        binaryMget.run();
+    }
+}
@@ -0,0 +1,85 @@
+package map;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A client and a server over loopback: the latency percentiles of a command at a time,
+ * and the throughput of pipelined commands.
+ * <p>
+ * Created by Edsuns@qq.com on 2022/5/5.
+ */
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class LoopbackBenchmark {
+
+    static final int PORT = 3390;
+    static final int PIPELINE = 64;
+
+    /**
+     * Implemented by {@code LoopbackTarget}, a connected {@code NIOMapClient} of its own server.
+     */
+    public interface Target extends Closeable {
+
+        CompletableFuture<String> get(String key);
+
+        CompletableFuture<String> put(String key, String val);
+    }
+
+    /**
+     * {@code AESEncoder.CIPHER_GCM} or {@code AESEncoder.CIPHER_NONE}
+     */
+    @Param({"1", "3"})
+    int cipher;
+    /**
+     * {@code NIOComponent.PROTOCOL_TEXT} or {@code NIOComponent.PROTOCOL_BINARY}
+     */
+    @Param({"0", "1"})
+    int protocol;
+
+    Target target;
+
+    @Setup
+    public void setup() throws ExecutionException, InterruptedException {
+        target = Targets.create(Target.class, "LoopbackTarget", PORT, cipher, protocol);
+        target.put("k-1", "v-1").get();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        target.close();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public String get() throws ExecutionException, InterruptedException {
+        return target.get("k-1").get();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public String put() throws ExecutionException, InterruptedException {
+        return target.put("k-1", "v-1").get();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @OperationsPerInvocation(PIPELINE)
+    public Object pipelinedGet() throws ExecutionException, InterruptedException {
+        CompletableFuture<?>[] replies = new CompletableFuture[PIPELINE];
+        for (int i = 0; i < PIPELINE; i++) {
+            replies[i] = target.get("k-1");
+        }
+        return CompletableFuture.allOf(replies).get();
+    }
+}
@@ -0,0 +1,26 @@
+package map;
+
+/**
+ * Creates the targets of the benchmarks, which are in the unnamed package with the classes they drive,
+ * out of reach of the benchmarks otherwise.
+ * <p>
+ * Created by Edsuns@qq.com on 2022/5/5.
+ */
+final class Targets {
+
+    private Targets() {
+    }
+
+    static <T> T create(Class<T> type, String name, Object... args) {
+        try {
+            for (java.lang.reflect.Constructor<?> constructor : Class.forName(name).getConstructors()) {
+                if (constructor.getParameterCount() == args.length) {
+                    return type.cast(constructor.newInstance(args));
+                }
+            }
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(name, e);
+        }
+        throw new IllegalStateException(name);
+    }
+}
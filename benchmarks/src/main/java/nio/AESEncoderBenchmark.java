@@ -0,0 +1,73 @@
+package nio;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.security.NoSuchAlgorithmException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link AESEncoder} by cipher. A message can't be decrypted twice by {@link AESEncoder#CIPHER_GCM}
+ * or {@link AESEncoder#CIPHER_CTR}, so decryption is measured with the encryption of the other end.
+ * <p>
+ * Created by Edsuns@qq.com on 2022/5/5.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class AESEncoderBenchmark {
+
+    /**
+     * {@link AESEncoder#CIPHER_CBC}, {@link AESEncoder#CIPHER_GCM}, {@link AESEncoder#CIPHER_CTR}
+     * or {@link AESEncoder#CIPHER_NONE}
+     */
+    @Param({"0", "1", "2", "3"})
+    int cipher;
+    @Param({"64", "1024", "16384"})
+    int size;
+
+    AESEncoder server;
+    AESEncoder client;
+    byte[] plain;
+    byte[] output;
+
+    @Setup
+    public void setup() throws NoSuchAlgorithmException {
+        AESEncoder encoder = AESEncoder.generateEncoder();
+        server = new AESEncoder(encoder.secretKey, encoder.iv, cipher, true);
+        client = new AESEncoder(encoder.secretKey, encoder.iv, cipher, false);
+        plain = new byte[size];
+        new Random(size).nextBytes(plain);
+        output = new byte[server.encryptedSize(size)];
+    }
+
+    @Benchmark
+    public byte[] encrypt() throws Exception {
+        return server.encrypt(plain);
+    }
+
+    /**
+     * Into a buffer, as the binary frames are.
+     */
+    @Benchmark
+    public int encryptInto() throws Exception {
+        return server.encrypt(plain, output, 0);
+    }
+
+    @Benchmark
+    public byte[] encryptDecrypt() throws Exception {
+        return client.decrypt(server.encrypt(plain));
+    }
+
+    /**
+     * In place, as the binary frames are.
+     */
+    @Benchmark
+    public int encryptDecryptInPlace() throws Exception {
+        int length = server.encrypt(plain, output, 0);
+        return client.decrypt(output, length, output, 0);
+    }
+}
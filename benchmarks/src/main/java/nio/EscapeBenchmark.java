@@ -0,0 +1,56 @@
+package nio;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link InputOutput#escape(byte[])} and {@link InputOutput#unescape(byte[])} of the
+ * {@link NIOComponent#PROTOCOL_TEXT} frames, whose encrypted bytes hold a delimiter or a backslash
+ * about once every 128 bytes.
+ * <p>
+ * Created by Edsuns@qq.com on 2022/5/5.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class EscapeBenchmark {
+
+    @Param({"64", "1024", "16384"})
+    int size;
+    /**
+     * whether the bytes are random, or have nothing to escape
+     */
+    @Param({"true", "false"})
+    boolean random;
+
+    byte[] plain;
+    byte[] escaped;
+
+    @Setup
+    public void setup() {
+        plain = new byte[size];
+        if (random) {
+            new Random(size).nextBytes(plain);
+        } else {
+            for (int i = 0; i < size; i++) {
+                plain[i] = (byte) ('a' + i % 26);
+            }
+        }
+        escaped = InputOutput.escape(plain);
+    }
+
+    @Benchmark
+    public byte[] escape() {
+        return InputOutput.escape(plain);
+    }
+
+    @Benchmark
+    public byte[] unescape() {
+        return InputOutput.unescape(escaped);
+    }
+}
@@ -0,0 +1,61 @@
+package nio;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * A pair of connected loopback sockets: {@link #peer} writes in blocking mode, and the reader
+ * is registered to a selector of its own, for the contexts of the benchmarks outside of an event loop.
+ * <p>
+ * Created by Edsuns@qq.com on 2022/5/5.
+ */
+public final class Loopback implements Closeable {
+
+    public final SocketChannel peer;
+    final SocketChannel reader;
+    private final Selector selector;
+    private final SelectionKey key;
+
+    public Loopback() throws IOException {
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            peer = SocketChannel.open(server.getLocalAddress());
+            reader = server.accept();
+        }
+        reader.configureBlocking(false);
+        selector = Selector.open();
+        key = reader.register(selector, SelectionKey.OP_READ);
+    }
+
+    /**
+     * A context of the reader, which isn't served by any event loop, so that
+     * {@link NIOComponent#requestWrite(NIOComponent.ChannelContext)} must not be called with it.
+     */
+    public <T> NIOComponent.ChannelContext<T> context(T attachment, int protocol, AESEncoder encoder) {
+        NIOComponent.ChannelContext<T> context = new NIOComponent.ChannelContext<>(key, attachment, null, new Metrics());
+        context.protocol = protocol;
+        context.encoder = encoder;
+        context.state = NIOComponent.CONNECTED;
+        return context;
+    }
+
+    public void write(ByteBuffer bf) throws IOException {
+        while (bf.hasRemaining()) {
+            peer.write(bf);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        selector.close();
+        reader.close();
+        peer.close();
+    }
+}
@@ -0,0 +1,87 @@
+package nio;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link MessageInput#read()} then {@link MessageInput#strip()} of a batch of frames
+ * written to a loopback socket, by protocol and cipher.
+ * <p>
+ * Only {@link AESEncoder#CIPHER_CBC} and {@link AESEncoder#CIPHER_NONE} are measured,
+ * since they decrypt the same frames again and again.
+ * <p>
+ * Created by Edsuns@qq.com on 2022/5/5.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class MessageInputBenchmark {
+
+    static final int FRAMES = 16;
+
+    @Param({"0", "1"})
+    int protocol;
+    @Param({"0", "3"})
+    int cipher;
+    @Param({"64", "1024"})
+    int size;
+
+    Loopback loopback;
+    MessageInput input;
+    ByteBuffer frames;
+
+    @Setup
+    public void setup() throws IOException, NoSuchAlgorithmException {
+        AESEncoder generated = AESEncoder.generateEncoder();
+        AESEncoder encoder = new AESEncoder(generated.secretKey, generated.iv, cipher, false);
+        byte[] plain = new byte[size];
+        new Random(size).nextBytes(plain);
+        byte[] encrypted;
+        try {
+            encrypted = encoder.encrypt(plain);
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+        byte[] frame = protocol == NIOComponent.PROTOCOL_BINARY
+                ? encrypted : InputOutput.escape(encrypted);
+        frames = ByteBuffer.allocate(FRAMES * (frame.length + InputOutput.LENGTH_HEADER));
+        for (int i = 0; i < FRAMES; i++) {
+            if (protocol == NIOComponent.PROTOCOL_BINARY) {
+                frames.putInt(frame.length).put(frame);
+            } else {
+                frames.put(frame).put(InputOutput.MESSAGE_DELIMITER);
+            }
+        }
+        frames.flip();
+        loopback = new Loopback();
+        input = loopback.context(null, protocol, encoder).messageInput;
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        input.release();
+        loopback.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public int readStrip() throws IOException {
+        loopback.write(frames.duplicate());
+        int n = 0;
+        while (n < FRAMES) {
+            input.read();
+            List<byte[]> messages = input.strip();
+            n += messages.size();
+        }
+        return n;
+    }
+}
@@ -0,0 +1,83 @@
+package store;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Gets and puts of the engines by 4 threads, over keys drawn uniformly from a preloaded set.
+ * The bounded engines keep half of the keys, so that their puts evict.
+ * Supersedes {@code MapBenchmark}.
+ * <p>
+ * Created by Edsuns@qq.com on 2022/5/5.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+@State(Scope.Benchmark)
+public class StorageBenchmark {
+
+    static final int KEYS = 100_000;
+
+    @Param({"sharded", "map", "offHeap", "lru", "tinyLfu"})
+    String engine;
+
+    StorageEngine storage;
+    String[] keys;
+
+    @Setup
+    public void setup() {
+        switch (engine) {
+            case "sharded":
+                storage = new ShardedStorageEngine();
+                break;
+            case "map":
+                storage = new MapStorageEngine(new ConcurrentHashMap<>());
+                break;
+            case "offHeap":
+                storage = new OffHeapStorageEngine();
+                break;
+            case "lru":
+                storage = new BoundedStorageEngine(new ShardedStorageEngine(), EvictionPolicy.lru(), KEYS / 2, 0);
+                break;
+            case "tinyLfu":
+                storage = new BoundedStorageEngine(new ShardedStorageEngine(), EvictionPolicy.tinyLfu(), KEYS / 2, 0);
+                break;
+            default:
+                throw new IllegalArgumentException("engine " + engine);
+        }
+        keys = new String[KEYS];
+        for (int i = 0; i < KEYS; i++) {
+            keys[i] = "k-" + i;
+            storage.put(keys[i], "v-" + i);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        if (storage instanceof Closeable) {
+            ((Closeable) storage).close();
+        }
+    }
+
+    private String key() {
+        return keys[ThreadLocalRandom.current().nextInt(KEYS)];
+    }
+
+    @Benchmark
+    public String get() {
+        return storage.get(key());
+    }
+
+    @Benchmark
+    public String put() {
+        return storage.put(key(), "v");
+    }
+}
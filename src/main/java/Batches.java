@@ -0,0 +1,50 @@
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+/**
+ * Splits the batch commands of the clients spreading their keys over several connections.
+ * <p>
+ * Created by Edsuns@qq.com on 2022/5/3.
+ */
+final class Batches {
+
+    private Batches() {
+    }
+
+    /**
+     * Sends a batch in parts, one per target the keys are routed to, and merges their replies in the order of the keys.
+     *
+     * @param route the target of a key, which {@code send} sends the part of the target to
+     */
+    static <E, T> CompletableFuture<Map<String, String>> split(
+            Collection<E> items, Function<E, String> keyOf, Function<String, T> route,
+            BiFunction<T, List<E>, CompletableFuture<Map<String, String>>> send) {
+        Map<T, List<E>> parts = new LinkedHashMap<>();
+        for (E item : items) {
+            parts.computeIfAbsent(route.apply(keyOf.apply(item)), t -> new ArrayList<>()).add(item);
+        }
+        List<CompletableFuture<Map<String, String>>> replies = new ArrayList<>(parts.size());
+        for (Map.Entry<T, List<E>> part : parts.entrySet()) {
+            replies.add(send.apply(part.getKey(), part.getValue()));
+        }
+        return CompletableFuture.allOf(replies.toArray(new CompletableFuture[0])).thenApply(v -> {
+            Map<String, String> merged = new HashMap<>(items.size() * 2);
+            for (CompletableFuture<Map<String, String>> reply : replies) {
+                merged.putAll(reply.join());
+            }
+            Map<String, String> result = new LinkedHashMap<>(items.size() * 2);
+            for (E item : items) {
+                String key = keyOf.apply(item);
+                result.put(key, merged.get(key));
+            }
+            return result;
+        });
+    }
+}
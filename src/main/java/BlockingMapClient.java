@@ -0,0 +1,256 @@
+import nio.AESEncoder;
+import nio.BlockingConnection;
+import nio.Metrics;
+import nio.NIOComponent;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A client of a single blocking connection, whose commands return once replied, for the callers that
+ * would rather wait than handle futures, which costs little on a virtual thread.
+ * Talks to a {@link NIOMapServer} or a {@link BlockingMapServer} alike.
+ * <p>
+ * Concurrent callers take turns, so a client per thread is the way to have commands in flight together.
+ * A command failing halfway closes the connection, which is out of step by then, while a command refused
+ * by the server throws what the server threw and leaves the connection open.
+ * <p>
+ * Created by Edsuns@qq.com on 2022/5/8.
+ */
+public class BlockingMapClient implements Closeable {
+
+    private final SocketAddress address;
+    private final AESEncoder encoder;
+    private final Metrics metrics;
+    private int cipher = AESEncoder.CIPHER_GCM;
+    private long timeoutMs = NIOComponent.TIMEOUT_MS;
+
+    private volatile BlockingConnection connection;
+    /**
+     * takes the turns of the callers, rather than a monitor, which would pin a virtual thread
+     * to its carrier while it waits for its reply
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+    /**
+     * guarded by {@link #lock}
+     */
+    private int nextId;
+
+    public BlockingMapClient(SocketAddress address, AESEncoder encoder) {
+        this(address, encoder, new Metrics());
+    }
+
+    /**
+     * @param metrics may be shared by many clients, which saves the histograms of their own
+     */
+    public BlockingMapClient(SocketAddress address, AESEncoder encoder, Metrics metrics) {
+        this.address = address;
+        this.encoder = encoder;
+        this.metrics = metrics;
+    }
+
+    public Metrics metrics() {
+        return metrics;
+    }
+
+    /**
+     * @see NIOComponent#setCipher(int)
+     */
+    public synchronized void setCipher(int cipher) {
+        if (connection != null) {
+            throw new IllegalStateException("connected");
+        }
+        if (!AESEncoder.isSupported(cipher)) {
+            throw new IllegalArgumentException("cipher " + cipher);
+        }
+        this.cipher = cipher;
+    }
+
+    /**
+     * Sets the timeout of connecting and of every reply, {@link NIOComponent#TIMEOUT_MS} by default.
+     * Must be called before {@link #connect()}.
+     */
+    public synchronized void setTimeout(long timeout, TimeUnit unit) {
+        if (connection != null) {
+            throw new IllegalStateException("connected");
+        }
+        this.timeoutMs = unit.toMillis(timeout);
+    }
+
+    public synchronized void connect() throws IOException {
+        if (connection != null) {
+            throw new IllegalStateException("connected");
+        }
+        connection = BlockingConnection.connect(address, encoder, cipher, (int) timeoutMs, metrics);
+    }
+
+    /**
+     * @return whether connected and not closed since, which a client stops being once a command fails
+     */
+    public boolean isOpen() {
+        BlockingConnection c = connection;
+        return c != null && c.isOpen();
+    }
+
+    @Override
+    public void close() throws IOException {
+        BlockingConnection c = connection;
+        if (c != null) {
+            // not synchronized, so that it wakes up the caller waiting for a reply
+            c.close();
+        }
+    }
+
+    private String[] execute(String command, String... fields) throws IOException {
+        for (String field : fields) {
+            if (field == null) throw new IllegalArgumentException("null");
+        }
+        lock.lock();
+        try {
+            BlockingConnection c = connection;
+            if (c == null || !c.isOpen()) {
+                throw new ClosedChannelException();
+            }
+            int id = ++nextId;
+            byte opcode;
+            String[] returnVal;
+            try {
+                c.write(MapCodec.encode(MapCodec.opcode(command), id, fields));
+                ByteBuffer reply = ByteBuffer.wrap(c.read());
+                opcode = reply.get();
+                if (reply.getInt() != id) {
+                    throw new ProtocolException("Unexpected reply");
+                }
+                returnVal = MapCodec.readFields(reply);
+            } catch (IOException | RuntimeException e) {
+                c.close();
+                throw e;
+            }
+            if (opcode == MapCodec.ERROR) {
+                // refused, the connection is still in step
+                throw MapCodec.decodeError(returnVal);
+            }
+            return returnVal;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Pairs the keys of a batch with the values of its reply.
+     */
+    private static Map<String, String> zip(String[] keys, String[] values) {
+        Map<String, String> result = new LinkedHashMap<>(keys.length * 2);
+        for (int i = 0; i < keys.length; i++) {
+            result.put(keys[i], values[i]);
+        }
+        return result;
+    }
+
+    /**
+     * @see Map#put(Object, Object)
+     */
+    public String put(String key, String val) throws IOException {
+        return execute("put", key, val)[0];
+    }
+
+    /**
+     * @see NIOMapClient#put(String, String, long, TimeUnit)
+     */
+    public String put(String key, String val, long ttl, TimeUnit unit) throws IOException {
+        return execute("put", key, val, String.valueOf(unit.toMillis(ttl)))[0];
+    }
+
+    /**
+     * @see NIOMapClient#expire(String, long, TimeUnit)
+     */
+    public boolean expire(String key, long ttl, TimeUnit unit) throws IOException {
+        return Boolean.parseBoolean(execute("expire", key, String.valueOf(unit.toMillis(ttl)))[0]);
+    }
+
+    /**
+     * @see NIOMapClient#ttl(String)
+     */
+    public long ttl(String key) throws IOException {
+        return Long.parseLong(execute("ttl", key)[0]);
+    }
+
+    /**
+     * @see Map#get(Object)
+     */
+    public String get(String key) throws IOException {
+        return execute("get", key)[0];
+    }
+
+    /**
+     * @see Map#remove(Object)
+     */
+    public String remove(String key) throws IOException {
+        return execute("rm", key)[0];
+    }
+
+    /**
+     * @see Map#size()
+     */
+    public String size() throws IOException {
+        return execute("size")[0];
+    }
+
+    /**
+     * @see Map#clear()
+     */
+    public String clear() throws IOException {
+        return execute("clear")[0];
+    }
+
+    public String ping() throws IOException {
+        return execute("ping")[0];
+    }
+
+    /**
+     * @see NIOMapClient#stats()
+     */
+    public String stats() throws IOException {
+        return execute("stats")[0];
+    }
+
+    /**
+     * @see NIOMapClient#mget(Collection)
+     */
+    public Map<String, String> mget(Collection<String> keys) throws IOException {
+        String[] k = keys.toArray(new String[0]);
+        return zip(k, execute("mget", k));
+    }
+
+    /**
+     * @see NIOMapClient#mput(Map)
+     */
+    public Map<String, String> mput(Map<String, String> entries) throws IOException {
+        String[] k = new String[entries.size()];
+        String[] fields = new String[entries.size() * 2];
+        int i = 0;
+        for (Map.Entry<String, String> entry : entries.entrySet()) {
+            k[i] = fields[i * 2] = entry.getKey();
+            fields[i * 2 + 1] = entry.getValue();
+            i++;
+        }
+        return zip(k, execute("mput", fields));
+    }
+
+    /**
+     * @see NIOMapClient#mremove(Collection)
+     */
+    public Map<String, String> mremove(Collection<String> keys) throws IOException {
+        String[] k = keys.toArray(new String[0]);
+        return zip(k, execute("mrm", k));
+    }
+}
@@ -0,0 +1,34 @@
+import nio.BlockingConnection;
+import nio.BlockingServer;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * Serves the storage of a {@link NIOMapServer} with a thread per connection, to the clients of
+ * {@link nio.NIOComponent#PROTOCOL_BINARY} such as {@link BlockingMapClient} and {@link NIOMapClient}.
+ * The commands are executed by the thread of their connection and replied in order.
+ * <p>
+ * The server runs the expiry and the replication while connected, and isn't closed with this one.
+ * Replicas still sync over the server itself.
+ * <p>
+ * Created by Edsuns@qq.com on 2022/5/8.
+ */
+public class BlockingMapServer extends BlockingServer {
+
+    private final NIOMapServer server;
+
+    public BlockingMapServer(SocketAddress address, NIOMapServer server) {
+        super(address, server.encoder());
+        this.server = server;
+    }
+
+    @Override
+    protected void onMessage(BlockingConnection connection, ByteBuffer message) throws IOException {
+        byte opcode = message.get();
+        int id = message.getInt();
+        String[] fields = MapCodec.readFields(message);
+        connection.write(server.executeBlocking(opcode, id, fields));
+    }
+}
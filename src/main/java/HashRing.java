@@ -0,0 +1,88 @@
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+/**
+ * A consistent-hash ring: every node is hashed to many points, its virtual nodes,
+ * and a key belongs to the node of the first point at or after the hash of the key.
+ * Adding or removing a node only moves the keys of its own points, about {@code 1/n} of them.
+ * <p>
+ * Immutable, so that lookups need no lock while the ring is replaced.
+ * <p>
+ * Created by Edsuns@qq.com on 2022/5/3.
+ */
+final class HashRing<N> {
+
+    private final NavigableMap<Long, N> points;
+    private final Map<String, N> nodes;
+    final int virtualNodes;
+
+    HashRing(int virtualNodes) {
+        this(virtualNodes, new TreeMap<>(), new TreeMap<>());
+    }
+
+    private HashRing(int virtualNodes, NavigableMap<Long, N> points, Map<String, N> nodes) {
+        if (virtualNodes <= 0) {
+            throw new IllegalArgumentException("virtualNodes " + virtualNodes);
+        }
+        this.virtualNodes = virtualNodes;
+        this.points = points;
+        this.nodes = nodes;
+    }
+
+    /**
+     * @param name identifies the node, the points only depend on it
+     */
+    HashRing<N> with(String name, N node) {
+        HashRing<N> ring = without(name);
+        for (int i = 0; i < virtualNodes; i++) {
+            // a collision goes to the first one, wherever it was added
+            ring.points.putIfAbsent(hash(name + "#" + i), node);
+        }
+        ring.nodes.put(name, node);
+        return ring;
+    }
+
+    HashRing<N> without(String name) {
+        HashRing<N> ring = new HashRing<>(virtualNodes, new TreeMap<>(points), new TreeMap<>(nodes));
+        N node = ring.nodes.remove(name);
+        if (node != null) {
+            ring.points.values().removeIf(n -> n == node);
+        }
+        return ring;
+    }
+
+    Map<String, N> nodes() {
+        return nodes;
+    }
+
+    /**
+     * @return {@code null} if the ring is empty
+     */
+    N node(String key) {
+        if (points.isEmpty()) {
+            return null;
+        }
+        Map.Entry<Long, N> point = points.ceilingEntry(hash(key));
+        return (point != null ? point : points.firstEntry()).getValue();
+    }
+
+    /**
+     * FNV-1a over the UTF-8 bytes, finished by the mixer of MurmurHash3,
+     * so that similar names spread over the whole ring.
+     */
+    static long hash(String s) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : s.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b & 0xff;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,163 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Payload of {@link nio.NIOComponent#PROTOCOL_BINARY} frames:
+ * an opcode and the id of the request followed by fields, each prefixed with its length.
+ * <p>
+ * Replies echo the opcode and the id of their request, or are {@link #ERROR}s carrying its id.
+ * <p>
+ * A field length of {@code -1} stands for {@code null}.
+ * <p>
+ * Created by Edsuns@qq.com on 2022/4/20.
+ */
+final class MapCodec {
+
+    static final byte PUT = 1, GET = 2, RM = 3, SIZE = 4, CLEAR = 5;
+    /**
+     * batches of keys, or of keys and values for {@link #MPUT},
+     * replied with a value per key
+     */
+    static final byte MGET = 6, MPUT = 7, MRM = 8;
+    /**
+     * times to live in milliseconds, also taken by {@link #PUT} as a third field
+     */
+    static final byte EXPIRE = 9, TTL = 10;
+    /**
+     * replied with {@code pong}, checks the health of a connection
+     */
+    static final byte PING = 11;
+    /**
+     * the replication stream, see {@code ReplicaLink}
+     */
+    static final byte SYNC = 12, ACK = 13, SYNCED = 14;
+    /**
+     * replied instead of a command refused by the server, with the kind of the refusal and its message,
+     * see {@link #encodeError(int, RuntimeException)}
+     */
+    static final byte ERROR = 15;
+    /**
+     * replied with the metrics of the server, a line per value
+     */
+    static final byte STATS = 16;
+
+    /**
+     * the kinds of {@link #ERROR}s, such as writing to a replica or an unknown command, or a malformed one
+     */
+    static final String UNSUPPORTED = "unsupported", ILLEGAL_ARGUMENT = "illegal-argument";
+
+    /**
+     * the commands by opcode
+     */
+    static final String[] COMMANDS = {null, "put", "get", "rm", "size", "clear", "mget", "mput", "mrm",
+            "expire", "ttl", "ping", "sync", "ack", "synced", "error", "stats"};
+
+    static final int NULL_LENGTH = -1;
+
+    private MapCodec() {
+    }
+
+    static byte opcode(String command) {
+        switch (command) {
+            case "put":
+                return PUT;
+            case "get":
+                return GET;
+            case "rm":
+                return RM;
+            case "size":
+                return SIZE;
+            case "clear":
+                return CLEAR;
+            case "mget":
+                return MGET;
+            case "mput":
+                return MPUT;
+            case "mrm":
+                return MRM;
+            case "expire":
+                return EXPIRE;
+            case "ttl":
+                return TTL;
+            case "ping":
+                return PING;
+            case "stats":
+                return STATS;
+            default:
+                throw new UnsupportedOperationException(command);
+        }
+    }
+
+    static byte[] encode(byte opcode, int id, String... fields) {
+        byte[][] bytes = new byte[fields.length][];
+        int size = Byte.BYTES + Integer.BYTES;
+        for (int i = 0; i < fields.length; i++) {
+            if (fields[i] != null) {
+                bytes[i] = fields[i].getBytes(StandardCharsets.UTF_8);
+                size += bytes[i].length;
+            }
+            size += Integer.BYTES;
+        }
+        ByteBuffer bf = ByteBuffer.allocate(size);
+        bf.put(opcode);
+        bf.putInt(id);
+        for (byte[] field : bytes) {
+            if (field == null) {
+                bf.putInt(NULL_LENGTH);
+            } else {
+                bf.putInt(field.length);
+                bf.put(field);
+            }
+        }
+        return bf.array();
+    }
+
+    /**
+     * @param e an {@link UnsupportedOperationException} or an {@link IllegalArgumentException}
+     */
+    static byte[] encodeError(int id, RuntimeException e) {
+        return encode(ERROR, id, e instanceof IllegalArgumentException ? ILLEGAL_ARGUMENT : UNSUPPORTED,
+                String.valueOf(e.getMessage()));
+    }
+
+    /**
+     * @return the exception of the kind refused by the server, for the fields of an {@link #ERROR}
+     */
+    static RuntimeException decodeError(String[] fields) {
+        String message = fields.length > 1 ? fields[1] : null;
+        return fields.length > 0 && ILLEGAL_ARGUMENT.equals(fields[0])
+                ? new IllegalArgumentException(message) : new UnsupportedOperationException(message);
+    }
+
+    /**
+     * Reads the remaining fields.
+     */
+    static String[] readFields(ByteBuffer bf) {
+        List<String> fields = new ArrayList<>();
+        while (bf.hasRemaining()) {
+            fields.add(readField(bf));
+        }
+        return fields.toArray(new String[0]);
+    }
+
+    /**
+     * Reads the next field and advances the position of {@code bf}.
+     */
+    static String readField(ByteBuffer bf) {
+        int length = bf.getInt();
+        if (length == NULL_LENGTH) {
+            return null;
+        }
+        if (!bf.hasArray()) {
+            // served straight from a direct input buffer
+            byte[] bytes = new byte[length];
+            bf.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+        String field = new String(bf.array(), bf.arrayOffset() + bf.position(), length, StandardCharsets.UTF_8);
+        bf.position(bf.position() + length);
+        return field;
+    }
+}
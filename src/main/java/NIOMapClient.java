@@ -1,70 +1,181 @@
 import nio.AESEncoder;
 import nio.NIOComponent;
+import nio.TimerWheel;
 
 import java.io.IOException;
 import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
 
 /**
  * Created by Edsuns@qq.com on 2022/4/12.
  */
-public class NIOMapClient extends NIOComponent<Queue<NIOMapClient.Command>> {
+public class NIOMapClient extends NIOComponent<Map<Integer, NIOMapClient.Command<?>>> {
 
-    static class Command {
+    static class Command<T> {
 
-        final String message;
-        volatile String returnVal;
+        final String[] cmd;
+        /**
+         * turns the fields of the reply into the return value
+         */
+        final Function<String[], T> returnVal;
+        final CompletableFuture<T> future = new CompletableFuture<>();
+        final long deadlineMs;
+        /**
+         * assigned by the event loop when the command is written
+         */
+        int id;
+        TimerWheel.Timeout timeout;
 
-        private Command(String... cmd) {
-            StringJoiner joiner = new StringJoiner(" ");
+        private Command(long timeoutMs, Function<String[], T> returnVal, String... cmd) {
             for (String c : cmd) {
                 if (c == null || "null".equals(c)) throw new IllegalArgumentException("null");
-                joiner.add(c);
             }
-            this.message = joiner.toString();
+            this.cmd = cmd;
+            this.returnVal = returnVal;
+            this.deadlineMs = System.currentTimeMillis() + timeoutMs;
         }
 
-        void onReturn(String message) {
-            synchronized (Command.this) {
-                returnVal = message;
-                Command.this.notifyAll();
-            }
+        boolean complete(String[] fields) {
+            return future.complete(returnVal.apply(fields));
         }
 
-        public Future<String> returnValFuture() {
-            return (ReturnValueFuture) () -> {
-                String val = returnVal;
-                if (val == null) {
-                    synchronized (Command.this) {
-                        val = returnVal;
-                        if (val != null) return val;
-                        Command.this.wait(TIMEOUT_MS);
-                        val = returnVal;
-                        if (val == null) {
-                            throw new TimeoutException();
-                        }
-                    }
-                }
-                return "null".equals(val) ? null : val;
-            };
+        byte[] encode(int protocol) {
+            if (protocol == PROTOCOL_BINARY) {
+                return MapCodec.encode(MapCodec.opcode(cmd[0]), id, Arrays.copyOfRange(cmd, 1, cmd.length));
+            }
+            return String.join(" ", cmd).getBytes(StandardCharsets.UTF_8);
         }
+
     }
 
-    private final Queue<Command> commandQueue = new ConcurrentLinkedQueue<>();
+    /**
+     * how often the commands not written yet are checked against their deadlines
+     */
+    static final long SWEEP_MS = 100;
+
+    /**
+     * Makes the callers wait for the pending commands to fall to the low watermark,
+     * or for their timeout; the event loops are rejected instead, since they complete the commands.
+     */
+    public static final int OVERLOAD_BLOCK = 0;
+    /**
+     * Throws a {@link RejectedExecutionException} to the callers.
+     */
+    public static final int OVERLOAD_THROW = 1;
+    /**
+     * Returns futures failed with a {@link RejectedExecutionException}.
+     */
+    public static final int OVERLOAD_REJECT = 2;
+
+    public static final int DEFAULT_PENDING_LOW_WATERMARK = 1024 * 32;
+    public static final int DEFAULT_PENDING_HIGH_WATERMARK = 1024 * 64;
+
+    private final Queue<Command<?>> commandQueue = new ConcurrentLinkedQueue<>();
+
+    /**
+     * the commands enqueued and not completed yet
+     */
+    private final AtomicInteger pending = new AtomicInteger();
+    /**
+     * set once the pending commands reach the high watermark, until they fall to the low one
+     */
+    private volatile boolean overloaded;
+    private volatile int pendingLowWatermark = DEFAULT_PENDING_LOW_WATERMARK;
+    private volatile int pendingHighWatermark = DEFAULT_PENDING_HIGH_WATERMARK;
+    private volatile int overload = OVERLOAD_BLOCK;
 
     private final AtomicInteger cmdNeedReturn = new AtomicInteger(0);
 
+    private volatile ChannelContext<Map<Integer, Command<?>>> context;
+
+    private volatile long timeoutMs = TIMEOUT_MS;
+
+    private volatile boolean closed;
+
+    /**
+     * only used by the event loop
+     */
+    private int nextId;
+    private long nextSweepMs;
+
     protected NIOMapClient(SocketAddress address, AESEncoder encoder) {
-        super(address, false, encoder, LinkedList::new);
+        this(address, encoder, PROTOCOL_BINARY);
+    }
+
+    /**
+     * @param protocol {@link #PROTOCOL_TEXT} to talk to servers of the original protocol
+     */
+    protected NIOMapClient(SocketAddress address, AESEncoder encoder, int protocol) {
+        // ordered by id, which is also the order of the replies of the text protocol
+        super(address, false, encoder, LinkedHashMap::new, protocol);
     }
 
     @Override
-    protected void onMessage(ChannelContext<Queue<Command>> context, String message) {
-        Command command = Objects.requireNonNull(context.attachment.poll());
-        command.onReturn(message);
+    protected void onConnected(ChannelContext<Map<Integer, Command<?>>> context) {
+        this.context = context;
+    }
+
+    @Override
+    protected void onMessage(ChannelContext<Map<Integer, Command<?>>> context, String message) {
+        Iterator<Command<?>> iterator = context.attachment.values().iterator();
+        Command<?> command = iterator.next();
+        iterator.remove();
+        onReturn(command, new String[]{"null".equals(message) ? null : message});
+    }
+
+    @Override
+    protected void onMessage(ChannelContext<Map<Integer, Command<?>>> context, ByteBuffer message) {
+        byte opcode = message.get();
+        Command<?> command = context.attachment.remove(message.getInt());
+        if (command == null) {
+            // timed out already
+            return;
+        }
+        if (opcode == MapCodec.ERROR) {
+            onRefused(command, MapCodec.decodeError(MapCodec.readFields(message)));
+            return;
+        }
+        onReturn(command, MapCodec.readFields(message));
+    }
+
+    private void onReturn(Command<?> command, String[] fields) {
+        if (command.timeout != null) {
+            command.timeout.cancel();
+        }
+        if (command.complete(fields)) {
+            onCompleted();
+        }
+    }
 
+    /**
+     * Fails the command refused by the server, the connection goes on.
+     */
+    private void onRefused(Command<?> command, RuntimeException e) {
+        if (command.timeout != null) {
+            command.timeout.cancel();
+        }
+        if (command.future.completeExceptionally(e)) {
+            onCompleted();
+        }
+    }
+
+    private void onTimeout(ChannelContext<Map<Integer, Command<?>>> context, Command<?> command) {
+        if (context.protocol() == PROTOCOL_BINARY) {
+            context.attachment.remove(command.id);
+        }
+        // the text protocol keeps the command until its reply arrives, since replies are matched by order
+        if (command.future.completeExceptionally(new TimeoutException())) {
+            onCompleted();
+        }
+    }
+
+    private void onCompleted() {
         if (cmdNeedReturn.decrementAndGet() <= 0 && commandQueue.isEmpty()) {
             synchronized (cmdNeedReturn) {
                 cmdNeedReturn.notifyAll();
@@ -73,62 +184,343 @@ public class NIOMapClient extends NIOComponent<Queue<NIOMapClient.Command>> {
     }
 
     @Override
-    protected void onWritable(ChannelContext<Queue<Command>> context) throws IOException {
-        Command command;
+    protected void onWritable(ChannelContext<Map<Integer, Command<?>>> context) throws IOException {
+        Command<?> command;
         while ((command = commandQueue.poll()) != null) {
-            write(context, command.message);
-            context.attachment.add(command);
+            if (command.future.isDone()) {
+                continue;
+            }
+            command.id = nextId++;
+            write(context, command.encode(context.protocol()));
+            context.attachment.put(command.id, command);
+            final Command<?> c = command;
+            command.timeout = context.timers().schedule(() -> onTimeout(context, c),
+                    command.deadlineMs - System.currentTimeMillis());
 
             cmdNeedReturn.incrementAndGet();
         }
     }
 
+    /**
+     * Times out the commands that were never written, while connecting or while the connection
+     * can't take them, since their timeouts are only scheduled once they are written.
+     */
+    @Override
+    protected void onTick() {
+        long now = System.currentTimeMillis();
+        if (now < nextSweepMs || commandQueue.isEmpty()) {
+            return;
+        }
+        nextSweepMs = now + SWEEP_MS;
+        boolean timedOut = false;
+        for (Iterator<Command<?>> iterator = commandQueue.iterator(); iterator.hasNext(); ) {
+            Command<?> command = iterator.next();
+            if (command.deadlineMs <= now) {
+                iterator.remove();
+                timedOut |= command.future.completeExceptionally(new TimeoutException());
+            }
+        }
+        if (timedOut && cmdNeedReturn.get() <= 0 && commandQueue.isEmpty()) {
+            synchronized (cmdNeedReturn) {
+                cmdNeedReturn.notifyAll();
+            }
+        }
+    }
+
+    @Override
+    protected long tickMs() {
+        return SWEEP_MS;
+    }
+
+    /**
+     * Fails the commands that are still waiting to be written.
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        synchronized (pending) {
+            // the callers waiting for room see the client closed
+            pending.notifyAll();
+        }
+        try {
+            super.close();
+        } finally {
+            Command<?> command;
+            while ((command = commandQueue.poll()) != null) {
+                command.future.completeExceptionally(new ClosedChannelException());
+            }
+        }
+    }
+
+    /**
+     * Fails the commands that are still waiting for their replies.
+     */
+    @Override
+    protected void onClosed() {
+        ChannelContext<Map<Integer, Command<?>>> c = context;
+        if (c != null) {
+            // the event loop has exited, or this is the event loop
+            for (Command<?> command : c.attachment.values()) {
+                command.future.completeExceptionally(new ClosedChannelException());
+            }
+            c.attachment.clear();
+        }
+    }
+
+    /**
+     * Bounds the commands enqueued and not completed yet: once they reach {@code high},
+     * the commands are handled by {@code overload} until they fall to {@code low}.
+     *
+     * @param overload {@link #OVERLOAD_BLOCK}, {@link #OVERLOAD_THROW} or {@link #OVERLOAD_REJECT}
+     */
+    public void setPendingWatermarks(int low, int high, int overload) {
+        if (low < 0 || high <= low) {
+            throw new IllegalArgumentException("watermarks " + low + ", " + high);
+        }
+        if (overload != OVERLOAD_BLOCK && overload != OVERLOAD_THROW && overload != OVERLOAD_REJECT) {
+            throw new IllegalArgumentException("overload " + overload);
+        }
+        this.pendingHighWatermark = high;
+        this.pendingLowWatermark = low;
+        this.overload = overload;
+        release(0);
+    }
+
+    /**
+     * @return the commands enqueued and not completed yet
+     */
+    public int pendingCount() {
+        return pending.get();
+    }
+
+    /**
+     * @return whether the command may be enqueued, or else it has failed
+     */
+    private boolean admit(Command<?> command) {
+        if (!overloaded && pending.get() < pendingHighWatermark) {
+            return true;
+        }
+        overloaded = true;
+        // checked again after setting the flag, which a release done meanwhile may have missed
+        release(0);
+        if (!overloaded) {
+            return true;
+        }
+        int o = overload;
+        if (o == OVERLOAD_BLOCK && !inEventLoop()) {
+            try {
+                synchronized (pending) {
+                    long waitMs;
+                    while (overloaded && !closed && (waitMs = command.deadlineMs - System.currentTimeMillis()) > 0) {
+                        pending.wait(waitMs);
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                command.future.completeExceptionally(e);
+                return false;
+            }
+            if (overloaded && !closed) {
+                command.future.completeExceptionally(new TimeoutException());
+                return false;
+            }
+            return true;
+        }
+        RejectedExecutionException rejected = new RejectedExecutionException("pending " + pending.get());
+        if (o == OVERLOAD_THROW) {
+            throw rejected;
+        }
+        command.future.completeExceptionally(rejected);
+        return false;
+    }
+
+    /**
+     * Lets the commands in again once the pending ones fall to the low watermark.
+     */
+    private void release(int completed) {
+        int p = pending.addAndGet(-completed);
+        if (overloaded && p <= pendingLowWatermark) {
+            synchronized (pending) {
+                overloaded = false;
+                pending.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Sets the timeout of the commands enqueued afterwards, {@link #TIMEOUT_MS} by default.
+     */
+    public void setTimeout(long timeout, TimeUnit unit) {
+        this.timeoutMs = unit.toMillis(timeout);
+    }
+
     public void awaitFlush(long timeout, TimeUnit unit) throws ExecutionException, InterruptedException {
-        if (cmdNeedReturn.decrementAndGet() <= 0 && commandQueue.isEmpty()) return;
+        if (cmdNeedReturn.get() <= 0 && commandQueue.isEmpty()) return;
         long limitMs = unit.toMillis(timeout);
         synchronized (cmdNeedReturn) {
             cmdNeedReturn.wait(limitMs);
         }
     }
 
-    private Future<String> enqueueCommand(String... cmd) {
-        Command command = new Command(cmd);
+    private CompletableFuture<String> enqueueCommand(String... cmd) {
+        return enqueueCommand(fields -> fields[0], cmd);
+    }
+
+    private <T> CompletableFuture<T> enqueueCommand(Function<String[], T> returnVal, String... cmd) {
+        if (protocol == PROTOCOL_TEXT) {
+            for (String c : cmd) {
+                // split by the server otherwise, the binary protocol takes any field
+                if (c != null && c.indexOf(' ') >= 0) throw new IllegalArgumentException("space in the text protocol");
+            }
+        }
+        Command<T> command = new Command<>(timeoutMs, returnVal, cmd);
+        if (!admit(command)) {
+            return command.future;
+        }
+        pending.incrementAndGet();
+        command.future.whenComplete((v, e) -> release(1));
         commandQueue.add(command);
-        return command.returnValFuture();
+        if (closed && commandQueue.remove(command)) {
+            // missed by close()
+            command.future.completeExceptionally(new ClosedChannelException());
+            return command.future;
+        }
+        ChannelContext<Map<Integer, Command<?>>> c = context;
+        if (c != null) {
+            requestWrite(c);
+        }
+        return command.future;
+    }
+
+    /**
+     * Pairs the keys of a batch with the values of its reply.
+     */
+    private CompletableFuture<Map<String, String>> enqueueBatch(String name, Collection<String> keys, String[] cmd) {
+        if (protocol != PROTOCOL_BINARY) {
+            throw new UnsupportedOperationException(name + " requires the binary protocol");
+        }
+        String[] k = keys.toArray(new String[0]);
+        return enqueueCommand(fields -> {
+            Map<String, String> result = new LinkedHashMap<>(k.length * 2);
+            for (int i = 0; i < k.length; i++) {
+                result.put(k[i], fields[i]);
+            }
+            return result;
+        }, cmd);
     }
 
     /**
      * @see Map#put(Object, Object)
      */
-    public Future<String> put(String key, String val) {
+    public CompletableFuture<String> put(String key, String val) {
         return enqueueCommand("put", key, val);
     }
 
+    /**
+     * Puts the entry to be removed by the server once {@code ttl} has elapsed.
+     * A plain {@link #put(String, String)} clears the time to live of the key.
+     */
+    public CompletableFuture<String> put(String key, String val, long ttl, TimeUnit unit) {
+        return enqueueCommand("put", key, val, String.valueOf(unit.toMillis(ttl)));
+    }
+
+    /**
+     * Sets the time to live of a key, a non-positive one removes it.
+     *
+     * @return {@code false} if the key is absent
+     */
+    public CompletableFuture<Boolean> expire(String key, long ttl, TimeUnit unit) {
+        return enqueueCommand(fields -> Boolean.valueOf(fields[0]), "expire", key, String.valueOf(unit.toMillis(ttl)));
+    }
+
+    /**
+     * @return the milliseconds left to live, {@code -1} for a key without a deadline, {@code -2} for an absent key
+     */
+    public CompletableFuture<Long> ttl(String key) {
+        return enqueueCommand(fields -> Long.valueOf(fields[0]), "ttl", key);
+    }
+
     /**
      * @see Map#get(Object)
      */
-    public Future<String> get(String key) {
+    public CompletableFuture<String> get(String key) {
         return enqueueCommand("get", key);
     }
 
     /**
      * @see Map#remove(Object)
      */
-    public Future<String> remove(String key) {
+    public CompletableFuture<String> remove(String key) {
         return enqueueCommand("rm", key);
     }
 
     /**
      * @see Map#size()
      */
-    public Future<String> size() {
+    public CompletableFuture<String> size() {
         return enqueueCommand("size");
     }
 
     /**
      * @see Map#clear()
      */
-    public Future<String> clear() {
+    public CompletableFuture<String> clear() {
         return enqueueCommand("clear");
     }
+
+    /**
+     * Completes once the server has replied, through the whole queue of the connection.
+     */
+    public CompletableFuture<String> ping() {
+        return enqueueCommand("ping");
+    }
+
+    /**
+     * @return the metrics of the server, a {@code name value} line each
+     */
+    public CompletableFuture<String> stats() {
+        return enqueueCommand("stats");
+    }
+
+    /**
+     * Gets the values of the keys in a single frame, {@code null} for the absent keys.
+     */
+    public CompletableFuture<Map<String, String>> mget(Collection<String> keys) {
+        return enqueueBatch("mget", keys, batch("mget", keys));
+    }
+
+    /**
+     * Puts the entries in a single frame.
+     *
+     * @return the previous values by key
+     */
+    public CompletableFuture<Map<String, String>> mput(Map<String, String> entries) {
+        String[] cmd = new String[1 + entries.size() * 2];
+        cmd[0] = "mput";
+        int i = 1;
+        for (Map.Entry<String, String> entry : entries.entrySet()) {
+            cmd[i++] = entry.getKey();
+            cmd[i++] = entry.getValue();
+        }
+        return enqueueBatch("mput", entries.keySet(), cmd);
+    }
+
+    /**
+     * Removes the keys in a single frame.
+     *
+     * @return the removed values by key
+     */
+    public CompletableFuture<Map<String, String>> mremove(Collection<String> keys) {
+        return enqueueBatch("mrm", keys, batch("mrm", keys));
+    }
+
+    private static String[] batch(String name, Collection<String> keys) {
+        String[] cmd = new String[1 + keys.size()];
+        cmd[0] = name;
+        int i = 1;
+        for (String key : keys) {
+            cmd[i++] = key;
+        }
+        return cmd;
+    }
 }
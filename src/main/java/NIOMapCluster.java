@@ -0,0 +1,303 @@
+import nio.AESEncoder;
+import nio.NIOComponent;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+/**
+ * Shards the keys over several servers, a {@link NIOMapClient} each, by a {@link HashRing} of their addresses.
+ * Batches are split by server and the parts are sent in parallel.
+ * <p>
+ * Servers may be added and removed while connected, which moves about {@code 1/n} of the keys.
+ * The entries of the keys moved are not migrated: they are missed on their new server until put again.
+ * <p>
+ * Created by Edsuns@qq.com on 2022/5/3.
+ */
+public class NIOMapCluster implements Closeable {
+
+    public static final int DEFAULT_VIRTUAL_NODES = 160;
+
+    final AESEncoder encoder;
+    private final List<SocketAddress> addresses;
+    private int virtualNodes = DEFAULT_VIRTUAL_NODES;
+    private int cipher = AESEncoder.CIPHER_GCM;
+    private volatile long timeoutMs = NIOComponent.TIMEOUT_MS;
+    /**
+     * replaced as a whole when a server is added or removed
+     */
+    volatile HashRing<NIOMapClient> ring;
+    private boolean closed;
+
+    public NIOMapCluster(Collection<? extends SocketAddress> addresses, AESEncoder encoder) {
+        this.addresses = new ArrayList<>(addresses);
+        this.encoder = encoder;
+    }
+
+    /**
+     * Sets the points of each server on the ring, {@link #DEFAULT_VIRTUAL_NODES} by default.
+     * More of them spread the keys more evenly. Must be called before {@link #connect()}.
+     */
+    public synchronized void setVirtualNodes(int virtualNodes) {
+        if (ring != null) {
+            throw new IllegalStateException("connected");
+        }
+        if (virtualNodes <= 0) {
+            throw new IllegalArgumentException("virtualNodes " + virtualNodes);
+        }
+        this.virtualNodes = virtualNodes;
+    }
+
+    /**
+     * Must be called before {@link #connect()}.
+     *
+     * @see NIOComponent#setCipher(int)
+     */
+    public synchronized void setCipher(int cipher) {
+        if (ring != null) {
+            throw new IllegalStateException("connected");
+        }
+        if (!AESEncoder.isSupported(cipher)) {
+            throw new IllegalArgumentException("cipher " + cipher);
+        }
+        this.cipher = cipher;
+    }
+
+    /**
+     * @see NIOMapClient#setTimeout(long, TimeUnit)
+     */
+    public void setTimeout(long timeout, TimeUnit unit) {
+        this.timeoutMs = unit.toMillis(timeout);
+        HashRing<NIOMapClient> r = ring;
+        if (r != null) {
+            for (NIOMapClient client : r.nodes().values()) {
+                client.setTimeout(timeout, unit);
+            }
+        }
+    }
+
+    public synchronized void connect() throws IOException {
+        if (ring != null || closed) {
+            throw new IllegalStateException("connected");
+        }
+        HashRing<NIOMapClient> r = new HashRing<>(virtualNodes);
+        try {
+            for (SocketAddress address : addresses) {
+                r = r.with(address.toString(), open(address));
+            }
+        } catch (IOException e) {
+            for (NIOMapClient client : r.nodes().values()) {
+                client.close();
+            }
+            throw e;
+        }
+        ring = r;
+    }
+
+    private NIOMapClient open(SocketAddress address) throws IOException {
+        NIOMapClient client = new NIOMapClient(address, encoder);
+        client.setCipher(cipher);
+        client.setTimeout(timeoutMs, TimeUnit.MILLISECONDS);
+        client.connect();
+        return client;
+    }
+
+    /**
+     * Adds a server to the ring.
+     */
+    public synchronized void addServer(SocketAddress address) throws IOException {
+        if (ring == null) {
+            throw new IllegalStateException("not connected");
+        }
+        String name = address.toString();
+        if (ring.nodes().containsKey(name)) {
+            return;
+        }
+        ring = ring.with(name, open(address));
+        addresses.add(address);
+    }
+
+    /**
+     * Removes a server from the ring, and closes its connection once its pending commands are failed.
+     */
+    public synchronized void removeServer(SocketAddress address) throws IOException {
+        if (ring == null) {
+            throw new IllegalStateException("not connected");
+        }
+        String name = address.toString();
+        NIOMapClient client = ring.nodes().get(name);
+        if (client == null) {
+            return;
+        }
+        ring = ring.without(name);
+        addresses.remove(address);
+        client.close();
+    }
+
+    private NIOMapClient client(String key) {
+        HashRing<NIOMapClient> r = ring;
+        if (r == null) {
+            throw new IllegalStateException("not connected");
+        }
+        return r.node(key);
+    }
+
+    /**
+     * @return failed, for a ring without servers
+     */
+    private static <T> CompletableFuture<T> closed() {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        future.completeExceptionally(new ClosedChannelException());
+        return future;
+    }
+
+    private static <T> CompletableFuture<T> send(NIOMapClient client, Function<NIOMapClient, CompletableFuture<T>> command) {
+        return client == null ? closed() : command.apply(client);
+    }
+
+    /**
+     * Sends a batch in parts, one per server, and merges their replies in the order of the keys.
+     */
+    private <E> CompletableFuture<Map<String, String>> split(
+            Collection<E> items, Function<E, String> keyOf,
+            BiFunction<NIOMapClient, List<E>, CompletableFuture<Map<String, String>>> command) {
+        HashRing<NIOMapClient> r = ring;
+        if (r == null) {
+            throw new IllegalStateException("not connected");
+        }
+        return Batches.split(items, keyOf, r::node, (client, part) -> send(client, c -> command.apply(c, part)));
+    }
+
+    /**
+     * Sends the command to every server, and sums up their replies.
+     */
+    private CompletableFuture<String> sum(Function<NIOMapClient, CompletableFuture<String>> command) {
+        HashRing<NIOMapClient> r = ring;
+        if (r == null) {
+            throw new IllegalStateException("not connected");
+        }
+        List<CompletableFuture<String>> replies = new ArrayList<>();
+        for (NIOMapClient client : r.nodes().values()) {
+            replies.add(command.apply(client));
+        }
+        return CompletableFuture.allOf(replies.toArray(new CompletableFuture[0])).thenApply(v -> {
+            long sum = 0;
+            for (CompletableFuture<String> reply : replies) {
+                sum += Long.parseLong(reply.join());
+            }
+            return String.valueOf(sum);
+        });
+    }
+
+    /**
+     * @see NIOMapClient#put(String, String)
+     */
+    public CompletableFuture<String> put(String key, String val) {
+        return send(client(key), client -> client.put(key, val));
+    }
+
+    /**
+     * @see NIOMapClient#put(String, String, long, TimeUnit)
+     */
+    public CompletableFuture<String> put(String key, String val, long ttl, TimeUnit unit) {
+        return send(client(key), client -> client.put(key, val, ttl, unit));
+    }
+
+    /**
+     * @see NIOMapClient#get(String)
+     */
+    public CompletableFuture<String> get(String key) {
+        return send(client(key), client -> client.get(key));
+    }
+
+    /**
+     * @see NIOMapClient#remove(String)
+     */
+    public CompletableFuture<String> remove(String key) {
+        return send(client(key), client -> client.remove(key));
+    }
+
+    /**
+     * @see NIOMapClient#expire(String, long, TimeUnit)
+     */
+    public CompletableFuture<Boolean> expire(String key, long ttl, TimeUnit unit) {
+        return send(client(key), client -> client.expire(key, ttl, unit));
+    }
+
+    /**
+     * @see NIOMapClient#ttl(String)
+     */
+    public CompletableFuture<Long> ttl(String key) {
+        return send(client(key), client -> client.ttl(key));
+    }
+
+    /**
+     * @return the sum of the sizes of the servers
+     */
+    public CompletableFuture<String> size() {
+        return sum(NIOMapClient::size);
+    }
+
+    /**
+     * Clears every server.
+     *
+     * @return the sum of the entries removed
+     */
+    public CompletableFuture<String> clear() {
+        return sum(NIOMapClient::clear);
+    }
+
+    /**
+     * @see NIOMapClient#mget(Collection)
+     */
+    public CompletableFuture<Map<String, String>> mget(Collection<String> keys) {
+        return split(keys, key -> key, NIOMapClient::mget);
+    }
+
+    /**
+     * @see NIOMapClient#mput(Map)
+     */
+    public CompletableFuture<Map<String, String>> mput(Map<String, String> entries) {
+        return split(entries.entrySet(), Map.Entry::getKey, (client, part) -> {
+            Map<String, String> map = new LinkedHashMap<>(part.size() * 2);
+            for (Map.Entry<String, String> entry : part) {
+                map.put(entry.getKey(), entry.getValue());
+            }
+            return client.mput(map);
+        });
+    }
+
+    /**
+     * @see NIOMapClient#mremove(Collection)
+     */
+    public CompletableFuture<Map<String, String>> mremove(Collection<String> keys) {
+        return split(keys, key -> key, NIOMapClient::mremove);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        closed = true;
+        HashRing<NIOMapClient> r = ring;
+        if (r == null) {
+            return;
+        }
+        ring = new HashRing<>(virtualNodes);
+        IOException failure = null;
+        for (NIOMapClient client : r.nodes().values()) {
+            try {
+                client.close();
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+}
@@ -0,0 +1,372 @@
+import nio.AESEncoder;
+import nio.NIOComponent;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+/**
+ * Spreads the commands over several connections to a server, each a {@link NIOMapClient}
+ * with an event loop of its own, so that one client can keep every core of the server busy.
+ * <p>
+ * A background thread pings the connections from time to time, and replaces the ones
+ * that failed or stopped replying. Meanwhile, their commands are routed to the other connections.
+ * <p>
+ * Created by Edsuns@qq.com on 2022/5/2.
+ */
+public class NIOMapPool implements Closeable {
+
+    /**
+     * picks the connection by the hash of the key, which keeps the commands of a key in order
+     * as long as the connection is up, and spreads batches by key
+     */
+    public static final int ROUTE_KEY_HASH = 0;
+    /**
+     * picks the connection with the fewest commands waiting for replies, ignoring the keys
+     */
+    public static final int ROUTE_LEAST_OUTSTANDING = 1;
+
+    public static final long DEFAULT_HEALTH_CHECK_MS = 1000;
+
+    final SocketAddress address;
+    final AESEncoder encoder;
+    final AtomicReferenceArray<NIOMapClient> clients;
+    /**
+     * the commands sent to each connection and not completed yet
+     */
+    private final AtomicInteger[] outstanding;
+    private final AtomicInteger nextClient = new AtomicInteger();
+
+    private int routing = ROUTE_KEY_HASH;
+    private int cipher = AESEncoder.CIPHER_GCM;
+    private long healthCheckMs = DEFAULT_HEALTH_CHECK_MS;
+    private volatile long timeoutMs = NIOComponent.TIMEOUT_MS;
+
+    private ScheduledExecutorService healthCheck;
+    private volatile boolean closed;
+
+    /**
+     * @param connections the connections to open, of {@link NIOComponent#PROTOCOL_BINARY}
+     */
+    public NIOMapPool(SocketAddress address, AESEncoder encoder, int connections) {
+        if (connections <= 0) {
+            throw new IllegalArgumentException("connections " + connections);
+        }
+        this.address = address;
+        this.encoder = encoder;
+        this.clients = new AtomicReferenceArray<>(connections);
+        this.outstanding = new AtomicInteger[connections];
+        for (int i = 0; i < connections; i++) {
+            outstanding[i] = new AtomicInteger();
+        }
+    }
+
+    /**
+     * Must be called before {@link #connect()}.
+     *
+     * @param routing {@link #ROUTE_KEY_HASH} or {@link #ROUTE_LEAST_OUTSTANDING}
+     */
+    public synchronized void setRouting(int routing) {
+        if (healthCheck != null) {
+            throw new IllegalStateException("connected");
+        }
+        if (routing != ROUTE_KEY_HASH && routing != ROUTE_LEAST_OUTSTANDING) {
+            throw new IllegalArgumentException("routing " + routing);
+        }
+        this.routing = routing;
+    }
+
+    /**
+     * Must be called before {@link #connect()}.
+     *
+     * @see NIOComponent#setCipher(int)
+     */
+    public synchronized void setCipher(int cipher) {
+        if (healthCheck != null) {
+            throw new IllegalStateException("connected");
+        }
+        if (!AESEncoder.isSupported(cipher)) {
+            throw new IllegalArgumentException("cipher " + cipher);
+        }
+        this.cipher = cipher;
+    }
+
+    /**
+     * Sets how often the connections are checked, {@link #DEFAULT_HEALTH_CHECK_MS} by default.
+     * Must be called before {@link #connect()}.
+     */
+    public synchronized void setHealthCheckInterval(long interval, TimeUnit unit) {
+        if (healthCheck != null) {
+            throw new IllegalStateException("connected");
+        }
+        if (interval <= 0) {
+            throw new IllegalArgumentException("interval " + interval);
+        }
+        this.healthCheckMs = unit.toMillis(interval);
+    }
+
+    /**
+     * Sets the timeout of the commands, also of the connections opened afterwards.
+     *
+     * @see NIOMapClient#setTimeout(long, TimeUnit)
+     */
+    public void setTimeout(long timeout, TimeUnit unit) {
+        this.timeoutMs = unit.toMillis(timeout);
+        for (int i = 0; i < clients.length(); i++) {
+            NIOMapClient client = clients.get(i);
+            if (client != null) {
+                client.setTimeout(timeout, unit);
+            }
+        }
+    }
+
+    public synchronized void connect() throws IOException {
+        if (healthCheck != null || closed) {
+            throw new IllegalStateException("connected");
+        }
+        for (int i = 0; i < clients.length(); i++) {
+            clients.set(i, open());
+        }
+        healthCheck = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "NIOMapPool-health");
+            thread.setDaemon(true);
+            return thread;
+        });
+        healthCheck.scheduleWithFixedDelay(this::checkHealth, healthCheckMs, healthCheckMs, TimeUnit.MILLISECONDS);
+    }
+
+    private NIOMapClient open() throws IOException {
+        NIOMapClient client = new NIOMapClient(address, encoder);
+        client.setCipher(cipher);
+        client.setTimeout(timeoutMs, TimeUnit.MILLISECONDS);
+        client.connect();
+        return client;
+    }
+
+    /**
+     * Pings every connection at once, then replaces the ones that failed.
+     */
+    void checkHealth() {
+        List<CompletableFuture<String>> pings = new ArrayList<>();
+        for (int i = 0; i < clients.length(); i++) {
+            NIOMapClient client = clients.get(i);
+            pings.add(client.isOpen() ? client.ping() : null);
+        }
+        for (int i = 0; i < pings.size() && !closed; i++) {
+            CompletableFuture<String> ping = pings.get(i);
+            try {
+                if (ping != null) {
+                    // times out by itself, also while still connecting
+                    ping.get();
+                    continue;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (ExecutionException e) {
+                // unhealthy
+            }
+            reconnect(i);
+        }
+    }
+
+    private void reconnect(int i) {
+        NIOMapClient old = clients.get(i);
+        try {
+            old.close();
+            clients.set(i, open());
+        } catch (IOException e) {
+            // retried by the next check
+        }
+    }
+
+    private int route(String key) {
+        int n = clients.length();
+        if (routing == ROUTE_KEY_HASH && key != null) {
+            int h = key.hashCode();
+            int home = Math.floorMod(h ^ (h >>> 16), n);
+            for (int j = 0; j < n; j++) {
+                int i = (home + j) % n;
+                if (clients.get(i).isOpen()) {
+                    return i;
+                }
+            }
+            return home;
+        }
+        // from a different connection each time, so that ties are spread
+        int start = Math.floorMod(nextClient.getAndIncrement(), n), least = start;
+        for (int j = 1; j < n; j++) {
+            int i = (start + j) % n;
+            if (clients.get(i).isOpen() && (outstanding[i].get() < outstanding[least].get()
+                    || !clients.get(least).isOpen())) {
+                least = i;
+            }
+        }
+        return least;
+    }
+
+    private <T> CompletableFuture<T> send(int i, Function<NIOMapClient, CompletableFuture<T>> command) {
+        NIOMapClient client = closed ? null : clients.get(i);
+        if (client == null || !client.isOpen()) {
+            CompletableFuture<T> future = new CompletableFuture<>();
+            future.completeExceptionally(new ClosedChannelException());
+            return future;
+        }
+        outstanding[i].incrementAndGet();
+        CompletableFuture<T> future;
+        try {
+            future = command.apply(client);
+        } catch (RuntimeException e) {
+            outstanding[i].decrementAndGet();
+            throw e;
+        }
+        future.whenComplete((returnVal, e) -> outstanding[i].decrementAndGet());
+        return future;
+    }
+
+    private <T> CompletableFuture<T> send(String key, Function<NIOMapClient, CompletableFuture<T>> command) {
+        if (clients.get(0) == null) {
+            throw new IllegalStateException("not connected");
+        }
+        return send(route(key), command);
+    }
+
+    /**
+     * Sends a batch in parts, one per connection routed to, and merges their replies in the order of the keys.
+     */
+    private <E> CompletableFuture<Map<String, String>> split(
+            Collection<E> items, Function<E, String> keyOf,
+            BiFunction<NIOMapClient, List<E>, CompletableFuture<Map<String, String>>> command) {
+        if (clients.get(0) == null) {
+            throw new IllegalStateException("not connected");
+        }
+        int all = routing == ROUTE_KEY_HASH ? -1 : route(null);
+        return Batches.split(items, keyOf, key -> all >= 0 ? all : route(key),
+                (i, part) -> send(i, client -> command.apply(client, part)));
+    }
+
+    /**
+     * @see NIOMapClient#put(String, String)
+     */
+    public CompletableFuture<String> put(String key, String val) {
+        return send(key, client -> client.put(key, val));
+    }
+
+    /**
+     * @see NIOMapClient#put(String, String, long, TimeUnit)
+     */
+    public CompletableFuture<String> put(String key, String val, long ttl, TimeUnit unit) {
+        return send(key, client -> client.put(key, val, ttl, unit));
+    }
+
+    /**
+     * @see NIOMapClient#get(String)
+     */
+    public CompletableFuture<String> get(String key) {
+        return send(key, client -> client.get(key));
+    }
+
+    /**
+     * @see NIOMapClient#remove(String)
+     */
+    public CompletableFuture<String> remove(String key) {
+        return send(key, client -> client.remove(key));
+    }
+
+    /**
+     * @see NIOMapClient#expire(String, long, TimeUnit)
+     */
+    public CompletableFuture<Boolean> expire(String key, long ttl, TimeUnit unit) {
+        return send(key, client -> client.expire(key, ttl, unit));
+    }
+
+    /**
+     * @see NIOMapClient#ttl(String)
+     */
+    public CompletableFuture<Long> ttl(String key) {
+        return send(key, client -> client.ttl(key));
+    }
+
+    /**
+     * @see NIOMapClient#size()
+     */
+    public CompletableFuture<String> size() {
+        return send((String) null, NIOMapClient::size);
+    }
+
+    /**
+     * Not ordered with the commands still waiting on the other connections.
+     *
+     * @see NIOMapClient#clear()
+     */
+    public CompletableFuture<String> clear() {
+        return send((String) null, NIOMapClient::clear);
+    }
+
+    /**
+     * @see NIOMapClient#mget(Collection)
+     */
+    public CompletableFuture<Map<String, String>> mget(Collection<String> keys) {
+        return split(keys, key -> key, NIOMapClient::mget);
+    }
+
+    /**
+     * @see NIOMapClient#mput(Map)
+     */
+    public CompletableFuture<Map<String, String>> mput(Map<String, String> entries) {
+        return split(entries.entrySet(), Map.Entry::getKey, (client, part) -> {
+            Map<String, String> map = new LinkedHashMap<>(part.size() * 2);
+            for (Map.Entry<String, String> entry : part) {
+                map.put(entry.getKey(), entry.getValue());
+            }
+            return client.mput(map);
+        });
+    }
+
+    /**
+     * @see NIOMapClient#mremove(Collection)
+     */
+    public CompletableFuture<Map<String, String>> mremove(Collection<String> keys) {
+        return split(keys, key -> key, NIOMapClient::mremove);
+    }
+
+    /**
+     * Stops the health checks, and closes the connections, failing their pending commands.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (healthCheck != null) {
+            healthCheck.shutdownNow();
+            try {
+                healthCheck.awaitTermination(timeoutMs, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        IOException failure = null;
+        for (int i = 0; i < clients.length(); i++) {
+            NIOMapClient client = clients.get(i);
+            try {
+                if (client != null) {
+                    client.close();
+                }
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+}
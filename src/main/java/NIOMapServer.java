@@ -1,56 +1,673 @@
 import nio.AESEncoder;
+import nio.Histogram;
 import nio.NIOComponent;
+import store.BoundedStorageEngine;
+import store.DurableStorageEngine;
+import store.ExpiringStorageEngine;
+import store.MapStorageEngine;
+import store.ReplicatedStorageEngine;
+import store.ShardedStorageEngine;
+import store.StorageEngine;
+import store.Utf8Key;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.net.SocketAddress;
-import java.util.HashMap;
-import java.util.LinkedList;
-import java.util.Map;
-import java.util.Queue;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * Created by Edsuns@qq.com on 2022/4/12.
  */
-public class NIOMapServer extends NIOComponent<Queue<String>> {
+public class NIOMapServer extends NIOComponent<Queue<byte[]>> {
 
-    final Map<String, String> map;
+    /**
+     * the snapshot bytes queued for a replica at most, the snapshot waits for the connection beyond
+     */
+    static final int SNAPSHOT_WINDOW = 1024 * 1024 * 4;// 4 MB
+    static final int SNAPSHOT_CHUNK = 1024 * 64;// 64 KB
+    static final long RECONNECT_MS = 1000;
+    /**
+     * the mutations queued for a replica at most, beyond which the replica is dropped to resync
+     */
+    static final long REPLICA_BACKLOG = 1024 * 1024 * 64;// 64 MB
+
+    /**
+     * The commands on the executor run in any order.
+     */
+    public static final int ORDER_NONE = 0;
+    /**
+     * The commands of a single key on the executor run in the order they were received,
+     * the ones of several keys or none still run in any order.
+     */
+    public static final int ORDER_KEY = 1;
+    static final int STRIPES = 64;
+
+    /**
+     * the opcode, the id and the length of the value of a reply
+     */
+    static final int REPLY_HEAD = Byte.BYTES + Integer.BYTES * 2;
+    static final byte[] NO_BYTES = new byte[0];
+
+    /**
+     * Reused by every frame of the thread, the event loops serve a frame at a time.
+     */
+    private static final class Scratch {
+        final Utf8Key key = new Utf8Key();
+        final ByteBuffer head = ByteBuffer.allocate(REPLY_HEAD);
+    }
+
+    private static final ThreadLocal<Scratch> SCRATCH = ThreadLocal.withInitial(Scratch::new);
+
+    final ExpiringStorageEngine storage;
+    /**
+     * under the expiry, so that the keys expired are removed from the replicas too
+     */
+    final ReplicatedStorageEngine replicated;
+    private final Map<ChannelContext<Queue<byte[]>>, Feed> feeds = new ConcurrentHashMap<>();
+    /**
+     * the latency of the commands by opcode, from their dispatch to their reply queued
+     */
+    private final Histogram[] latencies = new Histogram[MapCodec.COMMANDS.length];
+    /**
+     * the replies queued by all the connections
+     */
+    private final LongAdder replies = new LongAdder();
+    private final LongAdder executing = new LongAdder();
+    /**
+     * the commands refused with an {@link MapCodec#ERROR}
+     */
+    private final LongAdder failed = new LongAdder();
+
+    private volatile Executor executor;
+    private int ordering = ORDER_NONE;
+    private SerialExecutor[] stripes;
+
+    private volatile SocketAddress primary;
+    private volatile ReplicaLink link;
+    /**
+     * only used by the boss loop
+     */
+    private long linkOpenedMs;
 
     protected NIOMapServer(SocketAddress address, AESEncoder encoder) {
-        this(address, encoder, new HashMap<>());
+        this(address, encoder, new ShardedStorageEngine());
     }
 
     protected NIOMapServer(SocketAddress address, AESEncoder encoder, Map<String, String> map) {
-        super(address, true, encoder, LinkedList::new);
-        this.map = map;
+        this(address, encoder, new MapStorageEngine(map));
+    }
+
+    /**
+     * Keys are given their time to live by an {@link ExpiringStorageEngine} over {@code storage},
+     * whose active expiry is run by the boss loop.
+     */
+    protected NIOMapServer(SocketAddress address, AESEncoder encoder, StorageEngine storage) {
+        // replies are also queued by the executor
+        super(address, true, encoder, ConcurrentLinkedQueue::new);
+        this.replicated = new ReplicatedStorageEngine(storage);
+        this.storage = new ExpiringStorageEngine(replicated);
+        for (byte opcode = MapCodec.PUT; opcode < latencies.length; opcode++) {
+            if (opcode != MapCodec.SYNC && opcode != MapCodec.ACK && opcode != MapCodec.SYNCED
+                    && opcode != MapCodec.ERROR) {
+                latencies[opcode] = metrics.histogram("command." + MapCodec.COMMANDS[opcode] + ".nanos");
+            }
+        }
+        metrics.gauge("server.replies", replies::sum);
+        metrics.gauge("server.executing", executing::sum);
+        metrics.gauge("server.failed", failed::sum);
+        metrics.gauge("storage.size", this.storage::size);
+        metrics.gauge("storage.expired", this.storage::expiredCount);
+        BoundedStorageEngine bounded = BoundedStorageEngine.find(storage);
+        if (bounded != null) {
+            metrics.gauge("storage.hits", bounded::hitCount);
+            metrics.gauge("storage.misses", bounded::missCount);
+            metrics.gauge("storage.evictions", bounded::evictionCount);
+        }
+        metrics.gauge("replication.sequence", replicated::sequence);
+        metrics.gauge("replication.replicas", feeds::size);
+        metrics.gauge("replication.lag", this::maxReplicationLag);
+    }
+
+    /**
+     * Makes this server a read-only replica of the server at {@code primary}: it loads a snapshot
+     * of the primary then follows its mutations, and resyncs whenever the connection fails.
+     * Must be called before {@link #connect()}.
+     */
+    public synchronized void setPrimary(SocketAddress primary) {
+        if (isOpen()) {
+            throw new IllegalStateException("connected");
+        }
+        this.primary = primary;
+    }
+
+    /**
+     * Executes the commands of the {@link #PROTOCOL_BINARY} connections on {@code executor} instead
+     * of the event loops, which then only decode them, so that heavy commands don't hold up the others.
+     * The executor, such as a fixed pool or a {@link java.util.concurrent.ForkJoinPool}, is left to the caller
+     * to shut down. The {@link #PROTOCOL_TEXT} connections stay on the event loops, since their replies
+     * are matched by order. Must be called before {@link #connect()}.
+     * <p>
+     * Required by a {@link DurableStorageEngine} with {@link store.WriteAheadLog#FSYNC_ALWAYS},
+     * whose mutations would otherwise hold up the event loops for as long as an fsync takes.
+     *
+     * @param executor {@code null} to execute on the event loops, the default
+     * @param ordering {@link #ORDER_NONE} or {@link #ORDER_KEY}
+     */
+    public synchronized void setExecutor(Executor executor, int ordering) {
+        if (isOpen()) {
+            throw new IllegalStateException("connected");
+        }
+        if (ordering != ORDER_NONE && ordering != ORDER_KEY) {
+            throw new IllegalArgumentException("ordering " + ordering);
+        }
+        this.ordering = ordering;
+        if (executor != null && ordering == ORDER_KEY) {
+            SerialExecutor[] s = new SerialExecutor[STRIPES];
+            for (int i = 0; i < s.length; i++) {
+                s[i] = new SerialExecutor(executor);
+            }
+            this.stripes = s;
+        }
+        this.executor = executor;
+    }
+
+    @Override
+    public synchronized void connect() throws IOException {
+        DurableStorageEngine durable = DurableStorageEngine.find(storage);
+        if (durable != null && durable.isBlocking() && executor == null) {
+            throw new IllegalStateException("FSYNC_ALWAYS without an executor");
+        }
+        super.connect();
+        if (primary != null) {
+            openLink();
+        }
+    }
+
+    private void openLink() throws IOException {
+        linkOpenedMs = System.currentTimeMillis();
+        ReplicaLink l = new ReplicaLink(primary, encoder, storage);
+        link = l;
+        l.connect();
+    }
+
+    /**
+     * @return the sequence of the last mutation of the primary applied,
+     * {@code -1} while loading the snapshot or if this server isn't a replica
+     */
+    public long appliedSequence() {
+        ReplicaLink l = link;
+        return l == null ? -1 : l.applied();
+    }
+
+    /**
+     * @return by the address of each replica, the mutations it has yet to acknowledge,
+     * {@code -1} while it loads the snapshot
+     */
+    public Map<String, Long> replicationLags() {
+        long sequence = replicated.sequence();
+        Map<String, Long> lags = new LinkedHashMap<>();
+        for (Feed feed : feeds.values()) {
+            long acked = feed.acked;
+            lags.put(String.valueOf(feed.context.channel.socket().getRemoteSocketAddress()),
+                    acked < 0 ? -1 : Math.max(0, sequence - acked));
+        }
+        return lags;
+    }
+
+    /**
+     * @return the most mutations a replica has yet to acknowledge, counted from the start of its snapshot
+     * while it loads it, {@code 0} without replicas
+     */
+    long maxReplicationLag() {
+        long sequence = replicated.sequence();
+        long max = 0;
+        for (Feed feed : feeds.values()) {
+            long acked = feed.acked;
+            max = Math.max(max, sequence - (acked < 0 ? feed.start : acked));
+        }
+        return max;
     }
 
     @Override
-    protected void onMessage(ChannelContext<Queue<String>> context, String message) {
-        String returnVal;
+    protected void onMessage(ChannelContext<Queue<byte[]>> context, String message) {
+        long start = System.nanoTime();
         String[] cmd = message.split(" ");
-        if ("put".equals(cmd[0])) {
-            returnVal = map.put(cmd[1], cmd[2]);
-        } else if ("get".equals(cmd[0])) {
-            returnVal = map.get(cmd[1]);
-        } else if ("rm".equals(cmd[0])) {
-            returnVal = map.remove(cmd[1]);
-        } else if ("size".equals(cmd[0])) {
-            returnVal = String.valueOf(map.size());
-        } else if ("clear".equals(cmd[0])) {
-            returnVal = String.valueOf(map.size());
-            map.clear();
-        } else {
-            throw new UnsupportedOperationException(message);
+        byte opcode = MapCodec.opcode(cmd[0]);
+        String returnVal = execute(opcode, Arrays.copyOfRange(cmd, 1, cmd.length));
+        context.attachment.add((returnVal != null ? returnVal : "null").getBytes(StandardCharsets.UTF_8));
+        replies.increment();
+        latencies[opcode].record(System.nanoTime() - start);
+        requestWrite(context);
+    }
+
+    /**
+     * Decodes the frame on the event loop, and executes it there or on the executor.
+     */
+    @Override
+    protected void onMessage(ChannelContext<Queue<byte[]>> context, ByteBuffer message) {
+        long start = System.nanoTime();
+        byte opcode = message.get();
+        int id = message.getInt();
+        if (opcode == MapCodec.GET && executor == null) {
+            get(context, id, message, start);
+            return;
+        }
+        String[] fields = MapCodec.readFields(message);
+        switch (opcode) {
+            case MapCodec.SYNC:
+                startFeed(context);
+                return;
+            case MapCodec.ACK:
+                Feed feed = feeds.get(context);
+                if (feed != null) {
+                    feed.acked = Long.parseLong(fields[0]);
+                }
+                return;
+        }
+        Executor e = executor;
+        if (e == null) {
+            reply(context, opcode, executeFrame(opcode, id, fields), start);
+            return;
+        }
+        executing.increment();
+        context.inFlight.incrementAndGet();
+        executor(e, opcode, fields).execute(() -> {
+            byte[] frame;
+            try {
+                frame = executeFrame(opcode, id, fields);
+            } catch (RuntimeException ex) {
+                // out of step, as when the event loop fails
+                fail(context);
+                return;
+            } finally {
+                executing.decrement();
+                // counted out before the reply is queued, whose write lets the loop read again
+                context.inFlight.decrementAndGet();
+            }
+            reply(context, opcode, frame, start);
+        });
+    }
+
+    /**
+     * The hot path: the key is looked up in the frame, and the reply is written from the stored value,
+     * so that neither takes an array of its own.
+     */
+    private void get(ChannelContext<Queue<byte[]>> context, int id, ByteBuffer message, long start) {
+        Scratch scratch = SCRATCH.get();
+        int length = message.getInt();
+        if (length == MapCodec.NULL_LENGTH) {
+            // refused as by the other commands
+            reply(context, MapCodec.GET, executeFrame(MapCodec.GET, id, new String[]{null}), start);
+            return;
+        }
+        byte[] val = storage.getUtf8(scratch.key.set(message, message.position(), length));
+        ByteBuffer head = scratch.head;
+        head.clear();
+        head.put(MapCodec.GET).putInt(id).putInt(val == null ? MapCodec.NULL_LENGTH : val.length);
+        try {
+            write(context, head.array(), head.position(), val == null ? NO_BYTES : val);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        latencies[MapCodec.GET].record(System.nanoTime() - start);
+    }
+
+    /**
+     * @return the stripe of the key for the commands of a single key when they are ordered
+     */
+    private Executor executor(Executor e, byte opcode, String[] fields) {
+        if (ordering != ORDER_KEY) {
+            return e;
+        }
+        switch (opcode) {
+            case MapCodec.PUT:
+            case MapCodec.GET:
+            case MapCodec.RM:
+            case MapCodec.EXPIRE:
+            case MapCodec.TTL:
+                if (fields.length == 0 || fields[0] == null) {
+                    // refused once executed, nothing to order
+                    return e;
+                }
+                int h = fields[0].hashCode();
+                return stripes[(h ^ (h >>> 16)) & (stripes.length - 1)];
+            default:
+                return e;
+        }
+    }
+
+    private String[] executeBinary(byte opcode, String[] fields) {
+        switch (opcode) {
+            case MapCodec.MGET:
+            case MapCodec.MPUT:
+            case MapCodec.MRM:
+                return executeBatch(opcode, fields);
+            default:
+                return new String[]{execute(opcode, fields)};
+        }
+    }
+
+    /**
+     * @return the key shared with the clients, which a {@link BlockingMapServer} in front of this server takes too
+     */
+    AESEncoder encoder() {
+        return encoder;
+    }
+
+    /**
+     * Executes a command for a {@link BlockingMapServer}, on the thread of its connection.
+     *
+     * @return the reply frame
+     */
+    byte[] executeBlocking(byte opcode, int id, String[] fields) {
+        long start = System.nanoTime();
+        byte[] frame = executeFrame(opcode, id, fields);
+        record(opcode, start);
+        return frame;
+    }
+
+    /**
+     * @return the reply frame, or an {@link MapCodec#ERROR} if the command is refused,
+     * which leaves the connection in step unlike the other failures
+     */
+    private byte[] executeFrame(byte opcode, int id, String[] fields) {
+        try {
+            return MapCodec.encode(opcode, id, executeBinary(opcode, fields));
+        } catch (UnsupportedOperationException | IllegalArgumentException e) {
+            failed.increment();
+            return MapCodec.encodeError(id, e);
+        }
+    }
+
+    /**
+     * Queues the reply, from the event loop or the executor.
+     */
+    private void reply(ChannelContext<Queue<byte[]>> context, byte opcode, byte[] frame, long start) {
+        // replies carry the id of their request, so they may be completed in any order
+        context.attachment.add(frame);
+        replies.increment();
+        record(opcode, start);
+        requestWrite(context);
+    }
+
+    /**
+     * Records the latency of a command, but not of the unknown opcodes refused.
+     */
+    private void record(byte opcode, long start) {
+        Histogram latency = opcode >= 0 && opcode < latencies.length ? latencies[opcode] : null;
+        if (latency != null) {
+            latency.record(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Replicas only read, their entries come from the primary.
+     */
+    private void checkWritable(byte opcode) {
+        if (primary != null && opcode != MapCodec.GET && opcode != MapCodec.MGET && opcode != MapCodec.SIZE
+                && opcode != MapCodec.TTL && opcode != MapCodec.PING && opcode != MapCodec.STATS) {
+            throw new UnsupportedOperationException("read-only replica");
+        }
+    }
+
+    /**
+     * Executes a whole batch in one pass, replied with a single frame.
+     */
+    private String[] executeBatch(byte opcode, String[] fields) {
+        checkWritable(opcode);
+        if (opcode == MapCodec.MPUT) {
+            if (fields.length % 2 != 0) {
+                throw new IllegalArgumentException("mput of odd fields");
+            }
+            String[] returnVal = new String[fields.length / 2];
+            for (int i = 0; i < returnVal.length; i++) {
+                returnVal[i] = storage.put(fields[i * 2], fields[i * 2 + 1]);
+            }
+            return returnVal;
+        }
+        String[] returnVal = new String[fields.length];
+        for (int i = 0; i < fields.length; i++) {
+            returnVal[i] = opcode == MapCodec.MGET ? storage.get(fields[i]) : storage.remove(fields[i]);
+        }
+        return returnVal;
+    }
+
+    /**
+     * @param args the key, then the value and the time to live if any
+     */
+    private String execute(byte opcode, String[] args) {
+        checkWritable(opcode);
+        switch (opcode) {
+            case MapCodec.PUT:
+                if (args.length > 2) {
+                    return storage.put(key(args), args[1], Long.parseLong(args[2]));
+                }
+                return storage.put(key(args), args[1]);
+            case MapCodec.GET:
+                return storage.get(key(args));
+            case MapCodec.RM:
+                return storage.remove(key(args));
+            case MapCodec.SIZE:
+                return String.valueOf(storage.size());
+            case MapCodec.CLEAR:
+                return String.valueOf(storage.clear());
+            case MapCodec.EXPIRE:
+                return String.valueOf(storage.expire(key(args), Long.parseLong(args[1])));
+            case MapCodec.TTL:
+                return String.valueOf(storage.ttl(key(args)));
+            case MapCodec.PING:
+                return "pong";
+            case MapCodec.STATS:
+                return metrics.text();
+            default:
+                throw new UnsupportedOperationException("opcode " + opcode);
+        }
+    }
+
+    /**
+     * @return the key of a command of a single key, refused if missing
+     */
+    private static String key(String[] args) {
+        if (args.length == 0 || args[0] == null) {
+            throw new IllegalArgumentException("null key");
+        }
+        return args[0];
+    }
+
+    private void startFeed(ChannelContext<Queue<byte[]>> context) {
+        Feed feed = new Feed(context);
+        if (feeds.putIfAbsent(context, feed) != null) {
+            return;
+        }
+        feed.start = replicated.subscribe(feed);
+        Thread thread = new Thread(feed::sendSnapshot, "NIOMap-sync");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * The replication stream of a replica: the snapshot, sent by a thread of its own,
+     * then the mutations queued meanwhile and afterwards.
+     */
+    private final class Feed implements ReplicatedStorageEngine.Listener {
+        final ChannelContext<Queue<byte[]>> context;
+        final Queue<byte[]> snapshot = new ConcurrentLinkedQueue<>();
+        final Queue<byte[]> mutations = new ConcurrentLinkedQueue<>();
+        final Semaphore window = new Semaphore(SNAPSHOT_WINDOW);
+        final AtomicLong backlog = new AtomicLong();
+        volatile boolean overflowed;
+        volatile long start;
+        volatile boolean snapshotDone;
+        volatile long acked = -1;
+
+        Feed(ChannelContext<Queue<byte[]>> context) {
+            this.context = context;
+        }
+
+        void sendSnapshot() {
+            if (!offer(MapCodec.encode(MapCodec.SYNC, 0, String.valueOf(start)))) {
+                return;
+            }
+            List<String> chunk = new ArrayList<>();
+            int[] bytes = {0};
+            boolean[] failed = {false};
+            // the parts come with no lock held, the window may be waited for
+            storage.forEachPart(part -> {
+                for (int i = 0; i < part.size() && !failed[0]; i += 2) {
+                    String key = part.get(i), val = part.get(i + 1);
+                    chunk.add(key);
+                    chunk.add(val);
+                    bytes[0] += key.length() + val.length();
+                    if (bytes[0] >= SNAPSHOT_CHUNK) {
+                        failed[0] = !offer(MapCodec.encode(MapCodec.MPUT, 0, chunk.toArray(new String[0])));
+                        chunk.clear();
+                        bytes[0] = 0;
+                    }
+                }
+            });
+            if (failed[0] || !chunk.isEmpty() && !offer(MapCodec.encode(MapCodec.MPUT, 0, chunk.toArray(new String[0])))
+                    || !offer(MapCodec.encode(MapCodec.SYNCED, 0, String.valueOf(start)))) {
+                return;
+            }
+            snapshotDone = true;
+            requestWrite(context);
+        }
+
+        /**
+         * Waits for the window while the replica is connected.
+         */
+        private boolean offer(byte[] frame) {
+            try {
+                while (!window.tryAcquire(permits(frame), RECONNECT_MS, TimeUnit.MILLISECONDS)) {
+                    if (!context.channel.isOpen()) {
+                        return false;
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            snapshot.add(frame);
+            requestWrite(context);
+            return true;
+        }
+
+        int permits(byte[] frame) {
+            return Math.min(frame.length, SNAPSHOT_WINDOW);
+        }
+
+        private void stream(byte[] frame) {
+            if (overflowed) {
+                return;
+            }
+            if (backlog.addAndGet(frame.length) > REPLICA_BACKLOG) {
+                // the replica can't keep up, the stream is broken anyway
+                overflowed = true;
+                mutations.clear();
+                return;
+            }
+            mutations.add(frame);
+            requestWrite(context);
+        }
+
+        @Override
+        public void onPut(long sequence, String key, String val) {
+            stream(MapCodec.encode(MapCodec.PUT, 0, String.valueOf(sequence), key, val));
+        }
+
+        @Override
+        public void onRemove(long sequence, String key) {
+            stream(MapCodec.encode(MapCodec.RM, 0, String.valueOf(sequence), key));
+        }
+
+        @Override
+        public void onClear(long sequence) {
+            stream(MapCodec.encode(MapCodec.CLEAR, 0, String.valueOf(sequence)));
+        }
+    }
+
+    @Override
+    protected long tickMs() {
+        return ExpiringStorageEngine.TICK_MS;
+    }
+
+    @Override
+    protected void onTick() {
+        storage.tick();
+        // the listeners of the replicas gone are dropped here, never by the listeners themselves
+        for (Iterator<Feed> iterator = feeds.values().iterator(); iterator.hasNext(); ) {
+            Feed feed = iterator.next();
+            if (feed.overflowed) {
+                // the feed goes once the loop of the replica has closed it
+                closeConnection(feed.context);
+            }
+            if (!feed.context.channel.isOpen()) {
+                iterator.remove();
+                replicated.unsubscribe(feed);
+            }
+        }
+        ReplicaLink l = link;
+        if (l != null && !l.isOpen() && System.currentTimeMillis() - linkOpenedMs >= RECONNECT_MS) {
+            try {
+                openLink();
+            } catch (IOException e) {
+                // retried by a later tick
+            }
         }
+    }
 
-        context.attachment.add(returnVal != null ? returnVal : "null");
+    /**
+     * Also closes the storage if it needs to, once the event loops have stopped using it.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            super.close();
+            // no tick reopens it once the boss loop has stopped
+            ReplicaLink l = link;
+            if (l != null) {
+                l.close();
+            }
+        } finally {
+            storage.close();
+        }
     }
 
     @Override
-    protected void onWritable(ChannelContext<Queue<String>> context) throws IOException {
-        String returnVal;
+    protected void onWritable(ChannelContext<Queue<byte[]>> context) throws IOException {
+        byte[] returnVal;
         while ((returnVal = context.attachment.poll()) != null) {
+            replies.decrement();
             write(context, returnVal);
         }
+        Feed feed = feeds.isEmpty() ? null : feeds.get(context);
+        if (feed == null) {
+            return;
+        }
+        // the stream waits in the queues of the feed while the connection is backed up
+        byte[] frame;
+        while (!isOutputFull(context) && (frame = feed.snapshot.poll()) != null) {
+            write(context, frame);
+            feed.window.release(feed.permits(frame));
+        }
+        // the mutations follow the whole snapshot
+        if (feed.snapshotDone && feed.snapshot.isEmpty()) {
+            while (!isOutputFull(context) && (frame = feed.mutations.poll()) != null) {
+                feed.backlog.addAndGet(-frame.length);
+                write(context, frame);
+            }
+        }
+        if (!feed.snapshot.isEmpty() || feed.snapshotDone && !feed.mutations.isEmpty()) {
+            requestWrite(context);
+        }
     }
 }
@@ -0,0 +1,110 @@
+import nio.AESEncoder;
+import nio.NIOComponent;
+import store.StorageEngine;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.LinkedList;
+import java.util.Queue;
+
+/**
+ * The connection of a replica to its primary: asks for the replication stream with {@link MapCodec#SYNC},
+ * applies it to the storage of the replica, and acknowledges the sequence applied every tick.
+ * <p>
+ * The stream starts with {@link MapCodec#SYNC} and the sequence of the snapshot, which clears the storage,
+ * then the snapshot in {@link MapCodec#MPUT} frames, {@link MapCodec#SYNCED}, and the mutations
+ * in {@link MapCodec#PUT}, {@link MapCodec#RM} and {@link MapCodec#CLEAR} frames led by their sequence.
+ * <p>
+ * Created by Edsuns@qq.com on 2022/5/4.
+ */
+class ReplicaLink extends NIOComponent<Queue<byte[]>> {
+
+    static final long ACK_MS = 100;
+
+    final StorageEngine storage;
+    /**
+     * the sequence of the last mutation applied, {@code -1} until the snapshot is loaded
+     */
+    private volatile long applied = -1;
+    /**
+     * only used by the event loop
+     */
+    private long acked = -1;
+    private ChannelContext<Queue<byte[]>> context;
+
+    ReplicaLink(SocketAddress primary, AESEncoder encoder, StorageEngine storage) {
+        super(primary, false, encoder, LinkedList::new, PROTOCOL_BINARY);
+        this.storage = storage;
+    }
+
+    long applied() {
+        return applied;
+    }
+
+    @Override
+    protected void onConnected(ChannelContext<Queue<byte[]>> context) {
+        this.context = context;
+        context.attachment.add(MapCodec.encode(MapCodec.SYNC, 0));
+    }
+
+    @Override
+    protected void onMessage(ChannelContext<Queue<byte[]>> context, String message) {
+        throw new UnsupportedOperationException("text protocol");
+    }
+
+    @Override
+    protected void onMessage(ChannelContext<Queue<byte[]>> context, ByteBuffer message) {
+        byte opcode = message.get();
+        message.getInt();// id
+        String[] fields = MapCodec.readFields(message);
+        switch (opcode) {
+            case MapCodec.SYNC:
+                applied = -1;
+                storage.clear();
+                return;
+            case MapCodec.MPUT:
+                for (int i = 0; i + 1 < fields.length; i += 2) {
+                    storage.put(fields[i], fields[i + 1]);
+                }
+                return;
+            case MapCodec.SYNCED:
+                break;
+            case MapCodec.PUT:
+                storage.put(fields[1], fields[2]);
+                break;
+            case MapCodec.RM:
+                storage.remove(fields[1]);
+                break;
+            case MapCodec.CLEAR:
+                storage.clear();
+                break;
+            default:
+                throw new UnsupportedOperationException("opcode " + opcode);
+        }
+        applied = Long.parseLong(fields[0]);
+    }
+
+    @Override
+    protected long tickMs() {
+        return ACK_MS;
+    }
+
+    @Override
+    protected void onTick() {
+        long a = applied;
+        if (context != null && a != acked) {
+            context.attachment.add(MapCodec.encode(MapCodec.ACK, 0, String.valueOf(a)));
+            acked = a;
+            requestWrite(context);
+        }
+    }
+
+    @Override
+    protected void onWritable(ChannelContext<Queue<byte[]>> context) throws IOException {
+        byte[] frame;
+        while ((frame = context.attachment.poll()) != null) {
+            write(context, frame);
+        }
+    }
+}
@@ -1,12 +1,14 @@
 package nio;
 
 import javax.crypto.*;
+import javax.crypto.spec.GCMParameterSpec;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
+import java.util.Arrays;
 import java.util.Base64;
 
 /**
@@ -14,15 +16,55 @@ import java.util.Base64;
  */
 public class AESEncoder {
 
+    /**
+     * The original mode, every message is padded and encrypted with the same IV.
+     */
+    public static final int CIPHER_CBC = 0;
+    /**
+     * Authenticated, every message gets a nonce of its own derived from a counter,
+     * at the cost of a 16 bytes tag.
+     */
+    public static final int CIPHER_GCM = 1;
+    /**
+     * A key stream running across the messages of each direction, without any overhead.
+     * The messages must be decrypted in the order they were encrypted.
+     */
+    public static final int CIPHER_CTR = 2;
+    /**
+     * No encryption after the handshake, which is still encrypted with {@link #CIPHER_CBC},
+     * only for trusted networks. Servers must allow it.
+     */
+    public static final int CIPHER_NONE = 3;
+
     static final String ALGORITHM = "AES/CBC/PKCS5Padding";
+    static final String ALGORITHM_GCM = "AES/GCM/NoPadding";
+    static final String ALGORITHM_CTR = "AES/CTR/NoPadding";
     static final String ALGORITHM_RAW = ALGORITHM.substring(0, ALGORITHM.indexOf('/'));
+    static final int BLOCK_SIZE = 16;
+    static final int GCM_TAG_LENGTH = 16;
+    static final int GCM_NONCE_LENGTH = 12;
+    /**
+     * flipped in the IV of the messages sent by the server, so that the two directions
+     * never share a nonce or a key stream
+     */
+    static final int SERVER_DIRECTION = 0x80;
 
     final SecretKey secretKey;
     final IvParameterSpec iv;
+    final int cipher;
 
     final Cipher encCipher;
     final Cipher decCipher;
 
+    /*
+     * GCM only, the nonces are the IV of their direction xor the count of the messages
+     */
+    private final byte[] encIv;
+    private final byte[] decIv;
+    private final byte[] nonce = new byte[GCM_NONCE_LENGTH];
+    private long encCounter;
+    private long decCounter;
+
     /**
      * @param secretKey base64 encoded {@link SecretKey}
      * @param iv        base64 encoded {@link IvParameterSpec}
@@ -37,27 +79,194 @@ public class AESEncoder {
     }
 
     public AESEncoder(SecretKey secretKey, IvParameterSpec iv) {
+        this(secretKey, iv, CIPHER_CBC, false);
+    }
+
+    public AESEncoder(byte[] secretKey, byte[] iv, int cipher, boolean server) {
+        this(new SecretKeySpec(secretKey, ALGORITHM_RAW), new IvParameterSpec(iv), cipher, server);
+    }
+
+    /**
+     * @param cipher {@link #CIPHER_CBC}, {@link #CIPHER_GCM}, {@link #CIPHER_CTR} or {@link #CIPHER_NONE}
+     * @param server whether this is the server end of the connection,
+     *               which encrypts with the IV of the other direction
+     */
+    public AESEncoder(SecretKey secretKey, IvParameterSpec iv, int cipher, boolean server) {
         this.secretKey = secretKey;
         this.iv = iv;
+        this.cipher = cipher;
 
+        byte[] clientIv = iv.getIV();
+        byte[] serverIv = clientIv.clone();
+        serverIv[0] ^= SERVER_DIRECTION;
+        this.encIv = server ? serverIv : clientIv;
+        this.decIv = server ? clientIv : serverIv;
         try {
-            encCipher = Cipher.getInstance(ALGORITHM);
-            encCipher.init(Cipher.ENCRYPT_MODE, secretKey, iv, SecureRandomHolder.INSTANCE);
-
-            decCipher = Cipher.getInstance(ALGORITHM);
-            decCipher.init(Cipher.DECRYPT_MODE, secretKey, iv, SecureRandomHolder.INSTANCE);
+            switch (cipher) {
+                case CIPHER_CBC:
+                    encCipher = Cipher.getInstance(ALGORITHM);
+                    encCipher.init(Cipher.ENCRYPT_MODE, secretKey, iv, SecureRandomHolder.INSTANCE);
+                    decCipher = Cipher.getInstance(ALGORITHM);
+                    decCipher.init(Cipher.DECRYPT_MODE, secretKey, iv, SecureRandomHolder.INSTANCE);
+                    break;
+                case CIPHER_GCM:
+                    // initialized with a new nonce for every message
+                    encCipher = Cipher.getInstance(ALGORITHM_GCM);
+                    decCipher = Cipher.getInstance(ALGORITHM_GCM);
+                    break;
+                case CIPHER_CTR:
+                    encCipher = Cipher.getInstance(ALGORITHM_CTR);
+                    encCipher.init(Cipher.ENCRYPT_MODE, secretKey, new IvParameterSpec(encIv));
+                    decCipher = Cipher.getInstance(ALGORITHM_CTR);
+                    decCipher.init(Cipher.DECRYPT_MODE, secretKey, new IvParameterSpec(decIv));
+                    break;
+                case CIPHER_NONE:
+                    encCipher = decCipher = null;
+                    break;
+                default:
+                    throw new IllegalArgumentException("cipher " + cipher);
+            }
         } catch (NoSuchAlgorithmException | NoSuchPaddingException
                  | InvalidAlgorithmParameterException | InvalidKeyException e) {
             throw new IllegalArgumentException(e);
         }
     }
 
+    public static boolean isSupported(int cipher) {
+        return cipher >= CIPHER_CBC && cipher <= CIPHER_NONE;
+    }
+
+    private Cipher encCipher() throws InvalidKeyException {
+        if (cipher == CIPHER_GCM) {
+            initGcm(encCipher, Cipher.ENCRYPT_MODE, encIv, encCounter++);
+        }
+        return encCipher;
+    }
+
+    private Cipher decCipher() throws InvalidKeyException {
+        if (cipher == CIPHER_GCM) {
+            initGcm(decCipher, Cipher.DECRYPT_MODE, decIv, decCounter++);
+        }
+        return decCipher;
+    }
+
+    private void initGcm(Cipher c, int mode, byte[] iv, long counter) throws InvalidKeyException {
+        System.arraycopy(iv, 0, nonce, 0, GCM_NONCE_LENGTH);
+        for (int i = 0; i < Long.BYTES; i++) {
+            nonce[GCM_NONCE_LENGTH - 1 - i] ^= (byte) (counter >>> (i * 8));
+        }
+        try {
+            c.init(mode, secretKey, new GCMParameterSpec(GCM_TAG_LENGTH * 8, nonce));
+        } catch (InvalidAlgorithmParameterException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
     public byte[] encrypt(byte[] plain) throws BadPaddingException, IllegalBlockSizeException, InvalidKeyException {
-        return encCipher.doFinal(plain);
+        if (cipher == CIPHER_NONE) {
+            return plain;
+        }
+        if (cipher == CIPHER_CTR) {
+            return update(encCipher, plain, 0, plain.length);
+        }
+        return encCipher().doFinal(plain);
+    }
+
+    /**
+     * @return the length written into {@code output}
+     */
+    public int encrypt(byte[] plain, byte[] output, int outputOffset)
+            throws BadPaddingException, IllegalBlockSizeException, InvalidKeyException, ShortBufferException {
+        if (cipher == CIPHER_NONE) {
+            System.arraycopy(plain, 0, output, outputOffset, plain.length);
+            return plain.length;
+        }
+        if (cipher == CIPHER_CTR) {
+            return encCipher.update(plain, 0, plain.length, output, outputOffset);
+        }
+        return encCipher().doFinal(plain, 0, plain.length, output, outputOffset);
+    }
+
+    /**
+     * Encrypts the first {@code headLength} bytes of {@code head} followed by {@code body} as a single message,
+     * without joining them first.
+     *
+     * @return the length written into {@code output}
+     */
+    public int encrypt(byte[] head, int headLength, byte[] body, byte[] output, int outputOffset)
+            throws BadPaddingException, IllegalBlockSizeException, InvalidKeyException, ShortBufferException {
+        if (cipher == CIPHER_NONE) {
+            System.arraycopy(head, 0, output, outputOffset, headLength);
+            System.arraycopy(body, 0, output, outputOffset + headLength, body.length);
+            return headLength + body.length;
+        }
+        if (cipher == CIPHER_CTR) {
+            int n = encCipher.update(head, 0, headLength, output, outputOffset);
+            return n + encCipher.update(body, 0, body.length, output, outputOffset + n);
+        }
+        Cipher c = encCipher();
+        int n = c.update(head, 0, headLength, output, outputOffset);
+        return n + c.doFinal(body, 0, body.length, output, outputOffset + n);
+    }
+
+    /**
+     * @return the upper bound of the encrypted length of {@code length} plain bytes
+     */
+    public int encryptedSize(int length) {
+        switch (cipher) {
+            case CIPHER_GCM:
+                return length + GCM_TAG_LENGTH;
+            case CIPHER_CTR:
+            case CIPHER_NONE:
+                return length;
+            default:
+                return (length / BLOCK_SIZE + 1) * BLOCK_SIZE;
+        }
     }
 
     public byte[] decrypt(byte[] bytes) throws BadPaddingException, IllegalBlockSizeException, InvalidKeyException {
-        return decCipher.doFinal(bytes);
+        return decrypt(bytes, 0, bytes.length);
+    }
+
+    public byte[] decrypt(byte[] bytes, int offset, int length)
+            throws BadPaddingException, IllegalBlockSizeException, InvalidKeyException {
+        if (cipher == CIPHER_NONE) {
+            return Arrays.copyOfRange(bytes, offset, offset + length);
+        }
+        if (cipher == CIPHER_CTR) {
+            return update(decCipher, bytes, offset, length);
+        }
+        return decCipher().doFinal(bytes, offset, length);
+    }
+
+    /**
+     * May decrypt in place, with {@code output} being {@code bytes}.
+     *
+     * @return the length written into {@code output}
+     */
+    public int decrypt(byte[] bytes, int length, byte[] output, int outputOffset)
+            throws BadPaddingException, IllegalBlockSizeException, InvalidKeyException, ShortBufferException {
+        if (cipher == CIPHER_NONE) {
+            System.arraycopy(bytes, 0, output, outputOffset, length);
+            return length;
+        }
+        if (cipher == CIPHER_CTR) {
+            return decCipher.update(bytes, 0, length, output, outputOffset);
+        }
+        return decCipher().doFinal(bytes, 0, length, output, outputOffset);
+    }
+
+    /**
+     * @return the upper bound of the decrypted length of {@code length} encrypted bytes
+     */
+    public int decryptedSize(int length) {
+        return cipher == CIPHER_GCM ? Math.max(0, length - GCM_TAG_LENGTH) : length;
+    }
+
+    private static byte[] update(Cipher c, byte[] bytes, int offset, int length) {
+        byte[] result = c.update(bytes, offset, length);
+        // null for no input
+        return result != null ? result : new byte[0];
     }
 
     public String stringify() {
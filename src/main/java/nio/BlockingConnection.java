@@ -0,0 +1,250 @@
+package nio;
+
+import java.io.*;
+import java.net.ConnectException;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.UUID;
+
+/**
+ * A {@link NIOComponent#PROTOCOL_BINARY} connection over a blocking socket, for a thread per connection.
+ * The handshake and the frames are those of the event loops, so the other end may be a {@link NIOComponent}.
+ * <p>
+ * Frames are read by a thread at a time, and written by a thread at a time.
+ * <p>
+ * Created by Edsuns@qq.com on 2022/5/8.
+ */
+public final class BlockingConnection implements Closeable {
+
+    /**
+     * the longest handshake frame, far beyond an escaped key or IV with its options
+     */
+    static final int MAX_HANDSHAKE_LENGTH = 1024;
+
+    private final Socket socket;
+    private final DataInputStream in;
+    private final DataOutputStream out;
+    private final Metrics metrics;
+    private AESEncoder encoder;
+
+    private BlockingConnection(Socket socket, Metrics metrics) throws IOException {
+        this.socket = socket;
+        this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), InputOutput.BUFFER_SIZE));
+        this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), InputOutput.BUFFER_SIZE));
+        this.metrics = metrics;
+    }
+
+    /**
+     * Connects to a server and proposes {@code cipher}, as {@link NIOComponent#setCipher(int)}.
+     *
+     * @param timeoutMs of the connection and of every read, {@code 0} for none
+     */
+    public static BlockingConnection connect(SocketAddress address, AESEncoder encoder, int cipher,
+                                             int timeoutMs, Metrics metrics) throws IOException {
+        if (!AESEncoder.isSupported(cipher)) {
+            throw new IllegalArgumentException("cipher " + cipher);
+        }
+        Socket socket = new Socket();
+        try {
+            socket.connect(address, timeoutMs);
+            socket.setSoTimeout(timeoutMs);
+            BlockingConnection connection = new BlockingConnection(socket, metrics);
+            connection.clientHandshake(encoder, cipher);
+            return connection;
+        } catch (IOException | RuntimeException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Completes the handshake of an accepted socket, which must be done within {@link NIOComponent#TIMEOUT_MS}.
+     * Only {@link NIOComponent#PROTOCOL_BINARY} is accepted.
+     */
+    public static BlockingConnection accept(Socket socket, AESEncoder encoder, boolean plaintextAllowed,
+                                            Metrics metrics) throws IOException {
+        try {
+            socket.setSoTimeout((int) NIOComponent.TIMEOUT_MS);
+            BlockingConnection connection = new BlockingConnection(socket, metrics);
+            connection.serverHandshake(encoder, plaintextAllowed);
+            // idle connections are kept, as the event loops do
+            socket.setSoTimeout(0);
+            return connection;
+        } catch (IOException | RuntimeException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    private void clientHandshake(AESEncoder encoder, int cipher) throws IOException {
+        // a copy, since ciphers can't be shared between threads
+        AESEncoder shared = new AESEncoder(encoder.secretKey, encoder.iv);
+        AESEncoder session;
+        try {
+            session = new AESEncoder(AESEncoder.generateKey(), AESEncoder.generateIv(),
+                    NIOComponent.handshakeCipher(cipher), false);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        byte[] iv = Arrays.copyOf(session.iv.getIV(), NIOComponent.IV_LENGTH + 2);
+        iv[NIOComponent.IV_LENGTH + NIOComponent.OPTION_PROTOCOL] = NIOComponent.PROTOCOL_BINARY;
+        iv[NIOComponent.IV_LENGTH + NIOComponent.OPTION_CIPHER] = (byte) cipher;
+        writeDelimited(shared, session.secretKey.getEncoded());
+        writeDelimited(shared, iv);
+        out.flush();
+
+        byte[] bytes = readDelimited(session);
+        String msg = new String(bytes, 0, Math.min(bytes.length, NIOComponent.OK_LENGTH), StandardCharsets.UTF_8);
+        if (!msg.startsWith(NIOComponent.OK) || msg.length() <= NIOComponent.OK.length()) {
+            throw new ConnectException("Failed to establish secure connection!");
+        }
+        byte[] options = Arrays.copyOfRange(bytes, msg.length(), bytes.length);
+        if (NIOComponent.option(options, NIOComponent.OPTION_CIPHER, AESEncoder.CIPHER_CBC) != cipher
+                || NIOComponent.option(options, NIOComponent.OPTION_PROTOCOL, NIOComponent.PROTOCOL_TEXT)
+                != NIOComponent.PROTOCOL_BINARY) {
+            throw new ConnectException("Failed to establish secure connection!");
+        }
+        this.encoder = cipher == AESEncoder.CIPHER_NONE
+                ? new AESEncoder(session.secretKey, session.iv, cipher, false) : session;
+    }
+
+    private void serverHandshake(AESEncoder encoder, boolean plaintextAllowed) throws IOException {
+        AESEncoder shared = new AESEncoder(encoder.secretKey, encoder.iv);
+        byte[] key = readDelimited(shared);
+        byte[] iv = readDelimited(shared);
+        if (iv.length < NIOComponent.IV_LENGTH) {
+            throw new ConnectException("Failed to establish secure connection!");
+        }
+        byte[] options = Arrays.copyOfRange(iv, NIOComponent.IV_LENGTH, iv.length);
+        iv = Arrays.copyOf(iv, NIOComponent.IV_LENGTH);
+        int protocol = NIOComponent.option(options, NIOComponent.OPTION_PROTOCOL, NIOComponent.PROTOCOL_TEXT);
+        if (protocol != NIOComponent.PROTOCOL_BINARY) {
+            throw new ConnectException("Unsupported protocol " + protocol);
+        }
+        int cipher = NIOComponent.option(options, NIOComponent.OPTION_CIPHER, AESEncoder.CIPHER_CBC);
+        if (!AESEncoder.isSupported(cipher) || cipher == AESEncoder.CIPHER_NONE && !plaintextAllowed) {
+            throw new ConnectException("Unsupported cipher " + cipher);
+        }
+        AESEncoder session = new AESEncoder(key, iv, NIOComponent.handshakeCipher(cipher), true);
+
+        // echo the accepted options so that the client can switch with us
+        byte[] ok = (NIOComponent.OK + UUID.randomUUID()).getBytes(StandardCharsets.UTF_8);
+        byte[] reply = Arrays.copyOf(ok, ok.length + options.length);
+        System.arraycopy(options, 0, reply, ok.length, options.length);
+        writeDelimited(session, reply);
+        out.flush();
+        this.encoder = cipher == AESEncoder.CIPHER_NONE ? new AESEncoder(key, iv, cipher, true) : session;
+    }
+
+    /**
+     * Writes a handshake frame, which is delimited as {@link NIOComponent#PROTOCOL_TEXT} ones are.
+     */
+    private void writeDelimited(AESEncoder encoder, byte[] bytes) throws IOException {
+        try {
+            bytes = InputOutput.escape(encoder.encrypt(bytes));
+        } catch (GeneralSecurityException e) {
+            throw new IOException(e);
+        }
+        out.write(bytes);
+        out.write(InputOutput.MESSAGE_DELIMITER);
+        metrics.bytesOut.add(bytes.length + 1);
+    }
+
+    private byte[] readDelimited(AESEncoder encoder) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != InputOutput.MESSAGE_DELIMITER) {
+            if (b < 0) {
+                throw new EOFException();
+            }
+            if (bytes.size() == MAX_HANDSHAKE_LENGTH) {
+                throw new ProtocolException("Illegal handshake");
+            }
+            bytes.write(b);
+        }
+        metrics.bytesIn.add(bytes.size() + 1);
+        try {
+            return encoder.decrypt(InputOutput.unescape(bytes.toByteArray()));
+        } catch (GeneralSecurityException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Waits for the next frame.
+     *
+     * @return the plain payload
+     * @throws EOFException if the peer closed the connection
+     */
+    public byte[] read() throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > InputOutput.MAX_FRAME_LENGTH) {
+            throw new ProtocolException("Illegal frame length: " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        metrics.bytesIn.add(InputOutput.LENGTH_HEADER + length);
+        metrics.framesIn.increment();
+        if (encoder.cipher == AESEncoder.CIPHER_NONE) {
+            return bytes;
+        }
+        try {
+            long start = System.nanoTime();
+            byte[] plain = encoder.decrypt(bytes);
+            metrics.decryptNanos.record(System.nanoTime() - start);
+            return plain;
+        } catch (GeneralSecurityException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Writes a frame and flushes it.
+     */
+    public void write(byte[] payload) throws IOException {
+        byte[] bytes = payload;
+        if (encoder.cipher != AESEncoder.CIPHER_NONE) {
+            try {
+                long start = System.nanoTime();
+                bytes = encoder.encrypt(payload);
+                metrics.encryptNanos.record(System.nanoTime() - start);
+            } catch (GeneralSecurityException e) {
+                throw new IOException(e);
+            }
+        }
+        out.writeInt(bytes.length);
+        out.write(bytes);
+        out.flush();
+        metrics.bytesOut.add(InputOutput.LENGTH_HEADER + bytes.length);
+        metrics.framesOut.increment();
+    }
+
+    /**
+     * @return the negotiated {@link AESEncoder#CIPHER_CBC}, {@link AESEncoder#CIPHER_GCM},
+     * {@link AESEncoder#CIPHER_CTR} or {@link AESEncoder#CIPHER_NONE}
+     */
+    public int cipher() {
+        return encoder.cipher;
+    }
+
+    public SocketAddress remoteAddress() {
+        return socket.getRemoteSocketAddress();
+    }
+
+    public boolean isOpen() {
+        return !socket.isClosed();
+    }
+
+    /**
+     * Also wakes up the threads blocked on the connection, which then fail.
+     */
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+}
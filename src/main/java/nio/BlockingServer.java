@@ -0,0 +1,203 @@
+package nio;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A server of {@link NIOComponent#PROTOCOL_BINARY} with a thread per connection, rather than event loops:
+ * every connection is served by a {@link BlockingConnection} on a thread of its own, virtual where the
+ * runtime has them, see {@link Threads}. Simpler to write for, since a message may block its thread.
+ * <p>
+ * Created by Edsuns@qq.com on 2022/5/8.
+ */
+public abstract class BlockingServer implements Closeable {
+
+    /**
+     * the connections waiting to be accepted at most, a burst of thousands overflows the default
+     */
+    static final int BACKLOG = 1024;
+    /**
+     * the pauses after a failed accept, doubled while it keeps failing, since running out of file descriptors
+     * or threads makes the next accept fail at once too
+     */
+    static final long MIN_ACCEPT_BACKOFF_MS = 10, MAX_ACCEPT_BACKOFF_MS = 1000;
+
+    protected final SocketAddress address;
+    protected final AESEncoder encoder;
+    protected final Metrics metrics = new Metrics();
+    private final Set<BlockingConnection> connections = ConcurrentHashMap.newKeySet();
+    private boolean plaintextAllowed;
+    private boolean virtual = true;
+
+    private volatile ServerSocket serverSocket;
+    private Thread acceptor;
+
+    protected BlockingServer(SocketAddress address, AESEncoder encoder) {
+        this.address = address;
+        this.encoder = encoder;
+        metrics.gauge("connections", connections::size);
+    }
+
+    public Metrics metrics() {
+        return metrics;
+    }
+
+    /**
+     * @see NIOComponent#setPlaintextAllowed(boolean)
+     */
+    public synchronized void setPlaintextAllowed(boolean plaintextAllowed) {
+        if (serverSocket != null) {
+            throw new IllegalStateException("connected");
+        }
+        this.plaintextAllowed = plaintextAllowed;
+    }
+
+    /**
+     * Serves the connections with platform threads even if the runtime has virtual ones,
+     * such as to compare them. Must be called before {@link #connect()}.
+     */
+    public synchronized void setVirtualThreads(boolean virtual) {
+        if (serverSocket != null) {
+            throw new IllegalStateException("connected");
+        }
+        this.virtual = virtual;
+    }
+
+    public synchronized void connect() throws IOException {
+        if (serverSocket != null) {
+            throw new IllegalStateException("connected");
+        }
+        ServerSocket s = new ServerSocket();
+        try {
+            s.bind(address, BACKLOG);
+        } catch (IOException e) {
+            s.close();
+            throw e;
+        }
+        serverSocket = s;
+        acceptor = new Thread(() -> accept(s), "BlockingServer-acceptor");
+        acceptor.start();
+    }
+
+    public boolean isOpen() {
+        return serverSocket != null;
+    }
+
+    /**
+     * @return the connections being served
+     */
+    public int connections() {
+        return connections.size();
+    }
+
+    private void accept(ServerSocket s) {
+        long backoffMs = 0;
+        while (!s.isClosed()) {
+            Socket socket = null;
+            try {
+                socket = s.accept();
+                Socket accepted = socket;
+                Threads.start("BlockingServer-connection", virtual, () -> serve(accepted));
+                backoffMs = 0;
+                continue;
+            } catch (IOException | RuntimeException | OutOfMemoryError e) {
+                // the thread may fail to start for lack of memory for its stack
+                if (s.isClosed()) {
+                    return;
+                }
+                metrics.errors.increment();
+                if (socket != null) {
+                    try {
+                        socket.close();
+                    } catch (IOException ex) {
+                        // closed anyway
+                    }
+                }
+            }
+            backoffMs = Math.min(Math.max(backoffMs * 2, MIN_ACCEPT_BACKOFF_MS), MAX_ACCEPT_BACKOFF_MS);
+            try {
+                Thread.sleep(backoffMs);
+            } catch (InterruptedException e) {
+                // by close()
+                return;
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        BlockingConnection connection = null;
+        try {
+            connection = BlockingConnection.accept(socket, encoder, plaintextAllowed, metrics);
+            connections.add(connection);
+            // missed by close() otherwise
+            if (!isOpen()) {
+                return;
+            }
+            while (true) {
+                onMessage(connection, ByteBuffer.wrap(connection.read()));
+            }
+        } catch (EOFException e) {
+            // closed by the peer
+        } catch (IOException | RuntimeException e) {
+            if (isOpen() && !socket.isClosed()) {
+                metrics.errors.increment();
+            }
+        } finally {
+            if (connection != null) {
+                connections.remove(connection);
+            }
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // closed anyway
+            }
+        }
+    }
+
+    /**
+     * Closes the connections, without waiting for their threads, which fail on their next read or write.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        ServerSocket s = serverSocket;
+        if (s == null) {
+            return;
+        }
+        serverSocket = null;
+        try {
+            s.close();
+        } finally {
+            for (BlockingConnection connection : connections) {
+                try {
+                    connection.close();
+                } catch (IOException e) {
+                    // closed anyway
+                }
+            }
+            if (Thread.currentThread() != acceptor) {
+                // out of a backoff
+                acceptor.interrupt();
+                try {
+                    acceptor.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
+    /**
+     * Called by the thread of the connection for every frame, which may block it.
+     * The frame is a payload of its own, which may be kept.
+     *
+     * @throws IOException to close the connection
+     */
+    protected abstract void onMessage(BlockingConnection connection, ByteBuffer message) throws IOException;
+}
@@ -0,0 +1,99 @@
+package nio;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Direct buffers in power-of-two size classes, shared by the connections of all the event loops.
+ * <p>
+ * A buffer has a single owner at a time, which gives it back with {@link #release(ByteBuffer)}
+ * once it's done with it. Connections only hold buffers while they have unconsumed input
+ * or unflushed output, so that idle connections cost no buffer memory.
+ * The pool keeps at most {@link #maxRetainedBytes} of released buffers for reuse.
+ * <p>
+ * Created by Edsuns@qq.com on 2022/4/27.
+ */
+public class BufferPool {
+
+    public static final int MIN_SHIFT = 13;// 8 KB
+    public static final int MAX_SHIFT = 22;// 4 MB
+    public static final long DEFAULT_MAX_RETAINED_BYTES = 1024 * 1024 * 64;// 64 MB
+
+    public static final BufferPool DEFAULT = new BufferPool(DEFAULT_MAX_RETAINED_BYTES);
+
+    private final ArrayDeque<ByteBuffer>[] classes;
+    final long maxRetainedBytes;
+    private final AtomicLong retainedBytes = new AtomicLong();
+    private final AtomicLong allocatedBytes = new AtomicLong();
+
+    @SuppressWarnings("unchecked")
+    public BufferPool(long maxRetainedBytes) {
+        this.classes = new ArrayDeque[MAX_SHIFT - MIN_SHIFT + 1];
+        for (int i = 0; i < classes.length; i++) {
+            classes[i] = new ArrayDeque<>();
+        }
+        this.maxRetainedBytes = maxRetainedBytes;
+    }
+
+    static int shift(int capacity) {
+        return Math.max(MIN_SHIFT, 32 - Integer.numberOfLeadingZeros(capacity - 1));
+    }
+
+    /**
+     * @return a cleared buffer of at least {@code capacity} bytes
+     */
+    public ByteBuffer acquire(int capacity) {
+        int shift = shift(capacity);
+        if (shift > MAX_SHIFT) {
+            allocatedBytes.addAndGet(capacity);
+            return ByteBuffer.allocateDirect(capacity);
+        }
+        ArrayDeque<ByteBuffer> free = classes[shift - MIN_SHIFT];
+        ByteBuffer bf;
+        synchronized (free) {
+            bf = free.poll();
+        }
+        if (bf == null) {
+            allocatedBytes.addAndGet(1 << shift);
+            return ByteBuffer.allocateDirect(1 << shift);
+        }
+        retainedBytes.addAndGet(-bf.capacity());
+        bf.clear();
+        return bf;
+    }
+
+    /**
+     * Must only be called once per {@link #acquire(int)}, by the owner of the buffer.
+     */
+    public void release(ByteBuffer bf) {
+        int capacity = bf.capacity();
+        int shift = shift(capacity);
+        if (shift > MAX_SHIFT || capacity != 1 << shift) {
+            // unpooled, left to the GC
+            return;
+        }
+        if (retainedBytes.addAndGet(capacity) > maxRetainedBytes) {
+            retainedBytes.addAndGet(-capacity);
+            return;
+        }
+        ArrayDeque<ByteBuffer> free = classes[shift - MIN_SHIFT];
+        synchronized (free) {
+            free.push(bf);
+        }
+    }
+
+    /**
+     * @return the bytes of the released buffers kept for reuse
+     */
+    public long retainedBytes() {
+        return retainedBytes.get();
+    }
+
+    /**
+     * @return the bytes of all the buffers ever allocated by the pool
+     */
+    public long allocatedBytes() {
+        return allocatedBytes.get();
+    }
+}
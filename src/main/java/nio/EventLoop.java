@@ -0,0 +1,150 @@
+package nio;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.spi.SelectorProvider;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A {@link Selector} and the thread running {@link NIOComponent#handleEvents(EventLoop)} over it.
+ * <p>
+ * Channels accepted by another loop are handed over through {@link #register(SocketChannel)}
+ * and registered by the thread of this loop on its next iteration.
+ * <p>
+ * Created by Edsuns@qq.com on 2022/4/21.
+ */
+class EventLoop implements Runnable {
+    final NIOComponent<?> component;
+    final Selector selector;
+    final Queue<SocketChannel> pending = new ConcurrentLinkedQueue<>();
+    final Queue<NIOComponent.ChannelContext<?>> writeRequests = new ConcurrentLinkedQueue<>();
+    /**
+     * @see NIOComponent#closeConnection(NIOComponent.ChannelContext)
+     */
+    final Queue<NIOComponent.ChannelContext<?>> closeRequests = new ConcurrentLinkedQueue<>();
+    /**
+     * the contexts with frames written during the current iteration, only used by the loop
+     */
+    final Queue<NIOComponent.ChannelContext<?>> flushes = new ArrayDeque<>();
+    /**
+     * the connections served by this loop, including the pending ones
+     */
+    final AtomicInteger connections = new AtomicInteger();
+    final TimerWheel timers = new TimerWheel();
+    /**
+     * a copy of {@link NIOComponent#encoder} for the handshakes served by this loop,
+     * since ciphers can't be shared between threads
+     */
+    final AESEncoder encoder;
+
+    /*
+     * Scratch arrays for the crypto of a frame, reused by every frame of the loop,
+     * since the ciphers only work without allocating on arrays.
+     */
+    private byte[] outputScratch = new byte[InputOutput.BUFFER_SIZE];
+    private ByteBuffer plainScratch = ByteBuffer.allocate(InputOutput.BUFFER_SIZE);
+    Thread thread;
+
+    EventLoop(NIOComponent<?> component) throws IOException {
+        this.component = component;
+        this.encoder = new AESEncoder(component.encoder.secretKey, component.encoder.iv);
+        this.selector = SelectorProvider.provider().openSelector();
+    }
+
+    void start(String name) {
+        thread = new Thread(this, name);
+        thread.start();
+    }
+
+    void register(SocketChannel channel) throws IOException {
+        connections.incrementAndGet();
+        if (Thread.currentThread() == thread) {
+            register0(channel);
+            return;
+        }
+        pending.add(channel);
+        selector.wakeup();
+    }
+
+    void registerPending() throws IOException {
+        SocketChannel channel;
+        while ((channel = pending.poll()) != null) {
+            register0(channel);
+        }
+    }
+
+    private void register0(SocketChannel channel) throws IOException {
+        SelectionKey key = channel.register(selector, NIOComponent.OPS);
+        key.attach(new NIOComponent.ChannelContext<>(key, component.attachmentSupplier.get(), this));
+    }
+
+    /**
+     * @see NIOComponent#requestWrite(NIOComponent.ChannelContext)
+     */
+    void enableRequestedWrites() {
+        NIOComponent.ChannelContext<?> context;
+        while ((context = writeRequests.poll()) != null) {
+            // reset first, so that a request made meanwhile is queued again
+            context.writeRequested.set(false);
+            NIOComponent.enableWrite(context);
+        }
+    }
+
+    /**
+     * Scratches larger than this aren't kept once used.
+     */
+    static final int MAX_SCRATCH = 1024 * 1024;// 1 MB
+
+    static int scratchSize(int size) {
+        return Math.max(InputOutput.BUFFER_SIZE, Integer.highestOneBit(size - 1) << 1);
+    }
+
+    byte[] outputScratch(int size) {
+        if (size <= outputScratch.length) {
+            return outputScratch;
+        }
+        byte[] scratch = new byte[scratchSize(size)];
+        return scratch.length > MAX_SCRATCH ? scratch : (outputScratch = scratch);
+    }
+
+    /**
+     * @return the cleared plain scratch, with at least {@code size} bytes
+     */
+    ByteBuffer plainScratch(int size) {
+        if (size > plainScratch.capacity()) {
+            ByteBuffer scratch = ByteBuffer.allocate(scratchSize(size));
+            if (scratch.capacity() > MAX_SCRATCH) {
+                return scratch;
+            }
+            plainScratch = scratch;
+        }
+        plainScratch.clear();
+        return plainScratch;
+    }
+
+    void close() throws IOException {
+        List<SelectableChannel> channels = new ArrayList<>();
+        for (SelectionKey key : selector.keys()) {
+            channels.add(key.channel());
+        }
+        // closed first, so that the loop knows that the channels are closed on purpose
+        selector.close();
+        for (SelectableChannel channel : channels) {
+            channel.close();
+        }
+    }
+
+    @Override
+    public void run() {
+        component.handleEvents(this);
+    }
+}
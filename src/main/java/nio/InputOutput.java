@@ -9,6 +9,13 @@ interface InputOutput {
 
     byte MESSAGE_DELIMITER = '\n';
 
+    /**
+     * size of the big-endian length that precedes every {@link NIOComponent#PROTOCOL_BINARY} frame
+     */
+    int LENGTH_HEADER = Integer.BYTES;
+
+    int MAX_FRAME_LENGTH = 1024 * 1024 * 64;// 64 MB
+
     static byte[] escape(byte[] src) {
         int c = 0;
         for (byte b : src) {
@@ -2,12 +2,13 @@ package nio;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.ShortBufferException;
 import java.io.IOException;
+import java.net.ProtocolException;
 import java.nio.ByteBuffer;
 import java.security.InvalidKeyException;
 import java.util.ArrayList;
-import java.util.Deque;
-import java.util.LinkedList;
+import java.util.Arrays;
 import java.util.List;
 
 /**
@@ -15,8 +16,26 @@ import java.util.List;
  */
 class MessageInput implements InputOutput {
     final NIOComponent.ChannelContext<?> context;
-    ByteBuffer bf = ByteBuffer.allocate(BUFFER_SIZE);
-    final Deque<Integer> split = new LinkedList<>();
+    /**
+     * pooled while there are unconsumed bytes, which lie between {@link #start} and its position
+     */
+    ByteBuffer bf;
+    int start;
+    /**
+     * exclusive end positions of the complete frames in {@link #bf}, queued from head to tail
+     */
+    int[] split = new int[16];
+    int head, tail;
+    /**
+     * position from which {@link #bf} hasn't been scanned for frames yet
+     */
+    int scanned;
+    boolean eof;
+    /**
+     * a view of {@link #bf} serving the {@link AESEncoder#CIPHER_NONE} frames
+     */
+    private ByteBuffer view;
+    private ByteBuffer viewOf;
 
     MessageInput(NIOComponent.ChannelContext<?> context) {
         this.context = context;
@@ -27,20 +46,128 @@ class MessageInput implements InputOutput {
     }
 
     boolean read(int required) throws IOException {
+        if (bf == null) {
+            bf = BufferPool.DEFAULT.acquire(BUFFER_SIZE);
+            start = scanned = 0;
+        }
+        int n;
+        long bytes = 0;
         do {
             if (!bf.hasRemaining()) {
-                int p = bf.position();
-                bf = ByteBuffer.wrap(InputOutput.copyOf(bf.array(), 0, p + BUFFER_SIZE));
-                bf.position(p);
+                makeRoom();
+            }
+            n = context.channel.read(bf);
+            bytes += Math.max(n, 0);
+        } while (n > 0);
+        context.metrics.bytesIn.add(bytes);
+        if (n < 0) {
+            // the frames read before the end of stream are still served
+            eof = true;
+        }
+        if (context.protocol == NIOComponent.PROTOCOL_BINARY) {
+            scanFrames();
+        } else {
+            scanDelimiters();
+        }
+        boolean ready = tail - head >= required;
+        releaseIfConsumed();
+        return ready;
+    }
+
+    /**
+     * Compacts the consumed bytes away, or moves to a pooled buffer twice as large.
+     */
+    private void makeRoom() {
+        int offset = start;
+        if (offset > 0) {
+            bf.limit(bf.position());
+            bf.position(offset);
+            bf.compact();
+        } else {
+            ByteBuffer larger = BufferPool.DEFAULT.acquire(bf.capacity() * 2);
+            bf.flip();
+            larger.put(bf);
+            BufferPool.DEFAULT.release(bf);
+            bf = larger;
+        }
+        start = 0;
+        scanned -= offset;
+        for (int i = head; i < tail; i++) {
+            split[i] -= offset;
+        }
+    }
+
+    private void addSplit(int end) {
+        if (tail == split.length) {
+            if (head > 0) {
+                System.arraycopy(split, head, split, 0, tail - head);
+                tail -= head;
+                head = 0;
+            } else {
+                split = Arrays.copyOf(split, split.length * 2);
             }
-        } while (context.channel.read(bf) > 0);
-        Integer last = split.peekLast();
-        for (int i = last != null ? last + 1 : 0; i < bf.position(); i++) {
+        }
+        split[tail++] = end;
+    }
+
+    private int popSplit() {
+        int end = split[head++];
+        if (head == tail) {
+            head = tail = 0;
+        }
+        return end;
+    }
+
+    private void scanDelimiters() {
+        for (int i = scanned; i < bf.position(); i++) {
             if (bf.get(i) == MESSAGE_DELIMITER) {
-                split.add(i);
+                addSplit(i + 1);
+            }
+        }
+        scanned = bf.position();
+    }
+
+    private void scanFrames() throws ProtocolException {
+        while (bf.position() - scanned >= LENGTH_HEADER) {
+            int length = bf.getInt(scanned);
+            if (length < 0 || length > MAX_FRAME_LENGTH) {
+                throw new ProtocolException("Illegal frame length: " + length);
             }
+            if (bf.position() - scanned - LENGTH_HEADER < length) {
+                break;
+            }
+            scanned += LENGTH_HEADER + length;
+            addSplit(scanned);
+        }
+    }
+
+    /**
+     * Gives the buffer back to the pool once everything read has been consumed.
+     */
+    private void releaseIfConsumed() {
+        if (bf != null && bf.position() == start && head == tail) {
+            BufferPool.DEFAULT.release(bf);
+            bf = null;
+        }
+    }
+
+    void release() {
+        if (bf != null) {
+            BufferPool.DEFAULT.release(bf);
+            bf = null;
         }
-        return split.size() >= required;
+        view = viewOf = null;
+        head = tail = 0;
+    }
+
+    /**
+     * Copies {@code length} bytes at {@code offset} of {@link #bf} into {@code dst}.
+     */
+    private void copy(int offset, byte[] dst, int length) {
+        int p = bf.position();
+        bf.position(offset);
+        bf.get(dst, 0, length);
+        bf.position(p);
     }
 
     List<byte[]> strip() throws IOException {
@@ -51,29 +178,83 @@ class MessageInput implements InputOutput {
         return strip(context.encoder, maxCount);
     }
 
+    /**
+     * Decrypts the complete frames into arrays of their own, which is only worth it
+     * for the handshake and the {@link NIOComponent#PROTOCOL_TEXT} frames.
+     */
     List<byte[]> strip(AESEncoder encoder, int maxCount) throws IOException {
+        boolean binary = context.protocol == NIOComponent.PROTOCOL_BINARY;
         List<byte[]> result = new ArrayList<>();
-        int left = -1;
-        for (int i = 0, c = Math.min(maxCount, split.size()); i < c; i++) {
-            int right = split.pop();
-            byte[] bytes = InputOutput.copyOf(bf.array(), left + 1, right - left - 1);
-            result.add(decode(encoder, bytes));
-            left = right;
-        }
-        strip(bf, left + 1, bf.position() - left - 1);
+        for (int i = 0, c = Math.min(maxCount, tail - head); i < c; i++) {
+            int end = popSplit();
+            byte[] bytes;
+            if (binary) {
+                bytes = new byte[end - start - LENGTH_HEADER];
+                copy(start + LENGTH_HEADER, bytes, bytes.length);
+            } else {
+                bytes = new byte[end - start - 1];
+                copy(start, bytes, bytes.length);
+                bytes = InputOutput.unescape(bytes);
+            }
+            result.add(decode(encoder, bytes, 0, bytes.length));
+            start = end;
+        }
+        releaseIfConsumed();
         return result;
     }
 
-    private byte[] decode(AESEncoder encoder, byte[] bytes) throws IOException {
+    /**
+     * Decrypts the next complete {@link NIOComponent#PROTOCOL_BINARY} frame in the scratch
+     * of the event loop, without allocating.
+     *
+     * {@link AESEncoder#CIPHER_NONE} frames aren't copied at all, but served from the input buffer.
+     *
+     * @return the plain payload, only valid until the next call, or {@code null} if there is none
+     */
+    ByteBuffer nextFrame() throws IOException {
+        if (head == tail) {
+            releaseIfConsumed();
+            return null;
+        }
+        int end = popSplit();
+        int length = end - start - LENGTH_HEADER;
+        if (context.encoder.cipher == AESEncoder.CIPHER_NONE) {
+            if (viewOf != bf) {
+                view = bf.duplicate();
+                viewOf = bf;
+            }
+            view.clear();
+            view.limit(end);
+            view.position(end - length);
+            start = end;
+            return view;
+        }
+        // decrypted in place, the plain payload is never longer than the encrypted one
+        ByteBuffer plain = context.loop.plainScratch(length);
+        copy(start + LENGTH_HEADER, plain.array(), length);
+        start = end;
         try {
-            return encoder.decrypt(InputOutput.unescape(bytes));
-        } catch (BadPaddingException | IllegalBlockSizeException | InvalidKeyException e) {
+            long start = System.nanoTime();
+            plain.limit(context.encoder.decrypt(plain.array(), length, plain.array(), 0));
+            context.metrics.decryptNanos.record(System.nanoTime() - start);
+        } catch (BadPaddingException | IllegalBlockSizeException
+                 | InvalidKeyException | ShortBufferException e) {
             throw new IOException(e);
         }
+        return plain;
     }
 
-    static void strip(ByteBuffer buffer, int pos, int count) {
-        System.arraycopy(buffer.array(), pos, buffer.array(), 0, count);
-        buffer.position(count);
+    private byte[] decode(AESEncoder encoder, byte[] bytes, int offset, int length) throws IOException {
+        try {
+            if (encoder.cipher == AESEncoder.CIPHER_NONE) {
+                return encoder.decrypt(bytes, offset, length);
+            }
+            long start = System.nanoTime();
+            byte[] plain = encoder.decrypt(bytes, offset, length);
+            context.metrics.decryptNanos.record(System.nanoTime() - start);
+            return plain;
+        } catch (BadPaddingException | IllegalBlockSizeException | InvalidKeyException e) {
+            throw new IOException(e);
+        }
     }
 }
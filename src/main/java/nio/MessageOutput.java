@@ -2,18 +2,38 @@ package nio;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.ShortBufferException;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.security.InvalidKeyException;
-import java.util.LinkedList;
-import java.util.Queue;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
 
 /**
  * Created by Edsuns@qq.com on 2022/4/15.
  */
 class MessageOutput implements InputOutput {
+
+    /**
+     * the most buffers written at once, below the IOV_MAX of the common platforms
+     */
+    static final int MAX_GATHER = 1024;
+
     final NIOComponent.ChannelContext<?> context;
-    final Queue<ByteBuffer> queue = new LinkedList<>();
+    /**
+     * pooled buffers in read mode, frames are appended to the last one while it has room
+     */
+    final Deque<ByteBuffer> queue = new ArrayDeque<>();
+    /**
+     * the bytes queued and not written yet
+     */
+    long queuedBytes;
+    private ByteBuffer[] gather = new ByteBuffer[16];
+    /**
+     * whether the context is waiting in {@link EventLoop#flushes}
+     */
+    boolean flushScheduled;
 
     MessageOutput(NIOComponent.ChannelContext<?> context) {
         this.context = context;
@@ -25,26 +45,174 @@ class MessageOutput implements InputOutput {
 
     void write(AESEncoder encoder, byte[] bytes) throws IOException {
         try {
-            bytes = InputOutput.escape(encoder.encrypt(bytes));
-        } catch (BadPaddingException | IllegalBlockSizeException | InvalidKeyException e) {
+            if (context.protocol == NIOComponent.PROTOCOL_BINARY) {
+                frame(encoder, bytes);
+            } else {
+                delimit(encoder, bytes);
+            }
+        } catch (BadPaddingException | IllegalBlockSizeException
+                 | InvalidKeyException | ShortBufferException e) {
             throw new IOException(e);
         }
-        byte[] msg = InputOutput.copyOf(bytes, 0, bytes.length + 1);
-        msg[msg.length - 1] = MESSAGE_DELIMITER;
-        queue.add(ByteBuffer.wrap(msg));
+        context.metrics.framesOut.increment();
+        scheduleFlush();
+    }
 
-        ByteBuffer bf = queue.peek();
-        while (bf != null) {
-            if (context.channel.write(bf) <= 0) {
-                break;
+    /**
+     * Writes a {@link NIOComponent#PROTOCOL_BINARY} frame of the first {@code headLength} bytes of {@code head}
+     * followed by {@code body}.
+     */
+    void write(byte[] head, int headLength, byte[] body) throws IOException {
+        AESEncoder encoder = context.encoder;
+        int length = headLength + body.length;
+        try {
+            if (encoder.cipher == AESEncoder.CIPHER_NONE) {
+                ByteBuffer bf = append(LENGTH_HEADER + length);
+                bf.putInt(length);
+                bf.put(head, 0, headLength);
+                bf.put(body);
+                appended(bf);
+            } else {
+                byte[] cipherText = context.loop.outputScratch(encoder.encryptedSize(length));
+                long start = System.nanoTime();
+                length = encoder.encrypt(head, headLength, body, cipherText, 0);
+                context.metrics.encryptNanos.record(System.nanoTime() - start);
+                ByteBuffer bf = append(LENGTH_HEADER + length);
+                bf.putInt(length);
+                bf.put(cipherText, 0, length);
+                appended(bf);
+            }
+        } catch (BadPaddingException | IllegalBlockSizeException
+                 | InvalidKeyException | ShortBufferException e) {
+            throw new IOException(e);
+        }
+        queuedBytes += LENGTH_HEADER + length;
+        context.metrics.framesOut.increment();
+        scheduleFlush();
+    }
+
+    private void delimit(AESEncoder encoder, byte[] bytes)
+            throws BadPaddingException, IllegalBlockSizeException, InvalidKeyException {
+        if (encoder.cipher != AESEncoder.CIPHER_NONE) {
+            long start = System.nanoTime();
+            bytes = encoder.encrypt(bytes);
+            context.metrics.encryptNanos.record(System.nanoTime() - start);
+        }
+        bytes = InputOutput.escape(bytes);
+        ByteBuffer bf = append(bytes.length + 1);
+        bf.put(bytes);
+        bf.put(MESSAGE_DELIMITER);
+        appended(bf);
+        queuedBytes += bytes.length + 1;
+    }
+
+    /**
+     * Encrypts into the scratch of the event loop, and from there into the pooled buffer.
+     * Plaintext goes into the pooled buffer straight away.
+     */
+    private void frame(AESEncoder encoder, byte[] bytes)
+            throws BadPaddingException, IllegalBlockSizeException,
+            InvalidKeyException, ShortBufferException {
+        if (encoder.cipher == AESEncoder.CIPHER_NONE) {
+            ByteBuffer bf = append(LENGTH_HEADER + bytes.length);
+            bf.putInt(bytes.length);
+            bf.put(bytes);
+            appended(bf);
+            queuedBytes += LENGTH_HEADER + bytes.length;
+            return;
+        }
+        byte[] cipherText = context.loop.outputScratch(encoder.encryptedSize(bytes.length));
+        long start = System.nanoTime();
+        int length = encoder.encrypt(bytes, cipherText, 0);
+        context.metrics.encryptNanos.record(System.nanoTime() - start);
+        ByteBuffer bf = append(LENGTH_HEADER + length);
+        bf.putInt(length);
+        bf.put(cipherText, 0, length);
+        appended(bf);
+        queuedBytes += LENGTH_HEADER + length;
+    }
+
+    /**
+     * @return the last buffer of the queue, in write mode with at least {@code length} bytes of room
+     */
+    private ByteBuffer append(int length) {
+        ByteBuffer last = queue.peekLast();
+        if (last == null || last.capacity() - last.limit() < length) {
+            last = BufferPool.DEFAULT.acquire(Math.max(length, BUFFER_SIZE));
+            last.limit(0);
+            queue.add(last);
+            context.metrics.outputBuffers.increment();
+        }
+        // the unwritten bytes start at the mark
+        last.mark();
+        last.position(last.limit());
+        last.limit(last.capacity());
+        return last;
+    }
+
+    /**
+     * Switches the buffer returned by {@link #append(int)} back to read mode.
+     */
+    private static void appended(ByteBuffer bf) {
+        bf.limit(bf.position());
+        bf.reset();
+    }
+
+    /**
+     * Makes the event loop {@link #flush()} at the end of its current iteration,
+     * so that the frames written meanwhile go out together.
+     */
+    void scheduleFlush() {
+        if (!flushScheduled) {
+            flushScheduled = true;
+            context.loop.flushes.add(context);
+        }
+    }
+
+    /**
+     * Writes the queued frames with a single gathering write of at most
+     * {@link NIOComponent#setMaxFlushBytes(int)}, the rest waits for the next iteration.
+     */
+    void flush() throws IOException {
+        if (queue.isEmpty()) {
+            return;
+        }
+        int maxBytes = context.loop.component.maxFlushBytes;
+        int n = 0;
+        long bytes = 0;
+        for (ByteBuffer bf : queue) {
+            if (n == gather.length) {
+                if (n == MAX_GATHER) {
+                    break;
+                }
+                gather = Arrays.copyOf(gather, Math.min(n * 2, MAX_GATHER));
             }
-            if (!bf.hasRemaining()) {
-                queue.poll();
-                bf = queue.peek();
+            gather[n++] = bf;
+            bytes += bf.remaining();
+            if (bytes >= maxBytes) {
+                break;
             }
         }
-        if (bf != null && !bf.hasRemaining()) {
-            queue.poll();
+        try {
+            long written = context.channel.write(gather, 0, n);
+            queuedBytes -= written;
+            context.metrics.bytesOut.add(written);
+        } finally {
+            Arrays.fill(gather, 0, n, null);
+        }
+        ByteBuffer bf;
+        while ((bf = queue.peek()) != null && !bf.hasRemaining()) {
+            BufferPool.DEFAULT.release(queue.poll());
+            context.metrics.outputBuffers.decrement();
+        }
+    }
+
+    void release() {
+        queuedBytes = 0;
+        ByteBuffer bf;
+        while ((bf = queue.poll()) != null) {
+            BufferPool.DEFAULT.release(bf);
+            context.metrics.outputBuffers.decrement();
         }
     }
 }
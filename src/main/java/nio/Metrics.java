@@ -0,0 +1,151 @@
+package nio;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * The counters and {@link Histogram}s of a component, recorded by its event loops
+ * without locking nor allocating, and read by {@link #snapshot()}, {@link #text()} or JMX.
+ * <p>
+ * Subclasses of {@link NIOComponent} add histograms and gauges of their own before connecting.
+ * <p>
+ * Created by Edsuns@qq.com on 2022/5/6.
+ */
+public final class Metrics implements MetricsMXBean {
+
+    static final double[] PERCENTILES = {50, 90, 99, 99.9};
+
+    final LongAdder bytesIn = new LongAdder();
+    final LongAdder bytesOut = new LongAdder();
+    final LongAdder framesIn = new LongAdder();
+    final LongAdder framesOut = new LongAdder();
+    final LongAdder errors = new LongAdder();
+    /**
+     * the iterations of the event loops
+     */
+    final LongAdder selects = new LongAdder();
+    /**
+     * the buffers queued by {@link MessageOutput}s, which are written as soon as the sockets take them
+     */
+    final LongAdder outputBuffers = new LongAdder();
+    /**
+     * the times reading was paused for the output backlog
+     */
+    final LongAdder readPauses = new LongAdder();
+    final Histogram selectNanos;
+    final Histogram encryptNanos;
+    final Histogram decryptNanos;
+
+    private final Map<String, Histogram> histograms = new ConcurrentSkipListMap<>();
+    private final Map<String, LongSupplier> gauges = new ConcurrentSkipListMap<>();
+
+    public Metrics() {
+        selectNanos = histogram("loop.selectNanos");
+        encryptNanos = histogram("crypto.encryptNanos");
+        decryptNanos = histogram("crypto.decryptNanos");
+        gauge("loop.selects", selects::sum);
+        gauge("io.bytesIn", bytesIn::sum);
+        gauge("io.bytesOut", bytesOut::sum);
+        gauge("io.framesIn", framesIn::sum);
+        gauge("io.framesOut", framesOut::sum);
+        gauge("io.outputBuffers", outputBuffers::sum);
+        gauge("io.readPauses", readPauses::sum);
+        gauge("errors", errors::sum);
+    }
+
+    /**
+     * @return the histogram of the name, created on the first call, which should be done ahead of the recording
+     */
+    public Histogram histogram(String name) {
+        return histograms.computeIfAbsent(name, n -> new Histogram());
+    }
+
+    /**
+     * Reports the value of {@code gauge} whenever read.
+     */
+    public void gauge(String name, LongSupplier gauge) {
+        gauges.put(name, gauge);
+    }
+
+    @Override
+    public long getConnections() {
+        LongSupplier connections = gauges.get("connections");
+        return connections == null ? 0 : connections.getAsLong();
+    }
+
+    @Override
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    @Override
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    @Override
+    public long getFramesIn() {
+        return framesIn.sum();
+    }
+
+    @Override
+    public long getFramesOut() {
+        return framesOut.sum();
+    }
+
+    @Override
+    public long getErrors() {
+        return errors.sum();
+    }
+
+    /**
+     * @return the gauges, and the count, mean, percentiles and max of the histograms recorded,
+     * such as {@code loop.selectNanos.p99}, sorted by name
+     */
+    @Override
+    public Map<String, Long> getSnapshot() {
+        return snapshot();
+    }
+
+    public Map<String, Long> snapshot() {
+        Map<String, Long> snapshot = new TreeMap<>();
+        for (Map.Entry<String, LongSupplier> gauge : gauges.entrySet()) {
+            snapshot.put(gauge.getKey(), gauge.getValue().getAsLong());
+        }
+        for (Map.Entry<String, Histogram> entry : histograms.entrySet()) {
+            Histogram histogram = entry.getValue();
+            long count = histogram.count();
+            if (count == 0) {
+                continue;
+            }
+            String name = entry.getKey();
+            snapshot.put(name + ".count", count);
+            snapshot.put(name + ".mean", histogram.mean());
+            for (double percentile : PERCENTILES) {
+                snapshot.put(name + ".p" + String.valueOf(percentile).replace(".0", "").replace(".", ""),
+                        histogram.percentile(percentile));
+            }
+            snapshot.put(name + ".max", histogram.max());
+        }
+        return snapshot;
+    }
+
+    @Override
+    public String getText() {
+        return text();
+    }
+
+    /**
+     * @return {@link #snapshot()} a line per value
+     */
+    public String text() {
+        StringBuilder text = new StringBuilder();
+        for (Map.Entry<String, Long> entry : snapshot().entrySet()) {
+            text.append(entry.getKey()).append(' ').append(entry.getValue()).append('\n');
+        }
+        return text.toString();
+    }
+}
@@ -0,0 +1,33 @@
+package nio;
+
+import java.util.Map;
+
+/**
+ * The {@link Metrics} of a component through JMX, registered by {@link NIOComponent#setJmxName(String)}.
+ * <p>
+ * Created by Edsuns@qq.com on 2022/5/6.
+ */
+public interface MetricsMXBean {
+
+    long getConnections();
+
+    long getBytesIn();
+
+    long getBytesOut();
+
+    long getFramesIn();
+
+    long getFramesOut();
+
+    long getErrors();
+
+    /**
+     * @see Metrics#snapshot()
+     */
+    Map<String, Long> getSnapshot();
+
+    /**
+     * @see Metrics#text()
+     */
+    String getText();
+}
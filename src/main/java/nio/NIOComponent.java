@@ -1,18 +1,25 @@
 package nio;
 
+import javax.management.JMException;
+import javax.management.ObjectName;
 import java.io.Closeable;
+import java.io.EOFException;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.net.ConnectException;
 import java.net.SocketAddress;
+import java.nio.ByteBuffer;
 import java.nio.channels.*;
 import java.nio.channels.spi.AbstractSelectableChannel;
-import java.nio.channels.spi.AbstractSelector;
-import java.nio.channels.spi.SelectorProvider;
 import java.nio.charset.StandardCharsets;
 import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Hashtable;
 import java.util.Iterator;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Supplier;
 
 /**
@@ -25,39 +32,187 @@ public abstract class NIOComponent<AT> implements Closeable {
         public final T attachment;
         final MessageInput messageInput = new MessageInput(this);
         final MessageOutput messageOutput = new MessageOutput(this);
+        final SelectionKey key;
+        final EventLoop loop;
+        final Metrics metrics;
+        /**
+         * whether the context is waiting in {@link EventLoop#writeRequests}
+         */
+        final AtomicBoolean writeRequested = new AtomicBoolean();
+        /**
+         * whether {@link #onWritable(ChannelContext)} or the handshake has something to write,
+         * only used by the loop
+         */
+        boolean writeWanted;
+        /**
+         * whether {@link SelectionKey#OP_READ} is cleared for the output backlog, only used by the loop
+         */
+        boolean readPaused;
+        /**
+         * the messages read and handed off the loop, not replied yet, see {@link #setMaxInFlight(int)}
+         */
+        public final AtomicInteger inFlight = new AtomicInteger();
         AESEncoder encoder;
         int state = CREATE;
+        int protocol = PROTOCOL_TEXT;
+        /**
+         * handshake options accepted by the server, see {@link #OPTION_PROTOCOL}
+         */
+        byte[] options;
+
+        ChannelContext(SelectionKey key, Object attachment, EventLoop loop) {
+            this(key, attachment, loop, loop.component.metrics);
+        }
 
         @SuppressWarnings("unchecked")
-        ChannelContext(SocketChannel channel, Object attachment) {
-            this.channel = channel;
+        ChannelContext(SelectionKey key, Object attachment, EventLoop loop, Metrics metrics) {
+            this.channel = (SocketChannel) key.channel();
             this.attachment = (T) attachment;
+            this.key = key;
+            this.loop = loop;
+            this.metrics = metrics;
+        }
+
+        /**
+         * @return the negotiated {@link #PROTOCOL_TEXT} or {@link #PROTOCOL_BINARY}
+         */
+        public int protocol() {
+            return protocol;
+        }
+
+        /**
+         * @return the negotiated {@link AESEncoder#CIPHER_CBC}, {@link AESEncoder#CIPHER_GCM},
+         * {@link AESEncoder#CIPHER_CTR} or {@link AESEncoder#CIPHER_NONE}
+         */
+        public int cipher() {
+            return encoder.cipher;
+        }
+
+        /**
+         * @return the timers of the event loop serving the context, only usable by that loop
+         */
+        public TimerWheel timers() {
+            return loop.timers;
         }
     }
 
     public static final long TIMEOUT_MS = 10_000;
     static final int CREATE = 0, CLIENT_OK = 1, SERVER_OK = 2, CONNECTED = 3;
     static final String OK = "OK";
+    static final int OK_LENGTH = OK.length() + 36;// OK + UUID
 
     /**
-     * {@link SelectionKey}
+     * Newline-delimited frames with escaped payloads, the original protocol.
+     */
+    public static final int PROTOCOL_TEXT = 0;
+    /**
+     * Frames prefixed with their length, sliced out of the buffer without escaping.
      */
-    static final int OPS = SelectionKey.OP_READ | SelectionKey.OP_WRITE;
+    public static final int PROTOCOL_BINARY = 1;
+
+    /**
+     * Indexes of the handshake options appended to the client's IV.
+     * Clients of the original protocol send no options at all.
+     */
+    static final int OPTION_PROTOCOL = 0;
+    static final int OPTION_CIPHER = 1;
+    static final int IV_LENGTH = 16;
+
+    /**
+     * Hand accepted connections to the worker loops in turn.
+     */
+    public static final int BALANCE_ROUND_ROBIN = 0;
+    /**
+     * Hand accepted connections to the worker loop serving the fewest connections.
+     */
+    public static final int BALANCE_LEAST_CONNECTIONS = 1;
+
+    /**
+     * {@link SelectionKey}, {@link SelectionKey#OP_WRITE} is only added while there is something to write,
+     * since a connected channel is almost always writable
+     */
+    static final int OPS = SelectionKey.OP_READ;
+
+    public static final int DEFAULT_MAX_FLUSH_BYTES = 1024 * 256;// 256 KB
+    public static final int DEFAULT_OUTPUT_LOW_WATERMARK = 1024 * 256;// 256 KB
+    public static final int DEFAULT_OUTPUT_HIGH_WATERMARK = 1024 * 1024;// 1 MB
+    public static final int DEFAULT_MAX_IN_FLIGHT = 1024;
 
     protected final boolean isServer;
     protected final SocketAddress address;
     protected final AESEncoder encoder;
     protected final Supplier<AT> attachmentSupplier;
+    /**
+     * the protocol proposed by a client, servers accept any of them
+     */
+    protected final int protocol;
+    /**
+     * the cipher proposed by a client, servers accept any of them
+     */
+    private int cipher;
+    private boolean plaintextAllowed;
 
-    volatile Selector selector;
-    Thread thread;
+    /**
+     * accepts or connects, and also serves the connections when there are no workers
+     */
+    volatile EventLoop boss;
+    EventLoop[] workers = new EventLoop[0];
+    private int workerCount;
+    private int balance = BALANCE_ROUND_ROBIN;
+    private int nextWorker;
+    volatile int maxFlushBytes = DEFAULT_MAX_FLUSH_BYTES;
+    volatile int outputLowWatermark = DEFAULT_OUTPUT_LOW_WATERMARK;
+    volatile int outputHighWatermark = DEFAULT_OUTPUT_HIGH_WATERMARK;
+    volatile int maxInFlight = DEFAULT_MAX_IN_FLIGHT;
+    protected final Metrics metrics = new Metrics();
+    private String jmxName;
+    private ObjectName registered;
 
     protected NIOComponent(SocketAddress address, boolean isServer,
                            AESEncoder encoder, Supplier<AT> attachmentSupplier) {
+        this(address, isServer, encoder, attachmentSupplier, PROTOCOL_TEXT);
+    }
+
+    protected NIOComponent(SocketAddress address, boolean isServer,
+                           AESEncoder encoder, Supplier<AT> attachmentSupplier, int protocol) {
+        if (protocol != PROTOCOL_TEXT && protocol != PROTOCOL_BINARY) {
+            throw new IllegalArgumentException("protocol " + protocol);
+        }
         this.isServer = isServer;
         this.address = address;
         this.encoder = new AESEncoder(encoder.secretKey, encoder.iv);
         this.attachmentSupplier = attachmentSupplier;
+        this.protocol = protocol;
+        // servers of the original protocol only know CBC
+        this.cipher = protocol == PROTOCOL_BINARY ? AESEncoder.CIPHER_GCM : AESEncoder.CIPHER_CBC;
+        metrics.gauge("connections", this::connections);
+    }
+
+    private long connections() {
+        EventLoop b = boss;
+        if (b == null) {
+            return 0;
+        }
+        long connections = b.connections.get();
+        for (EventLoop worker : workers) {
+            connections += worker.connections.get();
+        }
+        return connections;
+    }
+
+    public Metrics metrics() {
+        return metrics;
+    }
+
+    /**
+     * Registers the {@link #metrics()} to the platform MBean server as {@code NIOMap:type=<class>,name=<name>}
+     * while connected. Must be called before {@link #connect()}.
+     */
+    public synchronized void setJmxName(String jmxName) {
+        if (boss != null) {
+            throw new IllegalStateException("connected");
+        }
+        this.jmxName = jmxName;
     }
 
     private AbstractSelectableChannel channel() throws IOException {
@@ -74,10 +229,139 @@ public abstract class NIOComponent<AT> implements Closeable {
         }
     }
 
-    private Selector selector(AbstractSelectableChannel channel) throws IOException {
-        AbstractSelector selector = SelectorProvider.provider().openSelector();
-        channel.register(selector, isServer ? SelectionKey.OP_ACCEPT : SelectionKey.OP_CONNECT);
-        return selector;
+    /**
+     * Serves the accepted connections with {@code workers} event loops of their own,
+     * leaving the boss loop to accept only. Must be called before {@link #connect()}.
+     *
+     * @param workers {@code 0} to serve everything on a single loop
+     * @param balance {@link #BALANCE_ROUND_ROBIN} or {@link #BALANCE_LEAST_CONNECTIONS}
+     */
+    public synchronized void setWorkers(int workers, int balance) {
+        if (boss != null) {
+            throw new IllegalStateException("connected");
+        }
+        if (!isServer || workers < 0) {
+            throw new IllegalArgumentException("workers " + workers);
+        }
+        if (balance != BALANCE_ROUND_ROBIN && balance != BALANCE_LEAST_CONNECTIONS) {
+            throw new IllegalArgumentException("balance " + balance);
+        }
+        this.workerCount = workers;
+        this.balance = balance;
+    }
+
+    /**
+     * Proposes the cipher of the connection to the server, {@link AESEncoder#CIPHER_GCM}
+     * by default for {@link #PROTOCOL_BINARY}. Must be called before {@link #connect()}.
+     *
+     * @param cipher {@link AESEncoder#CIPHER_CBC}, {@link AESEncoder#CIPHER_GCM}, {@link AESEncoder#CIPHER_CTR}
+     *               or {@link AESEncoder#CIPHER_NONE} if the server allows it
+     */
+    public synchronized void setCipher(int cipher) {
+        if (boss != null) {
+            throw new IllegalStateException("connected");
+        }
+        if (isServer || !AESEncoder.isSupported(cipher)) {
+            throw new IllegalArgumentException("cipher " + cipher);
+        }
+        this.cipher = cipher;
+    }
+
+    /**
+     * Lets clients skip the encryption after the handshake with {@link AESEncoder#CIPHER_NONE},
+     * which is only safe on trusted networks. Must be called before {@link #connect()}.
+     */
+    public synchronized void setPlaintextAllowed(boolean plaintextAllowed) {
+        if (boss != null) {
+            throw new IllegalStateException("connected");
+        }
+        if (!isServer) {
+            throw new IllegalArgumentException("client");
+        }
+        this.plaintextAllowed = plaintextAllowed;
+    }
+
+    /**
+     * Limits the bytes of a connection written at once, so that a connection with a long
+     * backlog doesn't hold up the others served by the same event loop.
+     */
+    public void setMaxFlushBytes(int maxFlushBytes) {
+        if (maxFlushBytes <= 0) {
+            throw new IllegalArgumentException("maxFlushBytes " + maxFlushBytes);
+        }
+        this.maxFlushBytes = maxFlushBytes;
+    }
+
+    /**
+     * Stops reading from a connection of a server once the bytes waiting to be written to it reach
+     * {@code high}, until they fall to {@code low}, so that a peer not reading its replies
+     * can't make the server queue them without bound.
+     * <p>
+     * Clients keep reading, since a client and a server both waiting for the other to read would never resume.
+     */
+    public void setOutputWatermarks(int low, int high) {
+        if (low < 0 || high <= low) {
+            throw new IllegalArgumentException("watermarks " + low + ", " + high);
+        }
+        this.outputHighWatermark = high;
+        this.outputLowWatermark = low;
+    }
+
+    /**
+     * Stops reading from a connection once {@code maxInFlight} of its messages are counted
+     * in {@link ChannelContext#inFlight}, until one of them is replied, so that a peer can't make
+     * the executor of a server queue work without bound.
+     */
+    public void setMaxInFlight(int maxInFlight) {
+        if (maxInFlight <= 0) {
+            throw new IllegalArgumentException("maxInFlight " + maxInFlight);
+        }
+        this.maxInFlight = maxInFlight;
+    }
+
+    /**
+     * @return whether the bytes waiting to be written to the connection have reached the high watermark,
+     * past which streams of their own should wait for {@link #onWritable(ChannelContext)} to be called again
+     */
+    protected boolean isOutputFull(ChannelContext<AT> context) {
+        return context.messageOutput.queuedBytes >= outputHighWatermark;
+    }
+
+    /**
+     * @return whether called by one of the event loops
+     */
+    protected boolean inEventLoop() {
+        Thread current = Thread.currentThread();
+        EventLoop b = boss;
+        if (b == null) {
+            return false;
+        }
+        if (b.thread == current) {
+            return true;
+        }
+        for (EventLoop worker : workers) {
+            if (worker.thread == current) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private EventLoop nextWorker() {
+        if (workers.length == 0) {
+            return boss;
+        }
+        if (balance == BALANCE_ROUND_ROBIN) {
+            nextWorker = (nextWorker + 1) % workers.length;
+            return workers[nextWorker];
+        }
+        EventLoop least = workers[0];
+        for (EventLoop worker : workers) {
+            if (worker.connections.get() < least.connections.get()) {
+                least = worker;
+            }
+        }
+        return least;
     }
 
     @SuppressWarnings("unchecked")
@@ -86,36 +370,114 @@ public abstract class NIOComponent<AT> implements Closeable {
     }
 
     public synchronized void connect() throws IOException {
-        if (selector != null) {
+        if (boss != null) {
             throw new IllegalStateException("connected");
         }
-        this.selector = selector(channel());
-        this.thread = new Thread(this::handleEvents);
-        this.thread.start();
+        EventLoop[] loops = new EventLoop[workerCount];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop(this);
+        }
+        EventLoop loop = new EventLoop(this);
+        AbstractSelectableChannel channel = channel();
+        channel.register(loop.selector, isServer ? SelectionKey.OP_ACCEPT : SelectionKey.OP_CONNECT);
+        this.workers = loops;
+        this.boss = loop;
+        for (int i = 0; i < loops.length; i++) {
+            loops[i].start("NIOComponent-worker-" + i);
+        }
+        loop.start("NIOComponent-boss");
+        if (jmxName != null) {
+            try {
+                Hashtable<String, String> properties = new Hashtable<>();
+                properties.put("type", getClass().getSimpleName());
+                properties.put("name", ObjectName.quote(jmxName));
+                ObjectName name = new ObjectName("NIOMap", properties);
+                ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, name);
+                registered = name;
+            } catch (JMException e) {
+                close();
+                throw new IOException(e);
+            }
+        }
     }
 
+    /**
+     * Closes the connections, and waits for the event loops to exit unless called by one of them.
+     * Only the first call closes, the others return at once.
+     */
     @Override
-    public synchronized void close() throws IOException {
-        Selector s = selector;
-        if (s == null) {
-            return;
+    public void close() throws IOException {
+        EventLoop b;
+        EventLoop[] loops;
+        // not held while joining, since the loop of a client closes the client itself when its connection fails
+        synchronized (this) {
+            b = boss;
+            if (b == null) {
+                return;
+            }
+            boss = null;
+            loops = workers;
+            workers = new EventLoop[0];
+        }
+        if (registered != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(registered);
+            } catch (JMException e) {
+                // unregistered by someone else
+            }
+            registered = null;
         }
         try {
-            s.close();
+            b.close();
         } finally {
-            thread = null;
-            selector = null;
+            for (EventLoop worker : loops) {
+                worker.close();
+            }
+            join(b);
+            for (EventLoop worker : loops) {
+                join(worker);
+            }
+            onClosed();
         }
     }
 
-    private void handleEvents() {
-        Selector s;
-        while (!Thread.currentThread().isInterrupted() && (s = selector) != null) {
+    /**
+     * @return whether connected and not closed since, which a client stops being once its connection fails
+     */
+    public boolean isOpen() {
+        return boss != null;
+    }
+
+    private static void join(EventLoop loop) {
+        if (Thread.currentThread() == loop.thread) {
+            return;
+        }
+        try {
+            loop.thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    void handleEvents(EventLoop loop) {
+        Selector s = loop.selector;
+        while (!Thread.currentThread().isInterrupted() && s.isOpen()) {
             SelectionKey key = null;
             try {
-                if (s.select(TIMEOUT_MS) <= 0) {
-                    continue;
+                loop.registerPending();
+                loop.enableRequestedWrites();
+                closeRequested(loop);
+                long tickMs = loop == boss ? tickMs() : 0;
+                long selectStart = System.nanoTime();
+                s.select(loop.timers.pollTimeout(tickMs > 0 ? Math.min(tickMs, TIMEOUT_MS) : TIMEOUT_MS));
+                metrics.selectNanos.record(System.nanoTime() - selectStart);
+                metrics.selects.increment();
+                loop.timers.advance();
+                if (tickMs > 0) {
+                    onTick();
                 }
+                // not skipped when select returns 0: the keys left over by a failed iteration
+                // stay selected without being counted again, and would never be served
                 Iterator<SelectionKey> iterator = s.selectedKeys().iterator();
                 while (iterator.hasNext()) {
                     key = iterator.next();
@@ -134,41 +496,168 @@ public abstract class NIOComponent<AT> implements Closeable {
                         ChannelContext<AT> context = context(key);
                         if (context.state != CONNECTED) {
                             handleConnectionOnReadable(context);
+                            if (context.state == SERVER_OK || context.state == CONNECTED) {
+                                enableWrite(context);
+                            }
+                        } else {
+                            onReadable(context);
+                            if (context.inFlight.get() >= maxInFlight) {
+                                // read again once a reply is requested
+                                updateInterest(context);
+                            }
+                        }
+                        if (context.messageInput.eof) {
+                            throw new EOFException();
+                        }
+                        if (context.state != CONNECTED) {
                             continue;
                         }
-                        onReadable(context);
                     }
                     if (key.isWritable()) {
                         ChannelContext<AT> context = context(key);
+                        context.writeWanted = false;
+                        // the backlog goes out together with what is written now
+                        context.messageOutput.scheduleFlush();
                         if (context.state != CONNECTED) {
                             handleConnectionOnWritable(context);
-                            continue;
+                        } else {
+                            onWritable(context);
                         }
-                        onWritable(context);
+                    }
+                }
+                // flush the contexts written during the iteration, one gathering write each
+                ChannelContext<?> flushing;
+                while ((flushing = loop.flushes.poll()) != null) {
+                    key = flushing.key;
+                    flushing.messageOutput.flushScheduled = false;
+                    if (key.isValid()) {
+                        flushing.messageOutput.flush();
+                        updateInterest(flushing);
                     }
                 }
             } catch (ClosedSelectorException | CancelledKeyException e) {
                 return;
             } catch (Exception e) {
-                // TODO
-                e.printStackTrace();
+                if (!s.isOpen()) {
+                    // the channels were closed by close()
+                    return;
+                }
+                // an end of stream is how connections end, the rest are only counted
+                if (!(e instanceof EOFException)) {
+                    metrics.errors.increment();
+                }
                 try {
                     if (key != null) {
-                        key.cancel();
-                        key.channel().close();
+                        closeKey(key);
                     }
                     if (!isServer) {
                         close();
                         return;
                     }
                 } catch (IOException ex) {
-                    // TODO
-                    ex.printStackTrace();
+                    metrics.errors.increment();
                 }
             }
         }
     }
 
+    /**
+     * Makes the event loop call {@link #onWritable(ChannelContext)} for the context,
+     * which is needed whenever there is something new to write. May be called from any thread.
+     */
+    protected void requestWrite(ChannelContext<AT> context) {
+        if (Thread.currentThread() == context.loop.thread) {
+            enableWrite(context);
+        } else if (context.writeRequested.compareAndSet(false, true)) {
+            context.loop.writeRequests.add(context);
+            context.loop.selector.wakeup();
+        }
+    }
+
+    /**
+     * Closes the connection on the event loop serving it, so that it is counted out of the loop
+     * and its buffers are given back. May be called from any thread.
+     */
+    protected void closeConnection(ChannelContext<AT> context) {
+        if (Thread.currentThread() != context.loop.thread) {
+            context.loop.closeRequests.add(context);
+            context.loop.selector.wakeup();
+            return;
+        }
+        try {
+            if (context.key.isValid()) {
+                closeKey(context.key);
+            }
+        } catch (IOException e) {
+            metrics.errors.increment();
+        }
+    }
+
+    /**
+     * Counts an error of the connection then closes it, as the event loop does when its callbacks throw.
+     * May be called from any thread.
+     */
+    protected void fail(ChannelContext<AT> context) {
+        metrics.errors.increment();
+        closeConnection(context);
+    }
+
+    private void closeRequested(EventLoop loop) throws IOException {
+        ChannelContext<?> context;
+        while ((context = loop.closeRequests.poll()) != null) {
+            // closed already, maybe requested twice
+            if (context.key.isValid()) {
+                closeKey(context.key);
+            }
+        }
+    }
+
+    static void enableWrite(ChannelContext<?> context) {
+        context.writeWanted = true;
+        updateInterest(context);
+    }
+
+    /**
+     * Selects {@link SelectionKey#OP_WRITE} only while there is a backlog or something to write,
+     * and {@link SelectionKey#OP_READ} only while the backlog is within the watermarks.
+     */
+    static void updateInterest(ChannelContext<?> context) {
+        SelectionKey key = context.key;
+        if (!key.isValid()) {
+            return;
+        }
+        NIOComponent<?> component = context.loop.component;
+        if (component.isServer) {
+            long backlog = context.messageOutput.queuedBytes;
+            if (context.readPaused ? backlog <= component.outputLowWatermark
+                    : backlog >= component.outputHighWatermark) {
+                context.readPaused = !context.readPaused;
+                if (context.readPaused) {
+                    context.metrics.readPauses.increment();
+                }
+            }
+        }
+        int ops = context.readPaused || context.inFlight.get() >= component.maxInFlight ? 0 : OPS;
+        if (context.writeWanted || !context.messageOutput.queue.isEmpty()) {
+            ops |= SelectionKey.OP_WRITE;
+        }
+        if (key.interestOps() != ops) {
+            key.interestOps(ops);
+        }
+    }
+
+    private void closeKey(SelectionKey key) throws IOException {
+        key.cancel();
+        key.channel().close();
+        Object attachment = key.attachment();
+        if (attachment instanceof ChannelContext) {
+            ChannelContext<?> context = (ChannelContext<?>) attachment;
+            context.loop.connections.decrementAndGet();
+            context.messageInput.release();
+            context.messageOutput.release();
+        }
+    }
+
     private void handleConnectionOnReadable(ChannelContext<AT> context) throws IOException {
         MessageInput input = context.messageInput;
         /* client CLIENT_OK -> CONNECTED */
@@ -180,11 +669,21 @@ public abstract class NIOComponent<AT> implements Closeable {
                 return;
             }
             byte[] bytes = input.strip(1).get(0);
-            String msg = new String(bytes, StandardCharsets.UTF_8);
+            String msg = new String(bytes, 0, Math.min(bytes.length, OK_LENGTH), StandardCharsets.UTF_8);
             if (!msg.startsWith(OK) || msg.length() <= OK.length()) {
                 throw new ConnectException("Failed to establish secure connection!");
             }
+            context.options = Arrays.copyOfRange(bytes, msg.length(), bytes.length);
+            int cipher = option(context.options, OPTION_CIPHER, AESEncoder.CIPHER_CBC);
+            if (cipher != this.cipher) {
+                throw new ConnectException("Failed to establish secure connection!");
+            }
+            if (cipher == AESEncoder.CIPHER_NONE) {
+                context.encoder = new AESEncoder(context.encoder.secretKey, context.encoder.iv, cipher, false);
+            }
+            context.protocol = option(context.options, OPTION_PROTOCOL, PROTOCOL_TEXT);
             context.state = CONNECTED;
+            onConnected(context);
             return;
         }
 
@@ -195,61 +694,167 @@ public abstract class NIOComponent<AT> implements Closeable {
         if (!input.read(2)) {
             return;
         }
-        List<byte[]> msg = input.strip(encoder, 2);
-        context.encoder = new AESEncoder(msg.get(0), msg.get(1));
+        List<byte[]> msg = input.strip(context.loop.encoder, 2);
+        byte[] iv = msg.get(1);
+        if (iv.length < IV_LENGTH) {
+            throw new ConnectException("Failed to establish secure connection!");
+        }
+        context.options = Arrays.copyOfRange(iv, IV_LENGTH, iv.length);
+        int protocol = option(context.options, OPTION_PROTOCOL, PROTOCOL_TEXT);
+        if (protocol != PROTOCOL_TEXT && protocol != PROTOCOL_BINARY) {
+            throw new ConnectException("Unsupported protocol " + protocol);
+        }
+        int cipher = option(context.options, OPTION_CIPHER, AESEncoder.CIPHER_CBC);
+        if (!AESEncoder.isSupported(cipher) || cipher == AESEncoder.CIPHER_NONE && !plaintextAllowed) {
+            throw new ConnectException("Unsupported cipher " + cipher);
+        }
+        // the OK is already encrypted with the negotiated cipher, or with CBC to prove the key for plaintext
+        context.encoder = new AESEncoder(msg.get(0), Arrays.copyOf(iv, IV_LENGTH), handshakeCipher(cipher), true);
         context.state = SERVER_OK;
     }
 
+    static int option(byte[] options, int index, int defaultValue) {
+        return options.length > index ? options[index] : defaultValue;
+    }
+
     private void handleConnectionOnWritable(ChannelContext<AT> context)
             throws IOException, NoSuchAlgorithmException {
         /* server SERVER_OK -> CONNECTED */
         if (isServer) {
             if (context.state == SERVER_OK) {
-                write(context, OK + UUID.randomUUID());
+                // echo the accepted options so that the client can switch with us
+                byte[] ok = (OK + UUID.randomUUID()).getBytes(StandardCharsets.UTF_8);
+                byte[] reply = Arrays.copyOf(ok, ok.length + context.options.length);
+                System.arraycopy(context.options, 0, reply, ok.length, context.options.length);
+                context.messageOutput.write(reply);
+                int cipher = option(context.options, OPTION_CIPHER, AESEncoder.CIPHER_CBC);
+                if (cipher == AESEncoder.CIPHER_NONE) {
+                    context.encoder = new AESEncoder(context.encoder.secretKey, context.encoder.iv, cipher, true);
+                }
+                context.protocol = option(context.options, OPTION_PROTOCOL, PROTOCOL_TEXT);
                 context.state = CONNECTED;
+                onConnected(context);
             }
             return;
         }
 
         /* client CREATE -> CLIENT_OK */
         if (context.state == CREATE) {
-            context.encoder = AESEncoder.generateEncoder();
-            context.messageOutput.write(encoder, context.encoder.secretKey.getEncoded());
-            context.messageOutput.write(encoder, context.encoder.iv.getIV());
+            context.encoder = new AESEncoder(AESEncoder.generateKey(), AESEncoder.generateIv(),
+                    handshakeCipher(cipher), false);
+            context.messageOutput.write(context.loop.encoder, context.encoder.secretKey.getEncoded());
+            context.messageOutput.write(context.loop.encoder, handshakeIv(context.encoder.iv.getIV()));
             context.state = CLIENT_OK;
         }
     }
 
+    static int handshakeCipher(int cipher) {
+        return cipher == AESEncoder.CIPHER_NONE ? AESEncoder.CIPHER_CBC : cipher;
+    }
+
+    private byte[] handshakeIv(byte[] iv) {
+        if (protocol == PROTOCOL_TEXT && cipher == AESEncoder.CIPHER_CBC) {
+            // stay compatible with servers of the original protocol
+            return iv;
+        }
+        byte[] bytes = Arrays.copyOf(iv, iv.length + 2);
+        bytes[iv.length + OPTION_PROTOCOL] = (byte) protocol;
+        bytes[iv.length + OPTION_CIPHER] = (byte) cipher;
+        return bytes;
+    }
+
     protected void onConnectable(SelectionKey key) throws IOException {
         SocketChannel serverChannel = (SocketChannel) key.channel();
         serverChannel.finishConnect();
-        serverChannel.register(selector, OPS);
-        key.attach(new ChannelContext<>(serverChannel, attachmentSupplier.get()));
+        boss.connections.incrementAndGet();
+        ChannelContext<AT> context = new ChannelContext<>(key, attachmentSupplier.get(), boss);
+        key.attach(context);
+        // the handshake is sent first
+        enableWrite(context);
     }
 
     protected void onAcceptable(SelectionKey key) throws IOException {
         ServerSocketChannel serverChannel = (ServerSocketChannel) key.channel();
         SocketChannel clientChannel = serverChannel.accept();
+        if (clientChannel == null) {
+            return;
+        }
         clientChannel.configureBlocking(false);
-        SelectionKey clientKey = clientChannel.register(selector, OPS);
-        clientKey.attach(new ChannelContext<>(clientChannel, attachmentSupplier.get()));
+        nextWorker().register(clientChannel);
     }
 
     protected void onReadable(ChannelContext<AT> context) throws IOException {
         if (!context.messageInput.read()) {
             return;
         }
+        if (context.protocol == PROTOCOL_BINARY) {
+            ByteBuffer msg;
+            while ((msg = context.messageInput.nextFrame()) != null) {
+                metrics.framesIn.increment();
+                onMessage(context, msg);
+            }
+            return;
+        }
         List<byte[]> messages = context.messageInput.strip();
+        metrics.framesIn.add(messages.size());
         for (byte[] msg : messages) {
             onMessage(context, new String(msg, StandardCharsets.UTF_8));
         }
     }
 
     protected void write(ChannelContext<AT> context, String msg) throws IOException {
-        context.messageOutput.write(msg.getBytes(StandardCharsets.UTF_8));
+        write(context, msg.getBytes(StandardCharsets.UTF_8));
+    }
+
+    protected void write(ChannelContext<AT> context, byte[] msg) throws IOException {
+        context.messageOutput.write(msg);
+    }
+
+    /**
+     * Writes a {@link #PROTOCOL_BINARY} frame of the first {@code headLength} bytes of {@code head}
+     * followed by {@code body}, encrypted straight from both, which spares the array of the whole frame.
+     * Only called by the event loop of the context.
+     */
+    protected void write(ChannelContext<AT> context, byte[] head, int headLength, byte[] body) throws IOException {
+        context.messageOutput.write(head, headLength, body);
+    }
+
+    /**
+     * Called by the event loop once the secure connection is established.
+     */
+    protected void onConnected(ChannelContext<AT> context) {
     }
 
     protected abstract void onMessage(ChannelContext<AT> context, String message);
 
+    /**
+     * Receives the decrypted payload of a {@link #PROTOCOL_BINARY} frame,
+     * which lives in a scratch buffer of the event loop and must not be kept after returning.
+     */
+    protected void onMessage(ChannelContext<AT> context, ByteBuffer message) {
+        throw new UnsupportedOperationException("binary protocol");
+    }
+
     protected abstract void onWritable(ChannelContext<AT> context) throws IOException;
+
+    /**
+     * Called by the {@link #close()} that closed the component once the event loops have exited,
+     * or by the event loop closing the component itself.
+     */
+    protected void onClosed() {
+    }
+
+    /**
+     * @return how often {@link #onTick()} should be called, {@code 0} for never
+     */
+    protected long tickMs() {
+        return 0;
+    }
+
+    /**
+     * Called by the boss loop every time its selector returns, which is at least every {@link #tickMs()},
+     * for background work that can't wait for requests to come.
+     */
+    protected void onTick() {
+    }
 }
@@ -0,0 +1,71 @@
+package nio;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+/**
+ * Starts the threads serving the connections of a {@link BlockingServer}: virtual threads on JDK 21 and later,
+ * which leave their carrier while blocked, and platform daemon threads otherwise.
+ * <p>
+ * Virtual threads are looked up by reflection, since the project is still built for Java 8.
+ * <p>
+ * Created by Edsuns@qq.com on 2022/5/8.
+ */
+public final class Threads {
+
+    /*
+     * Thread.ofVirtual(), Thread.Builder.name(String) and Thread.Builder.unstarted(Runnable),
+     * null if the runtime has no virtual threads
+     */
+    private static final Method OF_VIRTUAL;
+    private static final Method NAME;
+    private static final Method UNSTARTED;
+
+    static {
+        Method ofVirtual = null, name = null, unstarted = null;
+        try {
+            ofVirtual = Thread.class.getMethod("ofVirtual");
+            Class<?> builder = Class.forName("java.lang.Thread$Builder");
+            name = builder.getMethod("name", String.class);
+            unstarted = builder.getMethod("unstarted", Runnable.class);
+            // a preview of JDK 19 and 20, which throws unless enabled
+            unstarted.invoke(ofVirtual.invoke(null), (Runnable) () -> {
+            });
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            ofVirtual = null;
+        }
+        OF_VIRTUAL = ofVirtual;
+        NAME = name;
+        UNSTARTED = unstarted;
+    }
+
+    private Threads() {
+    }
+
+    /**
+     * @return whether the runtime has virtual threads
+     */
+    public static boolean isVirtualSupported() {
+        return OF_VIRTUAL != null;
+    }
+
+    /**
+     * @param virtual whether to start a virtual thread if the runtime has them
+     */
+    public static Thread start(String name, boolean virtual, Runnable task) {
+        Thread thread;
+        if (virtual && OF_VIRTUAL != null) {
+            try {
+                // builders aren't thread-safe, so every thread gets one of its own
+                thread = (Thread) UNSTARTED.invoke(NAME.invoke(OF_VIRTUAL.invoke(null), name), task);
+            } catch (IllegalAccessException | InvocationTargetException e) {
+                throw new IllegalStateException(e);
+            }
+        } else {
+            thread = new Thread(task, name);
+            thread.setDaemon(true);
+        }
+        thread.start();
+        return thread;
+    }
+}
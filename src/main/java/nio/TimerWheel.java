@@ -0,0 +1,149 @@
+package nio;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A hashed timing wheel, confined to the thread of its {@link EventLoop},
+ * which advances it every time {@link java.nio.channels.Selector#select(long)} returns.
+ * Scheduling and cancelling are O(1), so that every request can afford a timeout of its own.
+ * <p>
+ * Created by Edsuns@qq.com on 2022/4/25.
+ */
+public class TimerWheel {
+
+    public static final long DEFAULT_TICK_MS = 10;
+    public static final int DEFAULT_WHEEL_SIZE = 512;
+
+    public static final class Timeout {
+        final Runnable task;
+        final long deadlineTick;
+        TimerWheel wheel;
+        Timeout prev, next;
+
+        Timeout(Runnable task, long deadlineTick) {
+            this.task = task;
+            this.deadlineTick = deadlineTick;
+        }
+
+        /**
+         * Must be called by the thread of the wheel.
+         *
+         * @return {@code false} if it has already expired or been cancelled
+         */
+        public boolean cancel() {
+            TimerWheel w = wheel;
+            if (w == null) {
+                return false;
+            }
+            w.unlink(this);
+            return true;
+        }
+    }
+
+    final long tickMs;
+    private final Timeout[] buckets;
+    private final int mask;
+    private final long start;
+    private long tick;
+    private int size;
+    private final Queue<Timeout> expired = new ArrayDeque<>();
+
+    public TimerWheel() {
+        this(DEFAULT_TICK_MS, DEFAULT_WHEEL_SIZE);
+    }
+
+    /**
+     * @param wheelSize rounded up to a power of two
+     */
+    public TimerWheel(long tickMs, int wheelSize) {
+        if (tickMs <= 0 || wheelSize <= 0) {
+            throw new IllegalArgumentException();
+        }
+        this.tickMs = tickMs;
+        this.buckets = new Timeout[Math.max(1, Integer.highestOneBit(wheelSize - 1) << 1)];
+        this.mask = buckets.length - 1;
+        this.start = now();
+    }
+
+    static long now() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Runs {@code task} on the thread of the wheel once {@code delayMs} has elapsed.
+     */
+    public Timeout schedule(Runnable task, long delayMs) {
+        long deadline = now() + Math.max(0, delayMs) - start;
+        // round up, and never into the bucket being expired
+        long deadlineTick = Math.max((deadline + tickMs - 1) / tickMs, tick + 1);
+        Timeout timeout = new Timeout(task, deadlineTick);
+        int bucket = (int) (deadlineTick & mask);
+        timeout.next = buckets[bucket];
+        if (timeout.next != null) {
+            timeout.next.prev = timeout;
+        }
+        buckets[bucket] = timeout;
+        timeout.wheel = this;
+        size++;
+        return timeout;
+    }
+
+    private void unlink(Timeout timeout) {
+        if (timeout.prev != null) {
+            timeout.prev.next = timeout.next;
+        } else {
+            buckets[(int) (timeout.deadlineTick & mask)] = timeout.next;
+        }
+        if (timeout.next != null) {
+            timeout.next.prev = timeout.prev;
+        }
+        timeout.prev = timeout.next = null;
+        timeout.wheel = null;
+        size--;
+    }
+
+    /**
+     * @return how long the event loop may block before the next tick is due
+     */
+    long pollTimeout(long maxMs) {
+        if (size == 0) {
+            return maxMs;
+        }
+        long next = (tick + 1) * tickMs - (now() - start);
+        return Math.max(1, Math.min(next, maxMs));
+    }
+
+    /**
+     * Runs the expired tasks.
+     */
+    void advance() {
+        long target = (now() - start) / tickMs;
+        while (tick < target && size > 0) {
+            tick++;
+            // unlinked before running, since the tasks may cancel the other timeouts
+            for (Timeout timeout = buckets[(int) (tick & mask)]; timeout != null; ) {
+                Timeout next = timeout.next;
+                if (timeout.deadlineTick <= tick) {
+                    unlink(timeout);
+                    expired.add(timeout);
+                }
+                timeout = next;
+            }
+            Timeout timeout;
+            while ((timeout = expired.poll()) != null) {
+                timeout.task.run();
+            }
+        }
+        tick = Math.max(tick, target);
+    }
+}
@@ -0,0 +1,299 @@
+package store;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * Bounds another engine by entries and/or estimated bytes, evicting the entries chosen by an {@link EvictionPolicy}.
+ * <p>
+ * Writes go through a single lock, which keeps the policy in step with the engine.
+ * Reads take no lock: the keys read are recorded in lossy ring buffers striped by thread,
+ * which are replayed to the policy by whichever thread gets the lock next.
+ * Losing a few reads when the buffers overflow only costs the policy some precision.
+ * <p>
+ * The wrappers recording the mutations, {@link ReplicatedStorageEngine} and {@link DurableStorageEngine},
+ * record the evictions as removals when this engine is beneath them, see {@link #find(StorageEngine)},
+ * so that the replicas and the recovered entries match the ones kept. They record a put before applying it then,
+ * since the put may evict its own key. Above them, the evictions go through them like any removal.
+ * <p>
+ * Created by Edsuns@qq.com on 2022/4/30.
+ */
+public class BoundedStorageEngine implements StorageEngine, Closeable {
+
+    /**
+     * the bytes estimated for an entry besides its chars, for the map entries and the string headers
+     */
+    static final int ENTRY_OVERHEAD = 96;
+    static final int READ_BUFFER_SIZE = 32;// per stripe, a power of two
+    static final int READ_BUFFER_MASK = READ_BUFFER_SIZE - 1;
+
+    /**
+     * Told of the keys evicted, under the lock of the engine, so it should only record the removal.
+     */
+    public interface EvictionListener {
+
+        void onEvict(String key);
+    }
+
+    final StorageEngine engine;
+    final EvictionPolicy policy;
+    final long maxEntries;
+    final long maxBytes;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    /**
+     * guarded by {@link #lock}
+     */
+    private long entries, bytes;
+
+    private final AtomicReferenceArray<String>[] readBuffers;
+    private final AtomicLong[] readTails;
+    private final int stripeMask;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    /**
+     * copied on write, guarded by {@link #lock}
+     */
+    private volatile EvictionListener[] evictionListeners = new EvictionListener[0];
+
+    /**
+     * @param maxEntries {@code 0} for no limit
+     * @param maxBytes   {@code 0} for no limit, compared with {@link #weigh(String, String)}
+     */
+    @SuppressWarnings("unchecked")
+    public BoundedStorageEngine(StorageEngine engine, EvictionPolicy policy, long maxEntries, long maxBytes) {
+        if (maxEntries < 0 || maxBytes < 0 || maxEntries == 0 && maxBytes == 0) {
+            throw new IllegalArgumentException("maxEntries " + maxEntries + ", maxBytes " + maxBytes);
+        }
+        this.engine = engine;
+        this.policy = policy;
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+        int stripes = Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 4 - 1) << 1;
+        this.readBuffers = new AtomicReferenceArray[stripes];
+        this.readTails = new AtomicLong[stripes];
+        for (int i = 0; i < stripes; i++) {
+            readBuffers[i] = new AtomicReferenceArray<>(READ_BUFFER_SIZE);
+            readTails[i] = new AtomicLong();
+        }
+        this.stripeMask = stripes - 1;
+    }
+
+    /**
+     * @return {@code engine} if bounded, or the bounded engine beneath the wrappers recording its mutations,
+     * {@code null} if none
+     */
+    public static BoundedStorageEngine find(StorageEngine engine) {
+        while (true) {
+            if (engine instanceof BoundedStorageEngine) {
+                return (BoundedStorageEngine) engine;
+            } else if (engine instanceof ReplicatedStorageEngine) {
+                engine = ((ReplicatedStorageEngine) engine).engine;
+            } else if (engine instanceof DurableStorageEngine) {
+                engine = ((DurableStorageEngine) engine).engine;
+            } else {
+                return null;
+            }
+        }
+    }
+
+    public void addEvictionListener(EvictionListener listener) {
+        lock.lock();
+        try {
+            EvictionListener[] l = Arrays.copyOf(evictionListeners, evictionListeners.length + 1);
+            l[l.length - 1] = listener;
+            evictionListeners = l;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the estimated heap bytes of an entry
+     */
+    public static int weigh(String key, String val) {
+        return ENTRY_OVERHEAD + (key.length() + val.length()) * Character.BYTES;
+    }
+
+    @Override
+    public String put(String key, String val) {
+        int weight = weigh(key, val);
+        lock.lock();
+        try {
+            drainReads();
+            String old = engine.put(key, val);
+            if (old == null) {
+                policy.onInsert(key, weight);
+                entries++;
+                bytes += weight;
+            } else {
+                bytes += weight - policy.onUpdate(key, weight);
+            }
+            evict();
+            return old;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void evict() {
+        while (maxEntries > 0 && entries > maxEntries || maxBytes > 0 && bytes > maxBytes) {
+            String victim = policy.victim();
+            if (victim == null) {
+                return;
+            }
+            engine.remove(victim);
+            bytes -= policy.onRemove(victim);
+            entries--;
+            evictions.increment();
+            for (EvictionListener listener : evictionListeners) {
+                listener.onEvict(victim);
+            }
+        }
+    }
+
+    @Override
+    public String get(String key) {
+        String val = engine.get(key);
+        if (val == null) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        recordRead(key);
+        return val;
+    }
+
+    @Override
+    public byte[] getUtf8(Utf8Key key) {
+        byte[] val = engine.getUtf8(key);
+        if (val == null) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        // the policy keeps the keys, which the reused one can't be
+        recordRead(key.toString());
+        return val;
+    }
+
+    private void recordRead(String key) {
+        int stripe = (int) Thread.currentThread().getId() & stripeMask;
+        long tail = readTails[stripe].getAndIncrement();
+        readBuffers[stripe].lazySet((int) tail & READ_BUFFER_MASK, key);
+        // replayed once a stripe fills up, unless someone else is at it
+        if ((tail & READ_BUFFER_MASK) == READ_BUFFER_MASK && lock.tryLock()) {
+            try {
+                drainReads();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Must hold {@link #lock}.
+     */
+    private void drainReads() {
+        for (AtomicReferenceArray<String> buffer : readBuffers) {
+            for (int i = 0; i < READ_BUFFER_SIZE; i++) {
+                String key = buffer.get(i);
+                if (key != null && buffer.compareAndSet(i, key, null)) {
+                    policy.onAccess(key);
+                }
+            }
+        }
+    }
+
+    @Override
+    public String remove(String key) {
+        lock.lock();
+        try {
+            String old = engine.remove(key);
+            if (old != null) {
+                bytes -= policy.onRemove(key);
+                entries--;
+            }
+            return old;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        return engine.size();
+    }
+
+    @Override
+    public int clear() {
+        lock.lock();
+        try {
+            drainReads();
+            policy.clear();
+            entries = bytes = 0;
+            return engine.clear();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void forEach(BiConsumer<String, String> action) {
+        engine.forEach(action);
+    }
+
+    @Override
+    public void forEachPart(Consumer<List<String>> action) {
+        engine.forEachPart(action);
+    }
+
+    public long hitCount() {
+        return hits.sum();
+    }
+
+    public long missCount() {
+        return misses.sum();
+    }
+
+    /**
+     * @return the hits out of the gets, {@code 1} before any get
+     */
+    public double hitRatio() {
+        long hit = hits.sum(), total = hit + misses.sum();
+        return total == 0 ? 1 : (double) hit / total;
+    }
+
+    public long evictionCount() {
+        return evictions.sum();
+    }
+
+    /**
+     * @return the estimated bytes of the entries, see {@link #weigh(String, String)}
+     */
+    public long weightedSize() {
+        lock.lock();
+        try {
+            return bytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (engine instanceof Closeable) {
+            ((Closeable) engine).close();
+        }
+    }
+}
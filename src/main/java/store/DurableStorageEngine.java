@@ -0,0 +1,379 @@
+package store;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * Makes another engine survive restarts, by logging its mutations to a {@link WriteAheadLog}
+ * and compacting the log into snapshots from time to time.
+ * <p>
+ * A snapshot {@code snapshot-N.dat} holds every entry written before the log file {@code N} was started,
+ * and possibly some written afterwards, which is harmless since replaying the log file {@code N}
+ * and its successors overwrites them in order. Snapshots are {@link MappedIndex} files.
+ * On startup the latest snapshot is loaded, or just mapped by a {@link MappedStorageEngine},
+ * and the log files from its sequence on are replayed.
+ * <p>
+ * The mutations of a key are logged in the order they are applied thanks to striped locks.
+ * With {@link WriteAheadLog#FSYNC_ALWAYS} they also wait for their group commit,
+ * which blocks the calling thread for as long as an fsync takes.
+ * Over a {@link BoundedStorageEngine}, the puts are logged before they are applied under a lock of their own,
+ * and the evictions are logged as removals.
+ * <p>
+ * Created by Edsuns@qq.com on 2022/4/28.
+ */
+public class DurableStorageEngine implements StorageEngine, Closeable {
+
+    public static final long DEFAULT_SNAPSHOT_LOG_BYTES = 1024 * 1024 * 64;// 64 MB
+    static final int STRIPES = 64;
+
+    static final String SNAPSHOT_PREFIX = "snapshot-";
+    static final String SNAPSHOT_SUFFIX = ".dat";
+    static final String TMP_SUFFIX = ".tmp";
+
+    final StorageEngine engine;
+    final Path directory;
+    final WriteAheadLog log;
+    private final long snapshotLogBytes;
+    private final ReentrantLock[] stripes = new ReentrantLock[STRIPES];
+    /**
+     * orders the puts with the evictions they cause, only taken over a bounded engine
+     */
+    private final ReentrantLock putLock = new ReentrantLock();
+    private final boolean bounded;
+    /**
+     * the record of the last eviction, guarded by {@link #putLock}
+     */
+    private long evictedRecord;
+    private final AtomicBoolean snapshotting = new AtomicBoolean();
+    private volatile Thread snapshotThread;
+    /**
+     * the failure of the last snapshot taken in the background, {@code null} once one succeeds
+     */
+    private volatile IOException snapshotFailure;
+
+    public DurableStorageEngine(StorageEngine engine, Path directory, int fsync, long fsyncIntervalMs)
+            throws IOException {
+        this(engine, directory, fsync, fsyncIntervalMs, DEFAULT_SNAPSHOT_LOG_BYTES);
+    }
+
+    /**
+     * Recovers the entries found in {@code directory} into {@code engine}, which should be empty.
+     * A {@link MappedStorageEngine} serves the latest snapshot as it is, instead of loading it.
+     *
+     * @param fsync            see {@link WriteAheadLog}
+     * @param snapshotLogBytes the size of the log file that triggers a snapshot in the background
+     */
+    public DurableStorageEngine(StorageEngine engine, Path directory, int fsync, long fsyncIntervalMs,
+                                long snapshotLogBytes) throws IOException {
+        if (snapshotLogBytes <= 0) {
+            throw new IllegalArgumentException("snapshotLogBytes " + snapshotLogBytes);
+        }
+        this.engine = engine;
+        this.directory = Files.createDirectories(directory);
+        this.snapshotLogBytes = snapshotLogBytes;
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = new ReentrantLock();
+        }
+        this.log = new WriteAheadLog(directory, recover() + 1, fsync, fsyncIntervalMs);
+        // once the log is open, the replay comes with its evictions logged already
+        BoundedStorageEngine b = BoundedStorageEngine.find(engine);
+        this.bounded = b != null;
+        if (b != null) {
+            b.addEvictionListener(this::evicted);
+        }
+    }
+
+    static Path snapshotFile(Path directory, long sequence) {
+        return directory.resolve(SNAPSHOT_PREFIX + String.format("%016d", sequence) + SNAPSHOT_SUFFIX);
+    }
+
+    static long snapshotSequence(Path file) {
+        String name = file.getFileName().toString();
+        if (!name.startsWith(SNAPSHOT_PREFIX) || !name.endsWith(SNAPSHOT_SUFFIX)) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(name.substring(SNAPSHOT_PREFIX.length(), name.length() - SNAPSHOT_SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @return the highest sequence found
+     */
+    private long recover() throws IOException {
+        long snapshot = -1;
+        List<Long> logs = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                if (file.getFileName().toString().endsWith(TMP_SUFFIX)) {
+                    // an unfinished snapshot
+                    Files.delete(file);
+                }
+                snapshot = Math.max(snapshot, snapshotSequence(file));
+                long sequence = WriteAheadLog.sequence(file);
+                if (sequence >= 0) {
+                    logs.add(sequence);
+                }
+            }
+        }
+        if (snapshot >= 0) {
+            Path file = snapshotFile(directory, snapshot);
+            if (engine instanceof MappedStorageEngine) {
+                // the mapping outlives the file, once deleted by a later snapshot
+                ((MappedStorageEngine) engine).map(file);
+            } else {
+                MappedIndex.open(file).forEach(engine::put);
+            }
+        }
+        logs.sort(null);
+        long last = snapshot;
+        for (long sequence : logs) {
+            if (sequence >= snapshot) {
+                WriteAheadLog.replay(WriteAheadLog.file(directory, sequence), this::apply);
+            }
+            last = Math.max(last, sequence);
+        }
+        return last;
+    }
+
+    private void apply(byte op, String key, String val) {
+        switch (op) {
+            case WriteAheadLog.PUT:
+                engine.put(key, val);
+                break;
+            case WriteAheadLog.REMOVE:
+                engine.remove(key);
+                break;
+            case WriteAheadLog.CLEAR:
+                engine.clear();
+                break;
+            default:
+                throw new IllegalStateException("op " + op);
+        }
+    }
+
+    /**
+     * Compacts the log into a snapshot of the current entries, and deletes the files it supersedes.
+     * Mutations go on meanwhile.
+     */
+    public synchronized void snapshot() throws IOException {
+        long sequence = log.rotate();
+        Path tmp = directory.resolve(snapshotFile(directory, sequence).getFileName() + TMP_SUFFIX);
+        MappedIndex.write(tmp, engine);
+        Files.move(tmp, snapshotFile(directory, sequence), StandardCopyOption.ATOMIC_MOVE);
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                long s = Math.max(snapshotSequence(file), WriteAheadLog.sequence(file));
+                if (s >= 0 && s < sequence) {
+                    Files.delete(file);
+                }
+            }
+        }
+    }
+
+    /**
+     * Starts a snapshot in the background once the log has grown enough.
+     */
+    private void snapshotIfDue() {
+        if (log.size() < snapshotLogBytes || !snapshotting.compareAndSet(false, true)) {
+            return;
+        }
+        Thread thread = new Thread(() -> {
+            try {
+                snapshot();
+                snapshotFailure = null;
+            } catch (IOException e) {
+                snapshotFailure = e;
+            } catch (RuntimeException e) {
+                snapshotFailure = new IOException(e);
+            } finally {
+                snapshotting.set(false);
+            }
+        }, "NIOMap-snapshot");
+        thread.setDaemon(true);
+        snapshotThread = thread;
+        thread.start();
+    }
+
+    /**
+     * @return the failure of the last snapshot taken in the background, which {@link #close()} throws too,
+     * {@code null} if it succeeded. The log keeps growing until a snapshot succeeds.
+     */
+    public IOException snapshotFailure() {
+        return snapshotFailure;
+    }
+
+    /**
+     * @return whether the mutations wait for their fsync, with {@link WriteAheadLog#FSYNC_ALWAYS}
+     */
+    public boolean isBlocking() {
+        return log.fsync == WriteAheadLog.FSYNC_ALWAYS;
+    }
+
+    /**
+     * @return {@code engine} if durable, or the durable engine beneath the wrappers of the other engines,
+     * {@code null} if none
+     */
+    public static DurableStorageEngine find(StorageEngine engine) {
+        while (true) {
+            if (engine instanceof DurableStorageEngine) {
+                return (DurableStorageEngine) engine;
+            } else if (engine instanceof ExpiringStorageEngine) {
+                engine = ((ExpiringStorageEngine) engine).engine;
+            } else if (engine instanceof ReplicatedStorageEngine) {
+                engine = ((ReplicatedStorageEngine) engine).engine;
+            } else if (engine instanceof BoundedStorageEngine) {
+                engine = ((BoundedStorageEngine) engine).engine;
+            } else {
+                return null;
+            }
+        }
+    }
+
+    private ReentrantLock stripe(String key) {
+        int h = key.hashCode();
+        return stripes[(h ^ (h >>> 16)) & (STRIPES - 1)];
+    }
+
+    private void committed(long record) {
+        log.await(record);
+        snapshotIfDue();
+    }
+
+    @Override
+    public String put(String key, String val) {
+        ReentrantLock stripe = stripe(key);
+        String old;
+        long record;
+        stripe.lock();
+        try {
+            if (bounded) {
+                // logged first since the put may evict its own key, the evictions it causes follow
+                putLock.lock();
+                try {
+                    record = log.append(WriteAheadLog.PUT, key, val);
+                    old = engine.put(key, val);
+                    record = Math.max(record, evictedRecord);
+                } finally {
+                    putLock.unlock();
+                }
+            } else {
+                old = engine.put(key, val);
+                record = log.append(WriteAheadLog.PUT, key, val);
+            }
+        } finally {
+            stripe.unlock();
+        }
+        committed(record);
+        return old;
+    }
+
+    /**
+     * Logs an eviction as a removal, called by the put that caused it, which awaits it.
+     */
+    private void evicted(String key) {
+        putLock.lock();
+        try {
+            evictedRecord = log.append(WriteAheadLog.REMOVE, key, null);
+        } finally {
+            putLock.unlock();
+        }
+    }
+
+    @Override
+    public String get(String key) {
+        return engine.get(key);
+    }
+
+    @Override
+    public byte[] getUtf8(Utf8Key key) {
+        return engine.getUtf8(key);
+    }
+
+    @Override
+    public String remove(String key) {
+        ReentrantLock stripe = stripe(key);
+        String old;
+        long record;
+        stripe.lock();
+        try {
+            old = engine.remove(key);
+            if (old == null) {
+                return null;
+            }
+            record = log.append(WriteAheadLog.REMOVE, key, null);
+        } finally {
+            stripe.unlock();
+        }
+        committed(record);
+        return old;
+    }
+
+    @Override
+    public int size() {
+        return engine.size();
+    }
+
+    @Override
+    public int clear() {
+        int size;
+        long record;
+        for (ReentrantLock stripe : stripes) {
+            stripe.lock();
+        }
+        try {
+            size = engine.clear();
+            record = log.append(WriteAheadLog.CLEAR, null, null);
+        } finally {
+            for (int i = stripes.length - 1; i >= 0; i--) {
+                stripes[i].unlock();
+            }
+        }
+        committed(record);
+        return size;
+    }
+
+    @Override
+    public void forEach(BiConsumer<String, String> action) {
+        engine.forEach(action);
+    }
+
+    @Override
+    public void forEachPart(Consumer<List<String>> action) {
+        engine.forEachPart(action);
+    }
+
+    /**
+     * Waits for a snapshot in progress, and writes out the log.
+     *
+     * @throws IOException also if the last snapshot taken in the background failed, once the log is written out
+     */
+    @Override
+    public void close() throws IOException {
+        Thread thread = snapshotThread;
+        if (thread != null) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        log.close();
+        IOException failure = snapshotFailure;
+        if (failure != null) {
+            throw failure;
+        }
+    }
+}
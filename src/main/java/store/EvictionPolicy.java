@@ -0,0 +1,56 @@
+package store;
+
+/**
+ * Chooses the entries a {@link BoundedStorageEngine} evicts. The keys are tracked with their weights.
+ * <p>
+ * Only called by the thread holding the lock of the engine, so implementations need no locking.
+ * <p>
+ * Created by Edsuns@qq.com on 2022/4/30.
+ */
+public interface EvictionPolicy {
+
+    /**
+     * Evicts the least recently used entry.
+     */
+    static EvictionPolicy lru() {
+        return new LruPolicy();
+    }
+
+    /**
+     * Evicts the entries accessed least often lately, while a small recency window
+     * gives new entries a chance to prove themselves, which suits most cache workloads.
+     */
+    static EvictionPolicy tinyLfu() {
+        return new TinyLfuPolicy();
+    }
+
+    /**
+     * A key newly added.
+     */
+    void onInsert(String key, int weight);
+
+    /**
+     * A tracked key whose value has been replaced.
+     *
+     * @return the previous weight
+     */
+    int onUpdate(String key, int weight);
+
+    /**
+     * A key read, possibly no longer tracked since reads are recorded lazily.
+     */
+    void onAccess(String key);
+
+    /**
+     * @return the weight of the key, {@code 0} if it wasn't tracked
+     */
+    int onRemove(String key);
+
+    /**
+     * @return the key to evict next, which is still tracked until {@link #onRemove(String)},
+     * {@code null} if there is none
+     */
+    String victim();
+
+    void clear();
+}
@@ -0,0 +1,397 @@
+package store;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
+
+/**
+ * Gives the keys of another engine a time to live.
+ * <p>
+ * An expired key is removed by whoever touches it first: a read or write of the key,
+ * or {@link #tick()}, which expires the keys that nobody touches through an {@link ExpiryWheel}.
+ * A tick expires at most {@link #EXPIRE_BUDGET} keys and leaves the rest to the next ticks,
+ * so there is never a scan of the whole storage.
+ * <p>
+ * The mutations of a key and its expiry are kept in step by striped locks.
+ * Reads of keys without a deadline take no lock. Deadlines are kept in memory only.
+ * <p>
+ * Created by Edsuns@qq.com on 2022/5/1.
+ */
+public class ExpiringStorageEngine implements StorageEngine, Closeable {
+
+    /**
+     * the resolution of the active expiry, which expires keys late by up to a tick
+     */
+    public static final long TICK_MS = 100;
+    /**
+     * the most keys looked at by a tick
+     */
+    static final int EXPIRE_BUDGET = 1000;
+    static final int STRIPES = 64;
+
+    /**
+     * returned by {@link #ttl(String)} for a key without a deadline
+     */
+    public static final long NO_EXPIRY = -1;
+    /**
+     * returned by {@link #ttl(String)} for an absent key
+     */
+    public static final long ABSENT = -2;
+
+    final StorageEngine engine;
+    private final LongSupplier clock;
+    private final ReentrantLock[] stripes = new ReentrantLock[STRIPES];
+    /**
+     * the deadlines of the keys, the entries of the wheel no longer found here are stale
+     */
+    private final ConcurrentHashMap<String, ExpiryWheel.Expiry> expiries = new ConcurrentHashMap<>();
+    /**
+     * the deadlines set by any thread, added to the wheel by the next tick
+     */
+    private final Queue<ExpiryWheel.Expiry> scheduled = new ConcurrentLinkedQueue<>();
+    /**
+     * the deadlines superseded by any thread, unlinked from the wheel by the next tick
+     */
+    private final Queue<ExpiryWheel.Expiry> cancelled = new ConcurrentLinkedQueue<>();
+    private final ReentrantLock tickLock = new ReentrantLock();
+    /*
+     * guarded by tickLock
+     */
+    private final ExpiryWheel wheel;
+    private final Queue<ExpiryWheel.Expiry> due = new ArrayDeque<>();
+    private final LongAdder expired = new LongAdder();
+
+    public ExpiringStorageEngine(StorageEngine engine) {
+        this(engine, ExpiringStorageEngine::now);
+    }
+
+    /**
+     * @param clock milliseconds of a monotonic clock
+     */
+    ExpiringStorageEngine(StorageEngine engine, LongSupplier clock) {
+        this.engine = engine;
+        this.clock = clock;
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = new ReentrantLock();
+        }
+        this.wheel = new ExpiryWheel(TICK_MS, clock.getAsLong());
+    }
+
+    static long now() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    }
+
+    private ReentrantLock stripe(String key) {
+        int h = key.hashCode();
+        return stripes[(h ^ (h >>> 16)) & (STRIPES - 1)];
+    }
+
+    /**
+     * Must hold the stripe of the key.
+     *
+     * @return whether the key had expired, and has been removed
+     */
+    private boolean expireIfDue(String key) {
+        ExpiryWheel.Expiry expiry = expiries.get(key);
+        if (expiry == null || expiry.deadlineMs > clock.getAsLong()) {
+            return false;
+        }
+        expiries.remove(key);
+        engine.remove(key);
+        expired.increment();
+        return true;
+    }
+
+    /**
+     * Must hold the stripe of the key.
+     */
+    private void setDeadline(String key, long ttlMs) {
+        ExpiryWheel.Expiry expiry = new ExpiryWheel.Expiry(key, clock.getAsLong() + ttlMs);
+        cancel(expiries.put(key, expiry));
+        scheduled.add(expiry);
+    }
+
+    /**
+     * Has the deadline superseded unlinked from the wheel, rather than kept until it is due.
+     */
+    private void cancel(ExpiryWheel.Expiry expiry) {
+        if (expiry != null) {
+            expiry.cancelled = true;
+            cancelled.add(expiry);
+        }
+    }
+
+    /**
+     * Also clears the deadline of the key.
+     */
+    @Override
+    public String put(String key, String val) {
+        ReentrantLock stripe = stripe(key);
+        stripe.lock();
+        try {
+            expireIfDue(key);
+            cancel(expiries.remove(key));
+            return engine.put(key, val);
+        } finally {
+            stripe.unlock();
+        }
+    }
+
+    /**
+     * Puts the entry to be removed once {@code ttlMs} has elapsed.
+     */
+    public String put(String key, String val, long ttlMs) {
+        if (ttlMs <= 0) {
+            throw new IllegalArgumentException("ttl " + ttlMs);
+        }
+        ReentrantLock stripe = stripe(key);
+        stripe.lock();
+        try {
+            expireIfDue(key);
+            String old = engine.put(key, val);
+            setDeadline(key, ttlMs);
+            return old;
+        } finally {
+            stripe.unlock();
+        }
+    }
+
+    /**
+     * Sets the time to live of a key, a non-positive one removes it.
+     *
+     * @return {@code false} if the key is absent
+     */
+    public boolean expire(String key, long ttlMs) {
+        ReentrantLock stripe = stripe(key);
+        stripe.lock();
+        try {
+            if (expireIfDue(key) || engine.get(key) == null) {
+                return false;
+            }
+            if (ttlMs <= 0) {
+                cancel(expiries.remove(key));
+                engine.remove(key);
+            } else {
+                setDeadline(key, ttlMs);
+            }
+            return true;
+        } finally {
+            stripe.unlock();
+        }
+    }
+
+    /**
+     * @return the milliseconds left to live, {@link #NO_EXPIRY} or {@link #ABSENT}
+     */
+    public long ttl(String key) {
+        ReentrantLock stripe = stripe(key);
+        stripe.lock();
+        try {
+            if (expireIfDue(key) || engine.get(key) == null) {
+                return ABSENT;
+            }
+            ExpiryWheel.Expiry expiry = expiries.get(key);
+            return expiry == null ? NO_EXPIRY : Math.max(0, expiry.deadlineMs - clock.getAsLong());
+        } finally {
+            stripe.unlock();
+        }
+    }
+
+    @Override
+    public String get(String key) {
+        ExpiryWheel.Expiry expiry = expiries.get(key);
+        if (expiry == null || expiry.deadlineMs > clock.getAsLong()) {
+            return engine.get(key);
+        }
+        ReentrantLock stripe = stripe(key);
+        stripe.lock();
+        try {
+            expireIfDue(key);
+            // put again meanwhile, maybe
+            return engine.get(key);
+        } finally {
+            stripe.unlock();
+        }
+    }
+
+    /**
+     * Only decodes the keys which are due.
+     */
+    @Override
+    public byte[] getUtf8(Utf8Key key) {
+        // the expiries are keyed by Strings, which the key equals
+        ExpiryWheel.Expiry expiry = expiries.get(key);
+        if (expiry == null || expiry.deadlineMs > clock.getAsLong()) {
+            return engine.getUtf8(key);
+        }
+        String k = key.toString();
+        ReentrantLock stripe = stripe(k);
+        stripe.lock();
+        try {
+            expireIfDue(k);
+            return engine.getUtf8(key);
+        } finally {
+            stripe.unlock();
+        }
+    }
+
+    @Override
+    public String remove(String key) {
+        ReentrantLock stripe = stripe(key);
+        stripe.lock();
+        try {
+            if (expireIfDue(key)) {
+                return null;
+            }
+            cancel(expiries.remove(key));
+            return engine.remove(key);
+        } finally {
+            stripe.unlock();
+        }
+    }
+
+    /**
+     * Also counts the expired keys not removed yet.
+     */
+    @Override
+    public int size() {
+        return engine.size();
+    }
+
+    @Override
+    public int clear() {
+        for (ReentrantLock stripe : stripes) {
+            stripe.lock();
+        }
+        try {
+            expiries.values().forEach(this::cancel);
+            expiries.clear();
+            return engine.clear();
+        } finally {
+            for (int i = stripes.length - 1; i >= 0; i--) {
+                stripes[i].unlock();
+            }
+        }
+    }
+
+    /**
+     * Skips the expired keys.
+     */
+    @Override
+    public void forEach(BiConsumer<String, String> action) {
+        long now = clock.getAsLong();
+        engine.forEach((key, val) -> {
+            ExpiryWheel.Expiry expiry = expiries.get(key);
+            if (expiry == null || expiry.deadlineMs > now) {
+                action.accept(key, val);
+            }
+        });
+    }
+
+    /**
+     * Skips the expired keys.
+     */
+    @Override
+    public void forEachPart(Consumer<List<String>> action) {
+        engine.forEachPart(part -> {
+            long now = clock.getAsLong();
+            List<String> live = new ArrayList<>(part.size());
+            for (int i = 0; i < part.size(); i += 2) {
+                ExpiryWheel.Expiry expiry = expiries.get(part.get(i));
+                if (expiry == null || expiry.deadlineMs > now) {
+                    live.add(part.get(i));
+                    live.add(part.get(i + 1));
+                }
+            }
+            if (!live.isEmpty()) {
+                action.accept(live);
+            }
+        });
+    }
+
+    /**
+     * Expires some of the keys due, meant to be called about every {@link #TICK_MS}.
+     * Returns at once if another thread is at it.
+     *
+     * @return the count of the keys expired
+     */
+    public int tick() {
+        if (!tickLock.tryLock()) {
+            return 0;
+        }
+        try {
+            ExpiryWheel.Expiry expiry;
+            while ((expiry = cancelled.poll()) != null) {
+                wheel.remove(expiry);
+            }
+            while ((expiry = scheduled.poll()) != null) {
+                if (!expiry.cancelled) {
+                    wheel.add(expiry, due);
+                }
+            }
+            wheel.advance(clock.getAsLong(), due);
+            int count = 0;
+            for (int budget = EXPIRE_BUDGET; budget > 0 && (expiry = due.poll()) != null; budget--) {
+                if (expire(expiry)) {
+                    count++;
+                }
+            }
+            return count;
+        } finally {
+            tickLock.unlock();
+        }
+    }
+
+    private boolean expire(ExpiryWheel.Expiry expiry) {
+        ReentrantLock stripe = stripe(expiry.key);
+        stripe.lock();
+        try {
+            // not stale
+            if (!expiries.remove(expiry.key, expiry)) {
+                return false;
+            }
+            engine.remove(expiry.key);
+            expired.increment();
+            return true;
+        } finally {
+            stripe.unlock();
+        }
+    }
+
+    /**
+     * @return the count of the keys expired so far, lazily or by ticks
+     */
+    public long expiredCount() {
+        return expired.sum();
+    }
+
+    /**
+     * @return the deadlines in the wheel
+     */
+    int wheelSize() {
+        tickLock.lock();
+        try {
+            return wheel.size();
+        } finally {
+            tickLock.unlock();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (engine instanceof Closeable) {
+            ((Closeable) engine).close();
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package store;
+
+import java.util.Queue;
+
+/**
+ * A hierarchical timing wheel of the deadlines of the keys: {@link #LEVELS} wheels of {@link #SLOTS} slots,
+ * each slot of a level spanning a whole turn of the level below. Deadlines too far for the top level wait
+ * in its furthest slot. When a slot of an upper level comes up, its entries are cascaded down to finer slots,
+ * so adding is O(1) whatever the deadline, and every entry is moved at most once per level.
+ * <p>
+ * Confined to one thread at a time. The slots are doubly linked, so that the entries superseded
+ * before their deadline are unlinked at once by {@link #remove(Expiry)}, whoever handles the due ones
+ * still tells apart the stale ones not unlinked yet.
+ * <p>
+ * Created by Edsuns@qq.com on 2022/5/1.
+ */
+final class ExpiryWheel {
+
+    static final int SLOT_BITS = 6;
+    static final int SLOTS = 1 << SLOT_BITS;
+    static final int SLOT_MASK = SLOTS - 1;
+    static final int LEVELS = 4;
+
+    static final class Expiry {
+        final String key;
+        final long deadlineMs;
+        Expiry prev, next;
+        /**
+         * the slot holding it, {@code level} is {@code -1} while in none
+         */
+        int level = -1, slot;
+        /**
+         * set by any thread once superseded, before the wheel is told
+         */
+        volatile boolean cancelled;
+
+        Expiry(String key, long deadlineMs) {
+            this.key = key;
+            this.deadlineMs = deadlineMs;
+        }
+    }
+
+    final long tickMs;
+    private final Expiry[][] slots = new Expiry[LEVELS][SLOTS];
+    /**
+     * the last tick whose entries are due
+     */
+    private long tick;
+    private int size;
+
+    ExpiryWheel(long tickMs, long nowMs) {
+        if (tickMs <= 0) {
+            throw new IllegalArgumentException("tickMs " + tickMs);
+        }
+        this.tickMs = tickMs;
+        this.tick = nowMs / tickMs;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Adds to {@code due} at once if the deadline has already been reached.
+     */
+    void add(Expiry expiry, Queue<Expiry> due) {
+        // rounded up, never expiring early
+        long deadline = (expiry.deadlineMs + tickMs - 1) / tickMs;
+        long delta = deadline - tick;
+        if (delta <= 0) {
+            due.add(expiry);
+            return;
+        }
+        int level = 0;
+        while (level < LEVELS - 1 && delta >>> (SLOT_BITS * (level + 1)) != 0) {
+            level++;
+        }
+        // beyond the top level, it waits in the furthest slot and is placed again once reached
+        deadline = Math.min(deadline, tick + (1L << (SLOT_BITS * LEVELS)) - 1);
+        int slot = (int) (deadline >>> (SLOT_BITS * level)) & SLOT_MASK;
+        Expiry head = slots[level][slot];
+        expiry.prev = null;
+        expiry.next = head;
+        if (head != null) {
+            head.prev = expiry;
+        }
+        slots[level][slot] = expiry;
+        expiry.level = level;
+        expiry.slot = slot;
+        size++;
+    }
+
+    /**
+     * Unlinks the entry from its slot, if still in one.
+     */
+    void remove(Expiry expiry) {
+        if (expiry.level < 0) {
+            return;
+        }
+        if (expiry.prev != null) {
+            expiry.prev.next = expiry.next;
+        } else {
+            slots[expiry.level][expiry.slot] = expiry.next;
+        }
+        if (expiry.next != null) {
+            expiry.next.prev = expiry.prev;
+        }
+        expiry.prev = expiry.next = null;
+        expiry.level = -1;
+        size--;
+    }
+
+    /**
+     * Moves the entries due by {@code nowMs} to {@code due}.
+     */
+    void advance(long nowMs, Queue<Expiry> due) {
+        long target = nowMs / tickMs;
+        while (tick < target) {
+            if (size == 0) {
+                tick = target;
+                return;
+            }
+            tick++;
+            // the upper levels first, their entries may be due at this very tick
+            for (int level = LEVELS - 1; level > 0; level--) {
+                if ((tick & ((1L << (SLOT_BITS * level)) - 1)) == 0) {
+                    int slot = (int) (tick >>> (SLOT_BITS * level)) & SLOT_MASK;
+                    Expiry expiry = take(level, slot);
+                    while (expiry != null) {
+                        Expiry next = expiry.next;
+                        expiry.next = null;
+                        if (!expiry.cancelled) {
+                            add(expiry, due);
+                        }
+                        expiry = next;
+                    }
+                }
+            }
+            for (Expiry expiry = take(0, (int) tick & SLOT_MASK); expiry != null; ) {
+                Expiry next = expiry.next;
+                expiry.next = null;
+                if (!expiry.cancelled) {
+                    due.add(expiry);
+                }
+                expiry = next;
+            }
+        }
+    }
+
+    private Expiry take(int level, int slot) {
+        Expiry head = slots[level][slot];
+        slots[level][slot] = null;
+        for (Expiry expiry = head; expiry != null; expiry = expiry.next) {
+            expiry.prev = null;
+            expiry.level = -1;
+            size--;
+        }
+        return head;
+    }
+}
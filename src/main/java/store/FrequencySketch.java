@@ -0,0 +1,95 @@
+package store;
+
+/**
+ * A count-min sketch of 4-bit counters estimating how often the keys have been seen lately.
+ * The counters are halved once enough keys have been added, so that old popularity fades.
+ * <p>
+ * Created by Edsuns@qq.com on 2022/4/30.
+ */
+final class FrequencySketch {
+
+    static final int MAX_FREQUENCY = 15;
+    static final long[] SEEDS = {0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+    static final long RESET_MASK = 0x7777777777777777L;
+
+    /**
+     * 16 counters per long
+     */
+    private long[] table = new long[0];
+    private int mask;
+    private int additions;
+    private int sampleSize;
+
+    /**
+     * Grows the table for about {@code n} keys. The counts are kept, since the row of a key
+     * in the larger table is one of the copies of its row in the smaller one.
+     */
+    void ensureCapacity(int n) {
+        int size = Math.max(16, Integer.highestOneBit(Math.max(1, n) - 1) << 1);
+        if (table.length >= size || size <= 0) {
+            return;
+        }
+        long[] larger = new long[size];
+        for (int i = 0; table.length > 0 && i < size; i++) {
+            larger[i] = table[i & mask];
+        }
+        table = larger;
+        mask = size - 1;
+        sampleSize = 10 * size;
+    }
+
+    private int index(int hash, int i) {
+        long h = (hash + SEEDS[i]) * SEEDS[i];
+        h += h >>> 32;
+        return (int) h & mask;
+    }
+
+    private static int offset(int hash, int i) {
+        // a counter of the long, picked by another part of the hash for each row
+        return ((hash >>> (i << 3)) & 15) << 2;
+    }
+
+    private static int spread(int h) {
+        h ^= h >>> 16;
+        h *= 0x45d9f3b;
+        return h ^ (h >>> 16);
+    }
+
+    int frequency(String key) {
+        if (table.length == 0) {
+            return 0;
+        }
+        int hash = spread(key.hashCode());
+        int frequency = MAX_FREQUENCY;
+        for (int i = 0; i < SEEDS.length; i++) {
+            frequency = Math.min(frequency, (int) (table[index(hash, i)] >>> offset(hash, i)) & 0xf);
+        }
+        return frequency;
+    }
+
+    void increment(String key) {
+        if (table.length == 0) {
+            return;
+        }
+        int hash = spread(key.hashCode());
+        boolean added = false;
+        for (int i = 0; i < SEEDS.length; i++) {
+            int index = index(hash, i);
+            int offset = offset(hash, i);
+            if (((table[index] >>> offset) & 0xf) < MAX_FREQUENCY) {
+                table[index] += 1L << offset;
+                added = true;
+            }
+        }
+        if (added && ++additions >= sampleSize) {
+            reset();
+        }
+    }
+
+    private void reset() {
+        for (int i = 0; i < table.length; i++) {
+            table[i] = (table[i] >>> 1) & RESET_MASK;
+        }
+        additions >>>= 1;
+    }
+}
@@ -0,0 +1,46 @@
+package store;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Least recently used first, by a {@link LinkedHashMap} in access order.
+ * <p>
+ * Created by Edsuns@qq.com on 2022/4/30.
+ */
+class LruPolicy implements EvictionPolicy {
+
+    private final Map<String, Integer> weights = new LinkedHashMap<>(16, 0.75f, true);
+
+    @Override
+    public void onInsert(String key, int weight) {
+        weights.put(key, weight);
+    }
+
+    @Override
+    public int onUpdate(String key, int weight) {
+        Integer old = weights.put(key, weight);
+        return old == null ? 0 : old;
+    }
+
+    @Override
+    public void onAccess(String key) {
+        weights.get(key);
+    }
+
+    @Override
+    public int onRemove(String key) {
+        Integer old = weights.remove(key);
+        return old == null ? 0 : old;
+    }
+
+    @Override
+    public String victim() {
+        return weights.isEmpty() ? null : weights.keySet().iterator().next();
+    }
+
+    @Override
+    public void clear() {
+        weights.clear();
+    }
+}
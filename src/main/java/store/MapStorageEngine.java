@@ -0,0 +1,86 @@
+package store;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.BiConsumer;
+
+/**
+ * Adapts a {@link Map}, which is guarded by a single lock unless it is a {@link ConcurrentMap}.
+ * <p>
+ * Created by Edsuns@qq.com on 2022/4/22.
+ */
+public class MapStorageEngine implements StorageEngine {
+
+    final Map<String, String> map;
+    private final Object lock;
+
+    public MapStorageEngine(Map<String, String> map) {
+        this.map = map;
+        this.lock = map instanceof ConcurrentMap ? null : map;
+    }
+
+    @Override
+    public String put(String key, String val) {
+        if (lock == null) {
+            return map.put(key, val);
+        }
+        synchronized (lock) {
+            return map.put(key, val);
+        }
+    }
+
+    @Override
+    public String get(String key) {
+        if (lock == null) {
+            return map.get(key);
+        }
+        synchronized (lock) {
+            return map.get(key);
+        }
+    }
+
+    @Override
+    public String remove(String key) {
+        if (lock == null) {
+            return map.remove(key);
+        }
+        synchronized (lock) {
+            return map.remove(key);
+        }
+    }
+
+    @Override
+    public int size() {
+        if (lock == null) {
+            return map.size();
+        }
+        synchronized (lock) {
+            return map.size();
+        }
+    }
+
+    @Override
+    public int clear() {
+        if (lock == null) {
+            int size = map.size();
+            map.clear();
+            return size;
+        }
+        synchronized (lock) {
+            int size = map.size();
+            map.clear();
+            return size;
+        }
+    }
+
+    @Override
+    public void forEach(BiConsumer<String, String> action) {
+        if (lock == null) {
+            map.forEach(action);
+            return;
+        }
+        synchronized (lock) {
+            map.forEach(action);
+        }
+    }
+}
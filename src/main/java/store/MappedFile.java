@@ -0,0 +1,121 @@
+package store;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Random access to a whole file mapped into memory, in chunks since a single mapping
+ * is limited to 2 GB. Values straddling two chunks are read and written byte by byte.
+ * <p>
+ * The mappings outlive the channel, which is closed once mapped.
+ * <p>
+ * Created by Edsuns@qq.com on 2022/4/29.
+ */
+final class MappedFile {
+
+    static final int CHUNK_SHIFT = 30;// 1 GB
+    static final long CHUNK_SIZE = 1L << CHUNK_SHIFT;
+    static final int CHUNK_MASK = (int) CHUNK_SIZE - 1;
+
+    final long size;
+    private final MappedByteBuffer[] chunks;
+
+    /**
+     * @param size the size to map, grown to if the file is shorter and {@code writable}
+     */
+    MappedFile(Path file, boolean writable, long size) throws IOException {
+        this.size = size;
+        try (FileChannel channel = writable
+                ? FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)
+                : FileChannel.open(file, StandardOpenOption.READ)) {
+            FileChannel.MapMode mode = writable ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY;
+            chunks = new MappedByteBuffer[(int) ((size + CHUNK_SIZE - 1) >>> CHUNK_SHIFT)];
+            for (int i = 0; i < chunks.length; i++) {
+                long position = (long) i << CHUNK_SHIFT;
+                chunks[i] = channel.map(mode, position, Math.min(CHUNK_SIZE, size - position));
+            }
+        }
+    }
+
+    static MappedFile open(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return new MappedFile(file, false, channel.size());
+        }
+    }
+
+    private MappedByteBuffer chunk(long position) {
+        return chunks[(int) (position >>> CHUNK_SHIFT)];
+    }
+
+    private static boolean fits(long position, int length) {
+        return ((int) position & CHUNK_MASK) + length <= CHUNK_SIZE;
+    }
+
+    byte get(long position) {
+        return chunk(position).get((int) position & CHUNK_MASK);
+    }
+
+    int getInt(long position) {
+        if (fits(position, Integer.BYTES)) {
+            return chunk(position).getInt((int) position & CHUNK_MASK);
+        }
+        int value = 0;
+        for (int i = 0; i < Integer.BYTES; i++) {
+            value = value << 8 | get(position + i) & 0xff;
+        }
+        return value;
+    }
+
+    long getLong(long position) {
+        if (fits(position, Long.BYTES)) {
+            return chunk(position).getLong((int) position & CHUNK_MASK);
+        }
+        return (long) getInt(position) << 32 | getInt(position + Integer.BYTES) & 0xffffffffL;
+    }
+
+    void get(long position, byte[] dst) {
+        for (int offset = 0; offset < dst.length; ) {
+            MappedByteBuffer chunk = chunk(position + offset);
+            int index = (int) (position + offset) & CHUNK_MASK;
+            int n = (int) Math.min(dst.length - offset, CHUNK_SIZE - index);
+            // a duplicate, since the position of the chunk is shared by the readers
+            ByteBuffer view = ((ByteBuffer) chunk).duplicate();
+            view.position(index);
+            view.get(dst, offset, n);
+            offset += n;
+        }
+    }
+
+    void put(long position, byte value) {
+        chunk(position).put((int) position & CHUNK_MASK, value);
+    }
+
+    void putInt(long position, int value) {
+        if (fits(position, Integer.BYTES)) {
+            chunk(position).putInt((int) position & CHUNK_MASK, value);
+            return;
+        }
+        for (int i = 0; i < Integer.BYTES; i++) {
+            put(position + i, (byte) (value >>> (24 - i * 8)));
+        }
+    }
+
+    void putLong(long position, long value) {
+        if (fits(position, Long.BYTES)) {
+            chunk(position).putLong((int) position & CHUNK_MASK, value);
+            return;
+        }
+        putInt(position, (int) (value >>> 32));
+        putInt(position + Integer.BYTES, (int) value);
+    }
+
+    void force() {
+        for (MappedByteBuffer chunk : chunks) {
+            chunk.force();
+        }
+    }
+}
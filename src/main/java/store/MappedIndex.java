@@ -0,0 +1,219 @@
+package store;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.function.BiConsumer;
+
+/**
+ * A read-only hash index of entries in a file, served straight from memory-mapped pages,
+ * so that opening it costs nothing whatever the number of entries.
+ * <p>
+ * The file is {@code [header][records][table]}. The records are
+ * {@code [key length][value length][key][value]} like those of {@link OffHeapStorageEngine},
+ * and the table is an open-addressing hash table with linear probing whose slots hold
+ * the {@link OffHeapStorageEngine#hash(byte[])} of the key and the offset of its record.
+ * <p>
+ * Created by Edsuns@qq.com on 2022/4/29.
+ */
+public final class MappedIndex {
+
+    static final int MAGIC = 0x4e4d4931;// NMI1
+    static final int HEADER = Integer.BYTES * 3 + Long.BYTES;// magic + count + capacity + table offset
+    static final int RECORD_HEADER = Integer.BYTES * 2;// key length + value length
+    static final int SLOT_SIZE = Integer.BYTES + Long.BYTES;// hash + record offset, 0 for empty
+    static final int BUFFER_SIZE = 1024 * 1024;// 1 MB
+
+    private final MappedFile file;
+    private final int count;
+    private final int capacity;
+    private final long tableOffset;
+
+    private MappedIndex(MappedFile file) throws IOException {
+        if (file.size < HEADER || file.getInt(0) != MAGIC) {
+            throw new IOException("Not an index");
+        }
+        this.file = file;
+        this.count = file.getInt(Integer.BYTES);
+        this.capacity = file.getInt(Integer.BYTES * 2);
+        this.tableOffset = file.getLong(Integer.BYTES * 3);
+        if (Integer.bitCount(capacity) != 1 || tableOffset + (long) capacity * SLOT_SIZE > file.size) {
+            throw new IOException("Corrupted index");
+        }
+    }
+
+    public static MappedIndex open(Path path) throws IOException {
+        return new MappedIndex(MappedFile.open(path));
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public String get(String key) {
+        byte[] k = key.getBytes(StandardCharsets.UTF_8);
+        long record = find(k, OffHeapStorageEngine.hash(k));
+        if (record == 0) {
+            return null;
+        }
+        byte[] val = new byte[file.getInt(record + Integer.BYTES)];
+        file.get(record + RECORD_HEADER + k.length, val);
+        return new String(val, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return the offset of the record of the key, or {@code 0}
+     */
+    private long find(byte[] key, int hash) {
+        int mask = capacity - 1;
+        for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+            long position = tableOffset + (long) slot * SLOT_SIZE;
+            long record = file.getLong(position + Integer.BYTES);
+            if (record == 0) {
+                return 0;
+            }
+            if (file.getInt(position) == hash && keyEquals(record, key)) {
+                return record;
+            }
+        }
+    }
+
+    private boolean keyEquals(long record, byte[] key) {
+        if (file.getInt(record) != key.length) {
+            return false;
+        }
+        long offset = record + RECORD_HEADER;
+        for (int i = 0; i < key.length; i++) {
+            if (file.get(offset + i) != key[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Visits the entries in the order they were written.
+     */
+    public void forEach(BiConsumer<String, String> action) {
+        for (long record = HEADER; record < tableOffset; ) {
+            byte[] key = new byte[file.getInt(record)];
+            byte[] val = new byte[file.getInt(record + Integer.BYTES)];
+            file.get(record + RECORD_HEADER, key);
+            file.get(record + RECORD_HEADER + key.length, val);
+            action.accept(new String(key, StandardCharsets.UTF_8), new String(val, StandardCharsets.UTF_8));
+            record += RECORD_HEADER + key.length + val.length;
+        }
+    }
+
+    /**
+     * Writes the entries of {@code source} into an index at {@code path}, replacing any file there.
+     */
+    public static void write(Path path, StorageEngine source) throws IOException {
+        Writer writer = new Writer();
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            writer.channel = channel;
+            // left blank, and written once the table is
+            writer.bf.position(HEADER);
+            try {
+                // written with no lock of the source held
+                source.forEachPart(part -> {
+                    try {
+                        for (int i = 0; i < part.size(); i += 2) {
+                            writer.add(part.get(i).getBytes(StandardCharsets.UTF_8),
+                                    part.get(i + 1).getBytes(StandardCharsets.UTF_8));
+                        }
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            writer.drain();
+        }
+        // the table is filled in place, since it may be far larger than the heap would like
+        int capacity = tableCapacity(writer.count);
+        long tableOffset = writer.position;
+        MappedFile file = new MappedFile(path, true, tableOffset + (long) capacity * SLOT_SIZE);
+        int mask = capacity - 1;
+        for (int i = 0; i < writer.count; i++) {
+            int slot = writer.hashes[i] & mask;
+            while (file.getLong(tableOffset + (long) slot * SLOT_SIZE + Integer.BYTES) != 0) {
+                slot = (slot + 1) & mask;
+            }
+            file.putInt(tableOffset + (long) slot * SLOT_SIZE, writer.hashes[i]);
+            file.putLong(tableOffset + (long) slot * SLOT_SIZE + Integer.BYTES, writer.records[i]);
+        }
+        file.putInt(0, MAGIC);
+        file.putInt(Integer.BYTES, writer.count);
+        file.putInt(Integer.BYTES * 2, capacity);
+        file.putLong(Integer.BYTES * 3, tableOffset);
+        file.force();
+    }
+
+    /**
+     * @return a power of two with room to spare, so that the probe sequences stay short
+     */
+    static int tableCapacity(int count) {
+        long capacity = Math.max(16, (long) count + (count >>> 1));
+        if (capacity > 1 << 30) {
+            throw new IllegalArgumentException("count " + count);
+        }
+        return Integer.highestOneBit((int) capacity - 1) << 1;
+    }
+
+    private static final class Writer {
+        FileChannel channel;
+        final ByteBuffer bf = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        /**
+         * the position in the file of the start of {@link #bf}
+         */
+        long position;
+        int count;
+        int[] hashes = new int[1024];
+        long[] records = new long[1024];
+
+        void add(byte[] key, byte[] val) throws IOException {
+            if (count == hashes.length) {
+                hashes = Arrays.copyOf(hashes, count * 2);
+                records = Arrays.copyOf(records, count * 2);
+            }
+            hashes[count] = OffHeapStorageEngine.hash(key);
+            records[count] = position + bf.position();
+            count++;
+            if (bf.remaining() < RECORD_HEADER) {
+                drain();
+            }
+            bf.putInt(key.length);
+            bf.putInt(val.length);
+            put(key);
+            put(val);
+        }
+
+        private void put(byte[] bytes) throws IOException {
+            for (int offset = 0; offset < bytes.length; ) {
+                if (!bf.hasRemaining()) {
+                    drain();
+                }
+                int n = Math.min(bf.remaining(), bytes.length - offset);
+                bf.put(bytes, offset, n);
+                offset += n;
+            }
+        }
+
+        void drain() throws IOException {
+            bf.flip();
+            position += bf.limit();
+            while (bf.hasRemaining()) {
+                channel.write(bf);
+            }
+            bf.clear();
+        }
+    }
+}
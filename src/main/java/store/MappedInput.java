@@ -0,0 +1,97 @@
+package store;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads a file sequentially through a window mapped into memory,
+ * which moves along the file so that files larger than a mapping can be read too.
+ * <p>
+ * Created by Edsuns@qq.com on 2022/4/28.
+ */
+class MappedInput implements Closeable {
+
+    static final int WINDOW = 1024 * 1024 * 64;// 64 MB
+
+    private final FileChannel channel;
+    final long size;
+    private long base;
+    private MappedByteBuffer window;
+
+    MappedInput(Path file) throws IOException {
+        this.channel = FileChannel.open(file, StandardOpenOption.READ);
+        this.size = channel.size();
+    }
+
+    /**
+     * @return the position in the file
+     */
+    long position() {
+        return window == null ? 0 : base + window.position();
+    }
+
+    long remaining() {
+        return size - position();
+    }
+
+    /**
+     * Maps the window from the current position on if it has less than {@code n} bytes left.
+     */
+    private void ensure(int n) throws IOException {
+        if (window != null && window.remaining() >= n) {
+            return;
+        }
+        long position = position();
+        if (size - position < n) {
+            throw new EOFException();
+        }
+        window = channel.map(FileChannel.MapMode.READ_ONLY, position,
+                Math.min(size - position, Math.max(WINDOW, n)));
+        base = position;
+    }
+
+    byte getByte() throws IOException {
+        ensure(Byte.BYTES);
+        return window.get();
+    }
+
+    int getInt() throws IOException {
+        ensure(Integer.BYTES);
+        return window.getInt();
+    }
+
+    long getLong() throws IOException {
+        ensure(Long.BYTES);
+        return window.getLong();
+    }
+
+    byte[] getBytes(int length) throws IOException {
+        if (length < 0) {
+            throw new EOFException("length " + length);
+        }
+        ensure(length);
+        byte[] bytes = new byte[length];
+        window.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Reads a string prefixed with its length, {@code -1} for {@code null}.
+     */
+    String getString() throws IOException {
+        int length = getInt();
+        return length == -1 ? null : new String(getBytes(length), StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public void close() throws IOException {
+        window = null;
+        channel.close();
+    }
+}
@@ -0,0 +1,279 @@
+package store;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * Serves a {@link MappedIndex} as it is, with the writes made afterwards kept in an overlay on the heap,
+ * so that neither the startup time nor the heap grow with the entries of the index.
+ * <p>
+ * The overlay is lock-striped like {@link ShardedStorageEngine}. The keys removed from the index
+ * are shadowed in the overlay by a tombstone.
+ * <p>
+ * Created by Edsuns@qq.com on 2022/4/29.
+ */
+public class MappedStorageEngine implements StorageEngine {
+
+    /**
+     * compared by identity, so that no value can be mistaken for it
+     */
+    @SuppressWarnings("StringOperationCanBeSimplified")
+    static final String TOMBSTONE = new String("");
+    /**
+     * the entries of the index handed over at a time by {@link #forEachPart(Consumer)}
+     */
+    static final int PART_ENTRIES = 1024;
+
+    private final Map<String, String>[] shards;
+    private final ReentrantLock[] locks;
+    private final int mask;
+    /**
+     * {@code null} when there is none, or once cleared. Guarded by all the locks for writing.
+     */
+    private volatile MappedIndex index;
+    private final int[] sizes;
+
+    public MappedStorageEngine() {
+        this(ShardedStorageEngine.DEFAULT_SHARDS);
+    }
+
+    public MappedStorageEngine(Path index) throws IOException {
+        this(ShardedStorageEngine.DEFAULT_SHARDS);
+        map(index);
+    }
+
+    /**
+     * @param shards of the overlay, rounded up to a power of two
+     */
+    @SuppressWarnings("unchecked")
+    public MappedStorageEngine(int shards) {
+        if (shards <= 0) {
+            throw new IllegalArgumentException("shards " + shards);
+        }
+        int n = Math.max(1, Integer.highestOneBit(shards - 1) << 1);
+        this.shards = new Map[n];
+        this.locks = new ReentrantLock[n];
+        for (int i = 0; i < n; i++) {
+            this.shards[i] = new HashMap<>();
+            this.locks[i] = new ReentrantLock();
+        }
+        this.sizes = new int[n];
+        this.mask = n - 1;
+    }
+
+    /**
+     * Serves the entries of the index file, which must not change while mapped.
+     * Only allowed while empty.
+     */
+    public void map(Path path) throws IOException {
+        MappedIndex mapped = MappedIndex.open(path);
+        lockAll();
+        try {
+            for (int i = 0; i < shards.length; i++) {
+                if (!shards[i].isEmpty() || sizes[i] != 0) {
+                    throw new IllegalStateException("not empty");
+                }
+            }
+            index = mapped;
+            // the entries of the index are counted by the first shard
+            sizes[0] = mapped.size();
+        } finally {
+            unlockAll();
+        }
+    }
+
+    private void lockAll() {
+        for (ReentrantLock lock : locks) {
+            lock.lock();
+        }
+    }
+
+    private void unlockAll() {
+        for (int i = locks.length - 1; i >= 0; i--) {
+            locks[i].unlock();
+        }
+    }
+
+    private int shard(String key) {
+        int h = key.hashCode();
+        return (h ^ (h >>> 16) ^ (h >>> 8)) & mask;
+    }
+
+    /**
+     * @return the value in the overlay, or else in the index, {@code null} if removed
+     */
+    private String lookup(Map<String, String> shard, String key) {
+        String val = shard.get(key);
+        if (val == null) {
+            MappedIndex mapped = index;
+            return mapped == null ? null : mapped.get(key);
+        }
+        return val == TOMBSTONE ? null : val;
+    }
+
+    @Override
+    public String put(String key, String val) {
+        int i = shard(key);
+        Map<String, String> shard = shards[i];
+        locks[i].lock();
+        try {
+            String old = lookup(shard, key);
+            shard.put(key, val);
+            if (old == null) {
+                sizes[i]++;
+            }
+            return old;
+        } finally {
+            locks[i].unlock();
+        }
+    }
+
+    @Override
+    public String get(String key) {
+        int i = shard(key);
+        locks[i].lock();
+        try {
+            return lookup(shards[i], key);
+        } finally {
+            locks[i].unlock();
+        }
+    }
+
+    @Override
+    public String remove(String key) {
+        int i = shard(key);
+        Map<String, String> shard = shards[i];
+        locks[i].lock();
+        try {
+            String old = lookup(shard, key);
+            if (old == null) {
+                return null;
+            }
+            if (index != null) {
+                shard.put(key, TOMBSTONE);
+            } else {
+                shard.remove(key);
+            }
+            sizes[i]--;
+            return old;
+        } finally {
+            locks[i].unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        int size = 0;
+        for (int i = 0; i < shards.length; i++) {
+            locks[i].lock();
+            try {
+                size += sizes[i];
+            } finally {
+                locks[i].unlock();
+            }
+        }
+        return size;
+    }
+
+    @Override
+    public int clear() {
+        lockAll();
+        try {
+            int size = 0;
+            for (int i = 0; i < shards.length; i++) {
+                size += sizes[i];
+                sizes[i] = 0;
+                shards[i].clear();
+            }
+            index = null;
+            return size;
+        } finally {
+            unlockAll();
+        }
+    }
+
+    @Override
+    public void forEach(BiConsumer<String, String> action) {
+        for (int i = 0; i < shards.length; i++) {
+            locks[i].lock();
+            try {
+                shards[i].forEach((key, val) -> {
+                    if (val != TOMBSTONE) {
+                        action.accept(key, val);
+                    }
+                });
+            } finally {
+                locks[i].unlock();
+            }
+        }
+        MappedIndex mapped = index;
+        if (mapped == null) {
+            return;
+        }
+        mapped.forEach((key, val) -> {
+            int i = shard(key);
+            locks[i].lock();
+            try {
+                // those in the overlay have been visited already
+                if (index == mapped && !shards[i].containsKey(key)) {
+                    action.accept(key, val);
+                }
+            } finally {
+                locks[i].unlock();
+            }
+        });
+    }
+
+    @Override
+    public void forEachPart(Consumer<List<String>> action) {
+        for (int i = 0; i < shards.length; i++) {
+            List<String> part = new ArrayList<>();
+            locks[i].lock();
+            try {
+                shards[i].forEach((key, val) -> {
+                    if (val != TOMBSTONE) {
+                        part.add(key);
+                        part.add(val);
+                    }
+                });
+            } finally {
+                locks[i].unlock();
+            }
+            if (!part.isEmpty()) {
+                action.accept(part);
+            }
+        }
+        MappedIndex mapped = index;
+        if (mapped == null) {
+            return;
+        }
+        List<String> part = new ArrayList<>();
+        // the index itself takes no lock, only the check against the overlay does
+        mapped.forEach((key, val) -> {
+            int i = shard(key);
+            locks[i].lock();
+            try {
+                if (index == mapped && !shards[i].containsKey(key)) {
+                    part.add(key);
+                    part.add(val);
+                }
+            } finally {
+                locks[i].unlock();
+            }
+            if (part.size() >= PART_ENTRIES * 2) {
+                action.accept(new ArrayList<>(part));
+                part.clear();
+            }
+        });
+        if (!part.isEmpty()) {
+            action.accept(part);
+        }
+    }
+}
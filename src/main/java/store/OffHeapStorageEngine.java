@@ -0,0 +1,553 @@
+package store;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * Keeps the entries outside of the heap as raw UTF-8 bytes, so that the entry count doesn't weigh on the GC.
+ * <p>
+ * The keys are spread over segments that are locked independently. Each segment has
+ * an open-addressing hash table with linear probing in a direct {@link ByteBuffer},
+ * whose slots hold the hash of the key and the address of its record.
+ * The records {@code [key length][value length][key][value]} live in chunks of
+ * power-of-two sizes, carved out of direct or memory-mapped slabs and recycled through
+ * a free list per chunk size. The free lists are linked through the free chunks themselves.
+ * <p>
+ * Created by Edsuns@qq.com on 2022/4/23.
+ */
+public class OffHeapStorageEngine implements StorageEngine {
+
+    public static final int DEFAULT_SEGMENTS = 16;
+    public static final int DEFAULT_SLAB_SIZE = 1024 * 1024;// 1 MB
+
+    static final int SLOT_SIZE = Integer.BYTES + Long.BYTES;// hash + reference
+    static final int RECORD_HEADER = Integer.BYTES * 2;// key length + value length
+    static final int MIN_CHUNK_SHIFT = 4;// 16 B, enough for the link of a free chunk
+    static final int INITIAL_CAPACITY = 256;
+
+    private final Segment[] segments;
+    private final int segmentShift;
+    final int slabSize;
+    /**
+     * where the slabs are mapped, {@code null} for direct buffers
+     */
+    final Path directory;
+    private final AtomicInteger slabSequence = new AtomicInteger();
+
+    public OffHeapStorageEngine() {
+        this(DEFAULT_SEGMENTS, DEFAULT_SLAB_SIZE, null);
+    }
+
+    /**
+     * @param directory where the slabs are mapped from files,
+     *                  which are deleted once mapped and only serve as swap space
+     */
+    public OffHeapStorageEngine(Path directory) {
+        this(DEFAULT_SEGMENTS, DEFAULT_SLAB_SIZE, directory);
+    }
+
+    /**
+     * @param segments rounded up to a power of two
+     */
+    public OffHeapStorageEngine(int segments, int slabSize, Path directory) {
+        if (segments <= 0 || segments > 1 << 16) {
+            throw new IllegalArgumentException("segments " + segments);
+        }
+        if (slabSize < 1 << MIN_CHUNK_SHIFT) {
+            throw new IllegalArgumentException("slabSize " + slabSize);
+        }
+        int bits = 32 - Integer.numberOfLeadingZeros(segments - 1);
+        this.segments = new Segment[1 << bits];
+        for (int i = 0; i < this.segments.length; i++) {
+            this.segments[i] = new Segment();
+        }
+        // segments are chosen by the high bits, slots by the low bits of the hash
+        this.segmentShift = 32 - bits;
+        this.slabSize = slabSize;
+        this.directory = directory;
+    }
+
+    static int hash(byte[] bytes) {
+        int h = 0;
+        for (byte b : bytes) {
+            h = 31 * h + b;
+        }
+        return mix(h);
+    }
+
+    /**
+     * @return the {@link #hash(byte[])} of the bytes sliced from {@code bf}
+     */
+    static int hash(ByteBuffer bf, int offset, int length) {
+        int h = 0;
+        for (int i = offset, end = offset + length; i < end; i++) {
+            h = 31 * h + bf.get(i);
+        }
+        return mix(h);
+    }
+
+    private static int mix(int h) {
+        // murmur3 finalizer
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    private Segment segment(int hash) {
+        return segmentShift == 32 ? segments[0] : segments[hash >>> segmentShift];
+    }
+
+    @Override
+    public String put(String key, String val) {
+        byte[] k = key.getBytes(StandardCharsets.UTF_8);
+        byte[] v = val.getBytes(StandardCharsets.UTF_8);
+        int hash = hash(k);
+        Segment segment = segment(hash);
+        synchronized (segment) {
+            return segment.put(k, v, hash);
+        }
+    }
+
+    @Override
+    public String get(String key) {
+        byte[] k = key.getBytes(StandardCharsets.UTF_8);
+        int hash = hash(k);
+        Segment segment = segment(hash);
+        synchronized (segment) {
+            return segment.get(k, hash);
+        }
+    }
+
+    /**
+     * Looks the key up by its slice and copies the value out of the slab, neither is decoded.
+     */
+    @Override
+    public byte[] getUtf8(Utf8Key key) {
+        if (key.malformed != null) {
+            // stored as the String decoded, replacement characters included
+            return StorageEngine.super.getUtf8(key);
+        }
+        int hash = hash(key.bf, key.offset, key.length);
+        Segment segment = segment(hash);
+        synchronized (segment) {
+            return segment.getUtf8(key.bf, key.offset, key.length, hash);
+        }
+    }
+
+    @Override
+    public String remove(String key) {
+        byte[] k = key.getBytes(StandardCharsets.UTF_8);
+        int hash = hash(k);
+        Segment segment = segment(hash);
+        synchronized (segment) {
+            return segment.remove(k, hash);
+        }
+    }
+
+    @Override
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.size;
+            }
+        }
+        return size;
+    }
+
+    @Override
+    public int clear() {
+        int size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.size;
+                segment.reset();
+            }
+        }
+        return size;
+    }
+
+    @Override
+    public void forEach(BiConsumer<String, String> action) {
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                segment.forEach(action);
+            }
+        }
+    }
+
+    @Override
+    public void forEachPart(Consumer<List<String>> action) {
+        for (Segment segment : segments) {
+            List<String> part = new ArrayList<>();
+            synchronized (segment) {
+                segment.forEach((key, val) -> {
+                    part.add(key);
+                    part.add(val);
+                });
+            }
+            if (!part.isEmpty()) {
+                action.accept(part);
+            }
+        }
+    }
+
+    /**
+     * @return the bytes reserved by the slabs and hash tables
+     */
+    public long memoryFootprint() {
+        long footprint = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                footprint += segment.footprint();
+            }
+        }
+        return footprint;
+    }
+
+    /**
+     * @return the bytes allocated to the records in use
+     */
+    public long usedMemory() {
+        long used = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                used += segment.used;
+            }
+        }
+        return used;
+    }
+
+    /**
+     * @return {@link #memoryFootprint()} per entry, {@code 0} when empty
+     */
+    public double bytesPerEntry() {
+        int size = size();
+        return size == 0 ? 0 : (double) memoryFootprint() / size;
+    }
+
+    ByteBuffer allocateSlab(int size) {
+        if (directory == null) {
+            return ByteBuffer.allocateDirect(size);
+        }
+        Path file = directory.resolve("slab-" + slabSequence.incrementAndGet());
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer slab = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            try {
+                // the mapping outlives the file on most platforms
+                Files.delete(file);
+            } catch (IOException e) {
+                file.toFile().deleteOnExit();
+            }
+            return slab;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    static int chunkShift(int recordSize) {
+        return Math.max(MIN_CHUNK_SHIFT, 32 - Integer.numberOfLeadingZeros(recordSize - 1));
+    }
+
+    /**
+     * Guarded by its own monitor.
+     */
+    private final class Segment {
+        ByteBuffer table;
+        int capacity;
+        int size;
+
+        final List<ByteBuffer> slabs = new ArrayList<>();
+        /**
+         * the slab chunks are carved out of, and where the next chunk starts
+         */
+        int current = -1, top;
+        /**
+         * head references of the free lists by chunk shift, {@code 0} for empty
+         */
+        final long[] freeLists = new long[32];
+        long slabBytes;
+        long used;
+
+        Segment() {
+            reset();
+        }
+
+        void reset() {
+            capacity = INITIAL_CAPACITY;
+            table = ByteBuffer.allocateDirect(capacity * SLOT_SIZE);
+            size = 0;
+            slabs.clear();
+            current = -1;
+            top = 0;
+            Arrays.fill(freeLists, 0);
+            slabBytes = 0;
+            used = 0;
+        }
+
+        long footprint() {
+            return slabBytes + (long) capacity * SLOT_SIZE;
+        }
+
+        /* the references stored in the table are addresses plus one, leaving 0 for empty slots */
+
+        private long reference(int slot) {
+            return table.getLong(slot * SLOT_SIZE + Integer.BYTES);
+        }
+
+        private int hash(int slot) {
+            return table.getInt(slot * SLOT_SIZE);
+        }
+
+        private void set(int slot, int hash, long reference) {
+            table.putInt(slot * SLOT_SIZE, hash);
+            table.putLong(slot * SLOT_SIZE + Integer.BYTES, reference);
+        }
+
+        private ByteBuffer slab(long address) {
+            return slabs.get((int) (address >>> 32));
+        }
+
+        /**
+         * @return the slot of the key, or the bitwise complement of the empty slot it belongs to
+         */
+        private int find(byte[] key, int hash) {
+            int mask = capacity - 1;
+            for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+                long reference = reference(slot);
+                if (reference == 0) {
+                    return ~slot;
+                }
+                if (hash(slot) == hash && keyEquals(reference - 1, key)) {
+                    return slot;
+                }
+            }
+        }
+
+        private boolean keyEquals(long address, byte[] key) {
+            ByteBuffer slab = slab(address);
+            int offset = (int) address;
+            if (slab.getInt(offset) != key.length) {
+                return false;
+            }
+            offset += RECORD_HEADER;
+            for (int i = 0; i < key.length; i++) {
+                if (slab.get(offset + i) != key[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private boolean keyEquals(long address, ByteBuffer key, int keyOffset, int keyLength) {
+            ByteBuffer slab = slab(address);
+            int offset = (int) address;
+            if (slab.getInt(offset) != keyLength) {
+                return false;
+            }
+            offset += RECORD_HEADER;
+            for (int i = 0; i < keyLength; i++) {
+                if (slab.get(offset + i) != key.get(keyOffset + i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private String value(long address) {
+            return new String(valueUtf8(address), StandardCharsets.UTF_8);
+        }
+
+        private byte[] valueUtf8(long address) {
+            ByteBuffer slab = slab(address);
+            int offset = (int) address;
+            byte[] val = new byte[slab.getInt(offset + Integer.BYTES)];
+            slab.position(offset + RECORD_HEADER + slab.getInt(offset));
+            slab.get(val);
+            return val;
+        }
+
+        private String key(long address) {
+            ByteBuffer slab = slab(address);
+            int offset = (int) address;
+            byte[] key = new byte[slab.getInt(offset)];
+            slab.position(offset + RECORD_HEADER);
+            slab.get(key);
+            return new String(key, StandardCharsets.UTF_8);
+        }
+
+        void forEach(BiConsumer<String, String> action) {
+            for (int slot = 0; slot < capacity; slot++) {
+                long reference = reference(slot);
+                if (reference != 0) {
+                    action.accept(key(reference - 1), value(reference - 1));
+                }
+            }
+        }
+
+        private int recordShift(long address) {
+            ByteBuffer slab = slab(address);
+            int offset = (int) address;
+            return chunkShift(RECORD_HEADER + slab.getInt(offset) + slab.getInt(offset + Integer.BYTES));
+        }
+
+        String get(byte[] key, int hash) {
+            int slot = find(key, hash);
+            return slot < 0 ? null : value(reference(slot) - 1);
+        }
+
+        /**
+         * @return the value of the key sliced from {@code bf}, as its UTF-8 bytes
+         */
+        byte[] getUtf8(ByteBuffer bf, int offset, int length, int hash) {
+            int mask = capacity - 1;
+            for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+                long reference = reference(slot);
+                if (reference == 0) {
+                    return null;
+                }
+                if (hash(slot) == hash && keyEquals(reference - 1, bf, offset, length)) {
+                    return valueUtf8(reference - 1);
+                }
+            }
+        }
+
+        String put(byte[] key, byte[] val, int hash) {
+            int slot = find(key, hash);
+            int shift = chunkShift(RECORD_HEADER + key.length + val.length);
+            if (slot >= 0) {
+                long address = reference(slot) - 1;
+                String old = value(address);
+                if (recordShift(address) != shift) {
+                    free(address, recordShift(address));
+                    address = allocate(shift);
+                    set(slot, hash, address + 1);
+                }
+                write(address, key, val);
+                return old;
+            }
+            if (size + 1 > capacity - (capacity >>> 2)) {
+                resize();
+                slot = find(key, hash);
+            }
+            long address = allocate(shift);
+            write(address, key, val);
+            set(~slot, hash, address + 1);
+            size++;
+            return null;
+        }
+
+        String remove(byte[] key, int hash) {
+            int slot = find(key, hash);
+            if (slot < 0) {
+                return null;
+            }
+            long address = reference(slot) - 1;
+            String old = value(address);
+            free(address, recordShift(address));
+            delete(slot);
+            size--;
+            return old;
+        }
+
+        /**
+         * Backward shift deletion, which keeps the probe sequences intact without tombstones.
+         */
+        private void delete(int slot) {
+            int mask = capacity - 1;
+            int hole = slot;
+            for (int i = (slot + 1) & mask; ; i = (i + 1) & mask) {
+                long reference = reference(i);
+                if (reference == 0) {
+                    break;
+                }
+                int home = hash(i) & mask;
+                // move the entry into the hole unless its home lies cyclically in (hole, i]
+                boolean between = hole <= i ? hole < home && home <= i : hole < home || home <= i;
+                if (!between) {
+                    set(hole, hash(i), reference);
+                    hole = i;
+                }
+            }
+            set(hole, 0, 0);
+        }
+
+        private void resize() {
+            ByteBuffer old = table;
+            int oldCapacity = capacity;
+            capacity = oldCapacity << 1;
+            table = ByteBuffer.allocateDirect(capacity * SLOT_SIZE);
+            int mask = capacity - 1;
+            for (int i = 0; i < oldCapacity; i++) {
+                long reference = old.getLong(i * SLOT_SIZE + Integer.BYTES);
+                if (reference == 0) {
+                    continue;
+                }
+                int hash = old.getInt(i * SLOT_SIZE);
+                int slot = hash & mask;
+                while (reference(slot) != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                set(slot, hash, reference);
+            }
+        }
+
+        private void write(long address, byte[] key, byte[] val) {
+            ByteBuffer slab = slab(address);
+            int offset = (int) address;
+            slab.putInt(offset, key.length);
+            slab.putInt(offset + Integer.BYTES, val.length);
+            slab.position(offset + RECORD_HEADER);
+            slab.put(key);
+            slab.put(val);
+        }
+
+        private long allocate(int shift) {
+            int chunk = 1 << shift;
+            used += chunk;
+            long head = freeLists[shift];
+            if (head != 0) {
+                long address = head - 1;
+                freeLists[shift] = slab(address).getLong((int) address);
+                return address;
+            }
+            if (chunk > slabSize) {
+                // a dedicated slab, recycled through the free list like any other chunk
+                slabs.add(allocateSlab(chunk));
+                slabBytes += chunk;
+                return (long) (slabs.size() - 1) << 32;
+            }
+            if (current < 0 || slabSize - top < chunk) {
+                slabs.add(allocateSlab(slabSize));
+                slabBytes += slabSize;
+                current = slabs.size() - 1;
+                top = 0;
+            }
+            long address = (long) current << 32 | top;
+            top += chunk;
+            return address;
+        }
+
+        private void free(long address, int shift) {
+            used -= 1 << shift;
+            slab(address).putLong((int) address, freeLists[shift]);
+            freeLists[shift] = address + 1;
+        }
+    }
+}
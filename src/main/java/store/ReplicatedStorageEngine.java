@@ -0,0 +1,256 @@
+package store;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * Numbers the mutations of another engine and streams them in order to {@link Listener}s, the replicas.
+ * <p>
+ * A listener subscribed at the sequence {@code S} gets every mutation after {@code S},
+ * so a snapshot taken by {@link #forEach(BiConsumer)} after subscribing, then the stream,
+ * rebuild the entries: the snapshot may already hold some of the mutations streamed,
+ * which is harmless since they are applied again in order.
+ * <p>
+ * The mutations of a key are streamed in the order they are applied thanks to striped locks,
+ * and the whole stream is ordered by a lock taken only while there are listeners.
+ * Over a {@link BoundedStorageEngine}, the puts also take it, and the evictions are streamed as removals.
+ * <p>
+ * Created by Edsuns@qq.com on 2022/5/4.
+ */
+public class ReplicatedStorageEngine implements StorageEngine, Closeable {
+
+    static final int STRIPES = 64;
+
+    /**
+     * Called under the locks of the engine, so it should only queue the mutation.
+     */
+    public interface Listener {
+
+        void onPut(long sequence, String key, String val);
+
+        void onRemove(long sequence, String key);
+
+        void onClear(long sequence);
+    }
+
+    final StorageEngine engine;
+    private final ReentrantLock[] stripes = new ReentrantLock[STRIPES];
+    private final ReentrantLock streamLock = new ReentrantLock();
+    /**
+     * copied on write, guarded by all the stripes
+     */
+    private volatile Listener[] listeners = new Listener[0];
+    /**
+     * whether the engine evicts, then the puts are streamed before they are applied
+     */
+    private final boolean bounded;
+    /**
+     * guarded by {@link #streamLock}
+     */
+    private long sequence;
+
+    public ReplicatedStorageEngine(StorageEngine engine) {
+        this.engine = engine;
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = new ReentrantLock();
+        }
+        BoundedStorageEngine b = BoundedStorageEngine.find(engine);
+        this.bounded = b != null;
+        if (b != null) {
+            b.addEvictionListener(this::evicted);
+        }
+    }
+
+    private ReentrantLock stripe(String key) {
+        int h = key.hashCode();
+        return stripes[(h ^ (h >>> 16)) & (STRIPES - 1)];
+    }
+
+    private void lockAll() {
+        for (ReentrantLock stripe : stripes) {
+            stripe.lock();
+        }
+    }
+
+    private void unlockAll() {
+        for (int i = stripes.length - 1; i >= 0; i--) {
+            stripes[i].unlock();
+        }
+    }
+
+    /**
+     * @return the sequence of the last mutation, after which the listener is called
+     */
+    public long subscribe(Listener listener) {
+        lockAll();
+        try {
+            Listener[] l = Arrays.copyOf(listeners, listeners.length + 1);
+            l[l.length - 1] = listener;
+            listeners = l;
+            return sequence();
+        } finally {
+            unlockAll();
+        }
+    }
+
+    public void unsubscribe(Listener listener) {
+        lockAll();
+        try {
+            listeners = Arrays.stream(listeners).filter(l -> l != listener).toArray(Listener[]::new);
+        } finally {
+            unlockAll();
+        }
+    }
+
+    /**
+     * @return the sequence of the last mutation streamed
+     */
+    public long sequence() {
+        streamLock.lock();
+        try {
+            return sequence;
+        } finally {
+            streamLock.unlock();
+        }
+    }
+
+    @Override
+    public String put(String key, String val) {
+        ReentrantLock stripe = stripe(key);
+        stripe.lock();
+        try {
+            if (bounded) {
+                // streamed first since the put may evict its own key, the evictions it causes follow
+                streamLock.lock();
+                try {
+                    streamPut(key, val);
+                    return engine.put(key, val);
+                } finally {
+                    streamLock.unlock();
+                }
+            }
+            String old = engine.put(key, val);
+            streamPut(key, val);
+            return old;
+        } finally {
+            stripe.unlock();
+        }
+    }
+
+    private void streamPut(String key, String val) {
+        Listener[] l = listeners;
+        if (l.length > 0) {
+            streamLock.lock();
+            try {
+                long s = ++sequence;
+                for (Listener listener : l) {
+                    listener.onPut(s, key, val);
+                }
+            } finally {
+                streamLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Streams an eviction as a removal, called by the put that caused it.
+     */
+    private void evicted(String key) {
+        Listener[] l = listeners;
+        if (l.length > 0) {
+            streamLock.lock();
+            try {
+                long s = ++sequence;
+                for (Listener listener : l) {
+                    listener.onRemove(s, key);
+                }
+            } finally {
+                streamLock.unlock();
+            }
+        }
+    }
+
+    @Override
+    public String get(String key) {
+        return engine.get(key);
+    }
+
+    @Override
+    public byte[] getUtf8(Utf8Key key) {
+        return engine.getUtf8(key);
+    }
+
+    @Override
+    public String remove(String key) {
+        ReentrantLock stripe = stripe(key);
+        stripe.lock();
+        try {
+            String old = engine.remove(key);
+            Listener[] l = listeners;
+            if (old != null && l.length > 0) {
+                streamLock.lock();
+                try {
+                    long s = ++sequence;
+                    for (Listener listener : l) {
+                        listener.onRemove(s, key);
+                    }
+                } finally {
+                    streamLock.unlock();
+                }
+            }
+            return old;
+        } finally {
+            stripe.unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        return engine.size();
+    }
+
+    @Override
+    public int clear() {
+        lockAll();
+        try {
+            int size = engine.clear();
+            Listener[] l = listeners;
+            if (l.length > 0) {
+                streamLock.lock();
+                try {
+                    long s = ++sequence;
+                    for (Listener listener : l) {
+                        listener.onClear(s);
+                    }
+                } finally {
+                    streamLock.unlock();
+                }
+            }
+            return size;
+        } finally {
+            unlockAll();
+        }
+    }
+
+    @Override
+    public void forEach(BiConsumer<String, String> action) {
+        engine.forEach(action);
+    }
+
+    @Override
+    public void forEachPart(Consumer<List<String>> action) {
+        engine.forEachPart(action);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (engine instanceof Closeable) {
+            ((Closeable) engine).close();
+        }
+    }
+}
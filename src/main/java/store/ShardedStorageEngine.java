@@ -0,0 +1,146 @@
+package store;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * Lock-striped storage: the keys are spread over shards that are locked independently,
+ * so that operations on keys of different shards don't contend.
+ * <p>
+ * The values are kept in UTF-8, which {@link #getUtf8(Utf8Key)} returns as they are.
+ * <p>
+ * Created by Edsuns@qq.com on 2022/4/22.
+ */
+public class ShardedStorageEngine implements StorageEngine {
+
+    public static final int DEFAULT_SHARDS = 64;
+
+    private final Map<String, byte[]>[] shards;
+    private final int mask;
+
+    public ShardedStorageEngine() {
+        this(DEFAULT_SHARDS);
+    }
+
+    /**
+     * @param shards rounded up to a power of two
+     */
+    @SuppressWarnings("unchecked")
+    public ShardedStorageEngine(int shards) {
+        if (shards <= 0) {
+            throw new IllegalArgumentException("shards " + shards);
+        }
+        int n = Integer.highestOneBit(shards - 1) << 1;
+        n = Math.max(n, 1);
+        this.shards = new Map[n];
+        for (int i = 0; i < n; i++) {
+            this.shards[i] = new HashMap<>();
+        }
+        this.mask = n - 1;
+    }
+
+    /**
+     * @param key a String or a {@link Utf8Key}, which hash alike
+     */
+    private Map<String, byte[]> shard(Object key) {
+        int h = key.hashCode();
+        // spread the high bits like HashMap, which uses the low bits of the same hash
+        return shards[(h ^ (h >>> 16) ^ (h >>> 8)) & mask];
+    }
+
+    @Override
+    public String put(String key, String val) {
+        byte[] bytes = val.getBytes(StandardCharsets.UTF_8);
+        Map<String, byte[]> shard = shard(key);
+        byte[] previous;
+        synchronized (shard) {
+            previous = shard.put(key, bytes);
+        }
+        return decode(previous);
+    }
+
+    @Override
+    public String get(String key) {
+        return decode(lookup(key));
+    }
+
+    @Override
+    public byte[] getUtf8(Utf8Key key) {
+        return lookup(key);
+    }
+
+    private byte[] lookup(Object key) {
+        Map<String, byte[]> shard = shard(key);
+        synchronized (shard) {
+            return shard.get(key);
+        }
+    }
+
+    @Override
+    public String remove(String key) {
+        Map<String, byte[]> shard = shard(key);
+        byte[] removed;
+        synchronized (shard) {
+            removed = shard.remove(key);
+        }
+        return decode(removed);
+    }
+
+    @Override
+    public int size() {
+        int size = 0;
+        for (Map<String, byte[]> shard : shards) {
+            synchronized (shard) {
+                size += shard.size();
+            }
+        }
+        return size;
+    }
+
+    @Override
+    public int clear() {
+        int size = 0;
+        for (Map<String, byte[]> shard : shards) {
+            synchronized (shard) {
+                size += shard.size();
+                shard.clear();
+            }
+        }
+        return size;
+    }
+
+    @Override
+    public void forEach(BiConsumer<String, String> action) {
+        for (Map<String, byte[]> shard : shards) {
+            synchronized (shard) {
+                shard.forEach((key, val) -> action.accept(key, decode(val)));
+            }
+        }
+    }
+
+    @Override
+    public void forEachPart(Consumer<List<String>> action) {
+        for (Map<String, byte[]> shard : shards) {
+            List<String> part;
+            synchronized (shard) {
+                part = new ArrayList<>(shard.size() * 2);
+                for (Map.Entry<String, byte[]> entry : shard.entrySet()) {
+                    part.add(entry.getKey());
+                    part.add(decode(entry.getValue()));
+                }
+            }
+            if (!part.isEmpty()) {
+                action.accept(part);
+            }
+        }
+    }
+
+    private static String decode(byte[] val) {
+        return val == null ? null : new String(val, StandardCharsets.UTF_8);
+    }
+}
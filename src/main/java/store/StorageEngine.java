@@ -0,0 +1,72 @@
+package store;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * The key-value storage behind {@code NIOMapServer}.
+ * <p>
+ * Implementations must be safe for use by several event loops at the same time.
+ * <p>
+ * Created by Edsuns@qq.com on 2022/4/22.
+ */
+public interface StorageEngine {
+
+    /**
+     * @return the previous value, or {@code null}
+     */
+    String put(String key, String val);
+
+    String get(String key);
+
+    /**
+     * Gets by a key still encoded, which the engines keeping their values in UTF-8 serve
+     * without decoding the key nor copying the value.
+     *
+     * @return the UTF-8 bytes of the value, which must not be modified, or {@code null}
+     */
+    default byte[] getUtf8(Utf8Key key) {
+        String val = get(key.toString());
+        return val == null ? null : val.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return the removed value, or {@code null}
+     */
+    String remove(String key);
+
+    int size();
+
+    /**
+     * @return the count of the removed entries
+     */
+    int clear();
+
+    /**
+     * Visits the entries, without blocking the whole storage at once.
+     * Entries changed meanwhile may or may not be visited.
+     * <p>
+     * The action may be called under the locks of the storage, so it must not block,
+     * see {@link #forEachPart(Consumer)} otherwise.
+     */
+    void forEach(BiConsumer<String, String> action);
+
+    /**
+     * Visits the entries a part at a time, each copied under the locks it needs then handed to {@code action}
+     * with none held, so that the action may block. Entries changed meanwhile may or may not be visited.
+     * The engines split into shards hand them over a shard at a time, rather than all at once.
+     *
+     * @param action takes the keys and the values of a part, one after the other
+     */
+    default void forEachPart(Consumer<List<String>> action) {
+        List<String> part = new ArrayList<>();
+        forEach((key, val) -> {
+            part.add(key);
+            part.add(val);
+        });
+        action.accept(part);
+    }
+}
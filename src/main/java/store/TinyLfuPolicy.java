@@ -0,0 +1,144 @@
+package store;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * W-TinyLFU: new entries enter a small LRU window, whose overflow moves on to the main space.
+ * Once something has to be evicted, the last entry moved on stays only if the {@link FrequencySketch}
+ * estimates it more popular than the entry it would push out. The main space is a segmented LRU,
+ * whose entries are promoted from probation to protected when accessed again.
+ * <p>
+ * Created by Edsuns@qq.com on 2022/4/30.
+ */
+class TinyLfuPolicy implements EvictionPolicy {
+
+    static final int WINDOW_PERCENT = 1;
+    static final int PROTECTED_PERCENT = 80;
+
+    /*
+     * keys by weight, in access order
+     */
+    private final LinkedHashMap<String, Integer> window = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<String, Integer> probation = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<String, Integer> protect = new LinkedHashMap<>(16, 0.75f, true);
+    private long windowWeight, probationWeight, protectedWeight;
+    private final FrequencySketch sketch = new FrequencySketch();
+    /**
+     * the last key moved from the window to probation, the candidate of the admission
+     */
+    private String candidate;
+
+    private int size() {
+        return window.size() + probation.size() + protect.size();
+    }
+
+    private long mainWeight() {
+        return probationWeight + protectedWeight;
+    }
+
+    @Override
+    public void onInsert(String key, int weight) {
+        window.put(key, weight);
+        windowWeight += weight;
+        sketch.ensureCapacity(size());
+        sketch.increment(key);
+        long share = Math.max(1, (windowWeight + mainWeight()) * WINDOW_PERCENT / 100);
+        while (windowWeight > share && window.size() > 1) {
+            Map.Entry<String, Integer> lru = first(window);
+            window.remove(lru.getKey());
+            windowWeight -= lru.getValue();
+            probation.put(lru.getKey(), lru.getValue());
+            probationWeight += lru.getValue();
+            candidate = lru.getKey();
+        }
+    }
+
+    @Override
+    public int onUpdate(String key, int weight) {
+        Integer old;
+        if ((old = window.get(key)) != null) {
+            window.put(key, weight);
+            windowWeight += weight - old;
+        } else if ((old = probation.get(key)) != null) {
+            probation.put(key, weight);
+            probationWeight += weight - old;
+        } else if ((old = protect.get(key)) != null) {
+            protect.put(key, weight);
+            protectedWeight += weight - old;
+        } else {
+            onInsert(key, weight);
+            return 0;
+        }
+        onAccess(key);
+        return old;
+    }
+
+    @Override
+    public void onAccess(String key) {
+        sketch.increment(key);
+        if (window.get(key) != null || protect.get(key) != null) {
+            return;
+        }
+        Integer weight = probation.remove(key);
+        if (weight == null) {
+            return;
+        }
+        probationWeight -= weight;
+        protect.put(key, weight);
+        protectedWeight += weight;
+        // demote the least recently used of the protected ones beyond their share
+        while (protectedWeight > mainWeight() * PROTECTED_PERCENT / 100 && protect.size() > 1) {
+            Map.Entry<String, Integer> lru = first(protect);
+            protect.remove(lru.getKey());
+            protectedWeight -= lru.getValue();
+            probation.put(lru.getKey(), lru.getValue());
+            probationWeight += lru.getValue();
+        }
+    }
+
+    @Override
+    public int onRemove(String key) {
+        Integer weight;
+        if ((weight = window.remove(key)) != null) {
+            windowWeight -= weight;
+        } else if ((weight = probation.remove(key)) != null) {
+            probationWeight -= weight;
+        } else if ((weight = protect.remove(key)) != null) {
+            protectedWeight -= weight;
+        } else {
+            return 0;
+        }
+        return weight;
+    }
+
+    @Override
+    public String victim() {
+        Map.Entry<String, Integer> victim = first(probation.isEmpty() ? protect : probation);
+        if (victim == null) {
+            victim = first(window);
+            return victim == null ? null : victim.getKey();
+        }
+        String c = candidate;
+        candidate = null;
+        // the candidate is turned away unless more popular than the victim
+        if (c != null && !c.equals(victim.getKey()) && probation.containsKey(c)
+                && sketch.frequency(c) <= sketch.frequency(victim.getKey())) {
+            return c;
+        }
+        return victim.getKey();
+    }
+
+    private static Map.Entry<String, Integer> first(LinkedHashMap<String, Integer> map) {
+        return map.isEmpty() ? null : map.entrySet().iterator().next();
+    }
+
+    @Override
+    public void clear() {
+        window.clear();
+        probation.clear();
+        protect.clear();
+        windowWeight = probationWeight = protectedWeight = 0;
+        candidate = null;
+    }
+}
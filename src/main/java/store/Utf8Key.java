@@ -0,0 +1,181 @@
+package store;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A key still encoded, as a slice of UTF-8 bytes, which equals the {@link String} it decodes to
+ * and has the same hash, computed once per slice. So it looks up the maps keyed by Strings
+ * without being decoded, see {@link StorageEngine#getUtf8(Utf8Key)}.
+ * <p>
+ * Reused for slice after slice by a single thread, so it must never be kept as a key itself.
+ * <p>
+ * Created by Edsuns@qq.com on 2022/5/9.
+ */
+public final class Utf8Key {
+
+    ByteBuffer bf;
+    int offset;
+    int length;
+    private int hash;
+    /**
+     * the slice decoded as {@code new String} does, only for malformed slices,
+     * otherwise the slice is the UTF-8 encoding of the decoded key
+     */
+    String malformed;
+    /**
+     * the bytes of the code point last decoded
+     */
+    private int step;
+
+    /**
+     * @param bf read with absolute gets, whether heap or direct
+     */
+    public Utf8Key set(ByteBuffer bf, int offset, int length) {
+        this.bf = bf;
+        this.offset = offset;
+        this.length = length;
+        this.malformed = null;
+        int h = 0;
+        for (int i = offset, end = offset + length; i < end; i += step) {
+            int cp = decode(i, end);
+            if (cp < 0) {
+                // replaced the way String does, a rare case not worth decoding by hand
+                malformed = toString();
+                h = malformed.hashCode();
+                break;
+            }
+            if (cp < Character.MIN_SUPPLEMENTARY_CODE_POINT) {
+                h = 31 * h + cp;
+            } else {
+                h = 31 * (31 * h + Character.highSurrogate(cp)) + Character.lowSurrogate(cp);
+            }
+        }
+        this.hash = h;
+        return this;
+    }
+
+    /**
+     * Decodes the code point at {@code i} and sets {@link #step}.
+     *
+     * @return {@code -1} if the bytes aren't well-formed, such as an overlong encoding or a surrogate
+     */
+    private int decode(int i, int end) {
+        int b0 = bf.get(i) & 0xFF;
+        if (b0 < 0x80) {
+            step = 1;
+            return b0;
+        }
+        int min = 0x80, max = 0xBF;
+        if (b0 >= 0xC2 && b0 <= 0xDF) {
+            step = 2;
+        } else if (b0 >= 0xE0 && b0 <= 0xEF) {
+            step = 3;
+            if (b0 == 0xE0) {
+                min = 0xA0;
+            } else if (b0 == 0xED) {
+                max = 0x9F;
+            }
+        } else if (b0 >= 0xF0 && b0 <= 0xF4) {
+            step = 4;
+            if (b0 == 0xF0) {
+                min = 0x90;
+            } else if (b0 == 0xF4) {
+                max = 0x8F;
+            }
+        } else {
+            return -1;
+        }
+        if (end - i < step) {
+            return -1;
+        }
+        // the leading bits of the first byte, then 6 bits from each of the others
+        int cp = b0 & (0x7F >> step);
+        for (int k = 1; k < step; k++) {
+            int b = bf.get(i + k) & 0xFF;
+            if (b < min || b > max) {
+                return -1;
+            }
+            min = 0x80;
+            max = 0xBF;
+            cp = cp << 6 | b & 0x3F;
+        }
+        return cp;
+    }
+
+    private boolean equalsString(String s) {
+        if (malformed != null) {
+            return malformed.equals(s);
+        }
+        // every char takes a byte at least
+        if (s.length() > length) {
+            return false;
+        }
+        int j = 0;
+        for (int i = offset, end = offset + length; i < end; i += step) {
+            int cp = decode(i, end);
+            if (cp < Character.MIN_SUPPLEMENTARY_CODE_POINT) {
+                if (j == s.length() || s.charAt(j++) != cp) {
+                    return false;
+                }
+            } else if (j + 1 >= s.length() || s.charAt(j++) != Character.highSurrogate(cp)
+                    || s.charAt(j++) != Character.lowSurrogate(cp)) {
+                return false;
+            }
+        }
+        return j == s.length();
+    }
+
+    /**
+     * Equals the Strings it decodes to, and the other keys of the same Strings.
+     */
+    @Override
+    public boolean equals(Object o) {
+        if (o instanceof String) {
+            return equalsString((String) o);
+        }
+        if (!(o instanceof Utf8Key)) {
+            return false;
+        }
+        Utf8Key other = (Utf8Key) o;
+        if (hash != other.hash) {
+            return false;
+        }
+        if (malformed != null || other.malformed != null) {
+            return toString().equals(other.toString());
+        }
+        // well-formed UTF-8 is the only encoding of its String
+        if (length != other.length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (bf.get(offset + i) != other.bf.get(other.offset + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the {@link String#hashCode()} of the decoded key
+     */
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    /**
+     * @return the decoded key, a String of its own
+     */
+    @Override
+    public String toString() {
+        if (malformed != null) {
+            return malformed;
+        }
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = bf.get(offset + i);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,386 @@
+package store;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only log of the mutations, written to disk by a thread of its own.
+ * <p>
+ * The records appended while the thread is writing are written together next time,
+ * sharing a single write and fsync (group commit). Each record is
+ * {@code [length][crc][op][key][value]}, so that a torn tail is detected on replay.
+ * <p>
+ * The log is made of files of increasing sequence numbers, {@link #rotate()} starts the next one.
+ * <p>
+ * Created by Edsuns@qq.com on 2022/4/28.
+ */
+public class WriteAheadLog implements Closeable {
+
+    /**
+     * fsync every group, {@link #await(long)} returns once the record is on disk
+     */
+    public static final int FSYNC_ALWAYS = 0;
+    /**
+     * fsync every {@code fsyncIntervalMs}, a crash of the machine loses at most that much
+     */
+    public static final int FSYNC_INTERVAL = 1;
+    /**
+     * leave it to the OS, only a crash of the machine loses data
+     */
+    public static final int FSYNC_NEVER = 2;
+
+    static final byte PUT = 1, REMOVE = 2, CLEAR = 3;
+    static final int RECORD_HEADER = Integer.BYTES * 2;// length + crc
+    static final int MAX_RECORD_LENGTH = Integer.MAX_VALUE - RECORD_HEADER;
+    static final int INITIAL_BUFFER_SIZE = 1024 * 64;// 64 KB
+
+    static final String PREFIX = "wal-";
+    static final String SUFFIX = ".log";
+
+    final Path directory;
+    final int fsync;
+    final long fsyncIntervalMs;
+
+    /**
+     * guards the buffer being filled, acquired after {@link #fileLock} if both are needed
+     */
+    private final Object lock = new Object();
+    /**
+     * guards the file, held by the writer from taking a batch until it's written
+     */
+    private final Object fileLock = new Object();
+    private ByteBuffer filling = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+    private ByteBuffer writing = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+    private final CRC32 crc = new CRC32();
+    /**
+     * counts of the records appended, and of those written according to {@link #fsync}
+     */
+    private long appended, synced;
+    private boolean closed;
+    private IOException failure;
+
+    private long sequence;
+    private FileChannel channel;
+    /**
+     * bytes appended to the current file
+     */
+    private volatile long size;
+    private final Thread thread;
+
+    /**
+     * @param sequence        of the first file, which mustn't exist yet
+     * @param fsync           {@link #FSYNC_ALWAYS}, {@link #FSYNC_INTERVAL} or {@link #FSYNC_NEVER}
+     * @param fsyncIntervalMs only used by {@link #FSYNC_INTERVAL}
+     */
+    public WriteAheadLog(Path directory, long sequence, int fsync, long fsyncIntervalMs) throws IOException {
+        if (fsync != FSYNC_ALWAYS && fsync != FSYNC_INTERVAL && fsync != FSYNC_NEVER) {
+            throw new IllegalArgumentException("fsync " + fsync);
+        }
+        if (fsync == FSYNC_INTERVAL && fsyncIntervalMs <= 0) {
+            throw new IllegalArgumentException("fsyncIntervalMs " + fsyncIntervalMs);
+        }
+        this.directory = directory;
+        this.fsync = fsync;
+        this.fsyncIntervalMs = fsyncIntervalMs;
+        this.sequence = sequence;
+        this.channel = open(sequence);
+        this.thread = new Thread(this::run, "NIOMap-wal");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    static Path file(Path directory, long sequence) {
+        return directory.resolve(PREFIX + String.format("%016d", sequence) + SUFFIX);
+    }
+
+    /**
+     * @return the sequence of a log file, or {@code -1} if it isn't one
+     */
+    static long sequence(Path file) {
+        String name = file.getFileName().toString();
+        if (!name.startsWith(PREFIX) || !name.endsWith(SUFFIX)) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private FileChannel open(long sequence) throws IOException {
+        size = 0;
+        return FileChannel.open(file(directory, sequence), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+    }
+
+    /**
+     * @return the bytes appended to the current file
+     */
+    public long size() {
+        return size;
+    }
+
+    /**
+     * @param key {@code null} for {@link #CLEAR}
+     * @param val {@code null} unless {@link #PUT}
+     * @return the number of the record, to {@link #await(long)}
+     */
+    public long append(byte op, String key, String val) {
+        byte[] k = key == null ? null : key.getBytes(StandardCharsets.UTF_8);
+        byte[] v = val == null ? null : val.getBytes(StandardCharsets.UTF_8);
+        long length = Byte.BYTES + Integer.BYTES * 2L + (k == null ? 0 : k.length) + (v == null ? 0 : v.length);
+        if (length > MAX_RECORD_LENGTH) {
+            throw new IllegalArgumentException("record of " + length + " bytes");
+        }
+        synchronized (lock) {
+            if (failure != null) {
+                throw new UncheckedIOException(failure);
+            }
+            if (closed) {
+                throw new IllegalStateException("closed");
+            }
+            boolean wasEmpty = filling.position() == 0;
+            ensureRoom(RECORD_HEADER + (int) length);
+            int start = filling.position();
+            filling.putInt((int) length);
+            filling.putInt(0);
+            filling.put(op);
+            putField(filling, k);
+            putField(filling, v);
+            crc.reset();
+            crc.update(filling.array(), start + RECORD_HEADER, (int) length);
+            filling.putInt(start + Integer.BYTES, (int) crc.getValue());
+            size += RECORD_HEADER + length;
+            if (wasEmpty) {
+                lock.notifyAll();
+            }
+            return ++appended;
+        }
+    }
+
+    private static void putField(ByteBuffer bf, byte[] field) {
+        if (field == null) {
+            bf.putInt(-1);
+        } else {
+            bf.putInt(field.length);
+            bf.put(field);
+        }
+    }
+
+    private void ensureRoom(int length) {
+        if (filling.remaining() >= length) {
+            return;
+        }
+        long capacity = Math.max((long) filling.capacity() * 2, (long) filling.position() + length);
+        ByteBuffer larger = ByteBuffer.allocate((int) Math.min(capacity, Integer.MAX_VALUE));
+        filling.flip();
+        larger.put(filling);
+        filling = larger;
+    }
+
+    /**
+     * Waits until the record is on disk with {@link #FSYNC_ALWAYS}, returns at once otherwise.
+     */
+    public void await(long record) {
+        if (fsync != FSYNC_ALWAYS) {
+            return;
+        }
+        synchronized (lock) {
+            while (synced < record && failure == null && !closed) {
+                try {
+                    lock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+            if (synced < record && failure != null) {
+                throw new UncheckedIOException(failure);
+            }
+        }
+    }
+
+    /**
+     * Ends the current file with the records appended so far, and starts the next one.
+     *
+     * @return the sequence of the new file
+     */
+    public long rotate() throws IOException {
+        synchronized (fileLock) {
+            synchronized (lock) {
+                if (closed) {
+                    throw new IllegalStateException("closed");
+                }
+                write(filling);
+                if (fsync != FSYNC_NEVER) {
+                    channel.force(false);
+                }
+                channel.close();
+                channel = open(++sequence);
+                synced = appended;
+                lock.notifyAll();
+                return sequence;
+            }
+        }
+    }
+
+    private void write(ByteBuffer batch) throws IOException {
+        batch.flip();
+        while (batch.hasRemaining()) {
+            channel.write(batch);
+        }
+        batch.clear();
+    }
+
+    private boolean fsyncDue(long lastFsync) {
+        return fsync == FSYNC_INTERVAL
+                && TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lastFsync) >= fsyncIntervalMs;
+    }
+
+    private void run() {
+        long lastFsync = System.nanoTime();
+        boolean dirty = false;
+        try {
+            while (true) {
+                synchronized (lock) {
+                    while (filling.position() == 0 && !closed && !(dirty && fsyncDue(lastFsync))) {
+                        long waitMs = 0;
+                        if (dirty && fsync == FSYNC_INTERVAL) {
+                            waitMs = Math.max(1, fsyncIntervalMs
+                                    - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lastFsync));
+                        }
+                        lock.wait(waitMs);
+                    }
+                }
+                long count;
+                boolean last;
+                synchronized (fileLock) {
+                    ByteBuffer batch;
+                    synchronized (lock) {
+                        // the records appended meanwhile go into the other buffer
+                        batch = filling;
+                        filling = writing;
+                        writing = batch;
+                        count = appended;
+                        last = closed;
+                    }
+                    if (batch.position() > 0) {
+                        write(batch);
+                        dirty = true;
+                    }
+                    if (dirty && (fsync == FSYNC_ALWAYS || fsyncDue(lastFsync) || last && fsync != FSYNC_NEVER)) {
+                        channel.force(false);
+                        lastFsync = System.nanoTime();
+                        dirty = false;
+                    }
+                    if (last) {
+                        channel.close();
+                    }
+                }
+                synchronized (lock) {
+                    synced = Math.max(synced, count);
+                    lock.notifyAll();
+                }
+                if (last) {
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            synchronized (lock) {
+                failure = e;
+                lock.notifyAll();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Writes what has been appended, and stops the thread.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (lock) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            lock.notifyAll();
+        }
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (lock) {
+            if (failure != null) {
+                throw failure;
+            }
+        }
+    }
+
+    /**
+     * Receives the records of a log.
+     */
+    interface Replay {
+        void apply(byte op, String key, String val);
+    }
+
+    /**
+     * Applies the records of a file until its end, or until a torn or corrupted record,
+     * which is truncated away with whatever follows it.
+     *
+     * @return the count of the records applied
+     */
+    static long replay(Path file, Replay replay) throws IOException {
+        long count = 0;
+        long end = 0;
+        try (MappedInput input = new MappedInput(file)) {
+            CRC32 crc = new CRC32();
+            while (input.remaining() > 0) {
+                int length = input.getInt();
+                int checksum = input.getInt();
+                if (length <= 0 || length > input.remaining()) {
+                    break;
+                }
+                byte[] record = input.getBytes(length);
+                crc.reset();
+                crc.update(record, 0, length);
+                if ((int) crc.getValue() != checksum) {
+                    break;
+                }
+                ByteBuffer bf = ByteBuffer.wrap(record);
+                replay.apply(bf.get(), readField(bf), readField(bf));
+                count++;
+                end = input.position();
+            }
+        } catch (EOFException e) {
+            // torn tail
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            if (channel.size() > end) {
+                channel.truncate(end);
+            }
+        }
+        return count;
+    }
+
+    private static String readField(ByteBuffer bf) {
+        int length = bf.getInt();
+        if (length == -1) {
+            return null;
+        }
+        String field = new String(bf.array(), bf.position(), length, StandardCharsets.UTF_8);
+        bf.position(bf.position() + length);
+        return field;
+    }
+}
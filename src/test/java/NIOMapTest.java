@@ -3,16 +3,30 @@ import org.junit.jupiter.api.AfterAll;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import store.BoundedStorageEngine;
+import store.DurableStorageEngine;
+import store.EvictionPolicy;
+import store.ShardedStorageEngine;
+import store.WriteAheadLog;
 
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.security.NoSuchAlgorithmException;
 import java.text.DecimalFormat;
-import java.util.ArrayList;
-import java.util.LinkedList;
-import java.util.List;
+import java.util.*;
 import java.util.concurrent.*;
+import java.util.function.BooleanSupplier;
 import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -35,6 +49,8 @@ public class NIOMapTest {
         address = new InetSocketAddress(REMOTE_HOST.isEmpty() ? "localhost" : REMOTE_HOST, PORT);
         if (REMOTE_HOST.isEmpty()) {
             nioMapServer = new NIOMapServer(new InetSocketAddress(PORT), encoder);
+            nioMapServer.setWorkers(2, NIOMapServer.BALANCE_LEAST_CONNECTIONS);
+            nioMapServer.setPlaintextAllowed(true);
             nioMapServer.connect();
         }
     }
@@ -49,7 +65,7 @@ public class NIOMapTest {
     @BeforeEach
     void beforeEach() throws IOException, ExecutionException, InterruptedException {
         if (nioMapServer != null) {
-            nioMapServer.map.clear();
+            nioMapServer.storage.clear();
         } else {
             NIOMapClient nioMapClient = new NIOMapClient(address, encoder);
             nioMapClient.connect();
@@ -60,7 +76,42 @@ public class NIOMapTest {
 
     @Test
     public void basic() throws IOException, ExecutionException, InterruptedException {
-        NIOMapClient nioMapClient = new NIOMapClient(address, encoder);
+        basic(new NIOMapClient(address, encoder));
+    }
+
+    @Test
+    public void basicText() throws IOException, ExecutionException, InterruptedException {
+        basic(new NIOMapClient(address, encoder, NIOMapClient.PROTOCOL_TEXT));
+    }
+
+    @Test
+    public void ciphers() throws IOException, ExecutionException, InterruptedException {
+        for (int cipher : new int[]{AESEncoder.CIPHER_CBC, AESEncoder.CIPHER_GCM,
+                AESEncoder.CIPHER_CTR, AESEncoder.CIPHER_NONE}) {
+            for (int protocol : new int[]{NIOMapClient.PROTOCOL_TEXT, NIOMapClient.PROTOCOL_BINARY}) {
+                NIOMapClient nioMapClient = new NIOMapClient(address, encoder, protocol);
+                nioMapClient.setCipher(cipher);
+                basic(nioMapClient);
+            }
+        }
+    }
+
+    @Test
+    public void plaintextNotAllowed() throws IOException {
+        NIOMapServer server = new NIOMapServer(new InetSocketAddress(PORT + 1), encoder);
+        server.connect();
+        NIOMapClient nioMapClient = new NIOMapClient(new InetSocketAddress("localhost", PORT + 1), encoder);
+        nioMapClient.setCipher(AESEncoder.CIPHER_NONE);
+        nioMapClient.connect();
+        ExecutionException e = assertThrows(ExecutionException.class, () -> nioMapClient.size().get());
+        assertInstanceOf(ClosedChannelException.class, e.getCause());
+        // counted rather than printed
+        assertEquals(1, server.metrics().snapshot().get("errors"));
+        nioMapClient.close();
+        server.close();
+    }
+
+    private void basic(NIOMapClient nioMapClient) throws IOException, ExecutionException, InterruptedException {
         nioMapClient.connect();
 
         final String k1 = "k1", v1 = "v1", v1_1 = "v1-1";
@@ -77,6 +128,14 @@ public class NIOMapTest {
         assertNull(nioMapClient.put(s, s).get());
         assertEquals(s, nioMapClient.get(s).get());
 
+        // frames larger than the pooled buffers
+        StringBuilder large = new StringBuilder();
+        while (large.length() < 100_000) {
+            large.append(s);
+        }
+        assertNull(nioMapClient.put("large", large.toString()).get());
+        assertEquals(large.toString(), nioMapClient.get("large").get());
+
         // clear
         int size = Integer.parseInt(nioMapClient.size().get());
         assertTrue(size > 0);
@@ -86,6 +145,606 @@ public class NIOMapTest {
         nioMapClient.close();
     }
 
+    /**
+     * Holds back a binary command until the next one is served, so that their replies swap.
+     */
+    static class ReorderingServer extends NIOMapServer {
+        volatile boolean holdNext;
+        private ByteBuffer held;
+
+        ReorderingServer(InetSocketAddress address, AESEncoder encoder) {
+            super(address, encoder);
+        }
+
+        @Override
+        protected void onMessage(ChannelContext<Queue<byte[]>> context, ByteBuffer message) {
+            if (holdNext) {
+                holdNext = false;
+                held = ByteBuffer.allocate(message.remaining()).put(message);
+                held.flip();
+                return;
+            }
+            super.onMessage(context, message);
+            if (held != null) {
+                super.onMessage(context, held);
+                held = null;
+            }
+        }
+    }
+
+    @Test
+    public void outOfOrderReplies() throws IOException, ExecutionException, InterruptedException {
+        ReorderingServer server = new ReorderingServer(new InetSocketAddress(PORT + 13), encoder);
+        server.connect();
+        NIOMapClient nioMapClient = new NIOMapClient(new InetSocketAddress("localhost", PORT + 13), encoder);
+        nioMapClient.connect();
+        try {
+            nioMapClient.put("slow", "v1").get();
+            nioMapClient.put("fast", "v2").get();
+
+            server.holdNext = true;
+            Future<String> slow = nioMapClient.get("slow");
+            Future<String> fast = nioMapClient.get("fast");
+            // the reply of the later command arrives first, and each completes its own command
+            assertEquals("v2", fast.get());
+            assertEquals("v1", slow.get());
+            assertEquals("2", nioMapClient.size().get());
+        } finally {
+            nioMapClient.close();
+            server.close();
+        }
+    }
+
+    @Test
+    public void async() throws IOException, InterruptedException, ExecutionException, TimeoutException {
+        NIOMapClient nioMapClient = new NIOMapClient(address, encoder);
+        nioMapClient.connect();
+
+        CompletableFuture<String> chained = nioMapClient.put("k1", "v1")
+                .thenCompose(prev -> nioMapClient.get("k1"))
+                .thenCompose(val -> nioMapClient.put("k2", val + "-2"))
+                .thenCompose(prev -> nioMapClient.get("k2"));
+        assertEquals("v1-2", chained.get(10_000L, TimeUnit.MILLISECONDS));
+
+        nioMapClient.close();
+    }
+
+    @Test
+    public void batch() throws IOException, InterruptedException, ExecutionException {
+        NIOMapClient nioMapClient = new NIOMapClient(address, encoder);
+        nioMapClient.connect();
+
+        Map<String, String> entries = new LinkedHashMap<>();
+        for (int i = 0; i < 100; i++) {
+            entries.put("k-" + i, "v-" + i);
+        }
+        assertNull(nioMapClient.put("k-0", "v-0-0").get());
+        Map<String, String> previous = nioMapClient.mput(entries).get();
+        assertEquals(entries.keySet(), previous.keySet());
+        assertEquals("v-0-0", previous.get("k-0"));
+        assertNull(previous.get("k-1"));
+        assertEquals("100", nioMapClient.size().get());
+
+        List<String> keys = Arrays.asList("k-1", "k-99", "absent");
+        Map<String, String> values = nioMapClient.mget(keys).get();
+        assertEquals(keys, new ArrayList<>(values.keySet()));
+        assertEquals("v-1", values.get("k-1"));
+        assertEquals("v-99", values.get("k-99"));
+        assertNull(values.get("absent"));
+
+        Map<String, String> removed = nioMapClient.mremove(keys).get();
+        assertEquals("v-1", removed.get("k-1"));
+        assertNull(removed.get("absent"));
+        assertEquals("98", nioMapClient.size().get());
+
+        nioMapClient.close();
+
+        NIOMapClient textClient = new NIOMapClient(address, encoder, NIOMapClient.PROTOCOL_TEXT);
+        assertThrows(UnsupportedOperationException.class, () -> textClient.mget(keys));
+    }
+
+    @Test
+    public void spaces() throws IOException, InterruptedException, ExecutionException {
+        NIOMapClient nioMapClient = new NIOMapClient(address, encoder);
+        nioMapClient.connect();
+        String key = "a key \u4e2d\u6587", val = "a value";
+        assertNull(nioMapClient.put(key, val).get());
+        assertEquals(val, nioMapClient.get(key).get());
+        assertNull(nioMapClient.get("a key").get());
+        assertTrue(nioMapClient.expire(key, 1, TimeUnit.HOURS).get());
+        assertEquals(val, nioMapClient.get(key).get());
+        nioMapClient.close();
+
+        NIOMapClient textClient = new NIOMapClient(address, encoder, NIOMapClient.PROTOCOL_TEXT);
+        assertThrows(IllegalArgumentException.class, () -> textClient.get(key));
+    }
+
+    @Test
+    public void ttl() throws IOException, InterruptedException, ExecutionException {
+        for (int protocol : new int[]{NIOMapClient.PROTOCOL_TEXT, NIOMapClient.PROTOCOL_BINARY}) {
+            NIOMapClient nioMapClient = new NIOMapClient(address, encoder, protocol);
+            nioMapClient.connect();
+
+            assertNull(nioMapClient.put("k1", "v1", 200, TimeUnit.MILLISECONDS).get());
+            long ttl = nioMapClient.ttl("k1").get();
+            assertTrue(ttl > 0 && ttl <= 200, "ttl " + ttl);
+            assertNull(nioMapClient.put("k2", "v2").get());
+            assertEquals(-1L, nioMapClient.ttl("k2").get());
+            assertEquals(-2L, nioMapClient.ttl("absent").get());
+            assertTrue(nioMapClient.expire("k2", 200, TimeUnit.MILLISECONDS).get());
+            assertFalse(nioMapClient.expire("absent", 200, TimeUnit.MILLISECONDS).get());
+            assertNull(nioMapClient.put("k3", "v3", 200, TimeUnit.MILLISECONDS).get());
+            // a plain put keeps the key
+            assertEquals("v3", nioMapClient.put("k3", "v3-1").get());
+
+            // expired by the server, without being read
+            long deadline = System.currentTimeMillis() + 5_000;
+            while (!"1".equals(nioMapClient.size().get()) && System.currentTimeMillis() < deadline) {
+                Thread.sleep(50);
+            }
+            assertEquals("1", nioMapClient.size().get());
+            assertNull(nioMapClient.get("k1").get());
+            assertEquals("v3-1", nioMapClient.get("k3").get());
+            assertEquals("1", nioMapClient.clear().get());
+
+            nioMapClient.close();
+        }
+    }
+
+    @Test
+    public void pool() throws IOException, InterruptedException, ExecutionException {
+        for (int routing : new int[]{NIOMapPool.ROUTE_KEY_HASH, NIOMapPool.ROUTE_LEAST_OUTSTANDING}) {
+            NIOMapPool pool = new NIOMapPool(address, encoder, 4);
+            pool.setRouting(routing);
+            pool.setHealthCheckInterval(50, TimeUnit.MILLISECONDS);
+            pool.connect();
+
+            List<CompletableFuture<String>> puts = new ArrayList<>();
+            Map<String, String> entries = new LinkedHashMap<>();
+            for (int i = 0; i < 1000; i++) {
+                puts.add(pool.put("k-" + i, "v-" + i));
+                entries.put("k-" + i, "v-" + i);
+            }
+            CompletableFuture.allOf(puts.toArray(new CompletableFuture[0])).get();
+            assertEquals("1000", pool.size().get());
+            assertEquals(entries, pool.mget(entries.keySet()).get());
+            assertEquals(entries, pool.mremove(entries.keySet()).get());
+            assertNull(pool.get("k-0").get());
+
+            // replaced once found down
+            NIOMapClient down = pool.clients.get(1);
+            down.close();
+            long deadline = System.currentTimeMillis() + 5_000;
+            while (pool.clients.get(1) == down && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertNotSame(down, pool.clients.get(1));
+            for (int i = 0; i < 100; i++) {
+                assertNull(pool.put("k-" + i, "v-" + i).get());
+            }
+            assertEquals("100", pool.clear().get());
+
+            pool.close();
+            ExecutionException e = assertThrows(ExecutionException.class, () -> pool.get("k-0").get());
+            assertInstanceOf(ClosedChannelException.class, e.getCause());
+        }
+    }
+
+    @Test
+    public void cluster() throws IOException, InterruptedException, ExecutionException {
+        List<NIOMapServer> servers = new ArrayList<>();
+        List<InetSocketAddress> addresses = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            NIOMapServer server = new NIOMapServer(new InetSocketAddress(PORT + 2 + i), encoder);
+            server.connect();
+            servers.add(server);
+            addresses.add(new InetSocketAddress("localhost", PORT + 2 + i));
+        }
+        NIOMapCluster cluster = new NIOMapCluster(addresses.subList(0, 3), encoder);
+        cluster.connect();
+        try {
+            Map<String, String> entries = new LinkedHashMap<>();
+            for (int i = 0; i < 3000; i++) {
+                entries.put("k-" + i, "v-" + i);
+            }
+            assertEquals(entries.size(), cluster.mput(entries).get().size());
+            assertEquals("3000", cluster.size().get());
+            for (int i = 0; i < 3; i++) {
+                // spread evenly enough
+                int size = servers.get(i).storage.size();
+                assertTrue(size > 600 && size < 1400, "size " + size);
+            }
+            assertEquals(entries, cluster.mget(entries.keySet()).get());
+            assertEquals("v-1", cluster.get("k-1").get());
+
+            // only the keys of the new server move
+            HashRing<NIOMapClient> before = cluster.ring;
+            cluster.addServer(addresses.get(3));
+            HashRing<NIOMapClient> after = cluster.ring;
+            int moved = 0;
+            for (String key : entries.keySet()) {
+                NIOMapClient node = after.node(key);
+                if (node != before.node(key)) {
+                    assertSame(node, after.nodes().get(addresses.get(3).toString()));
+                    moved++;
+                }
+            }
+            assertTrue(moved > 3000 * 0.15 && moved < 3000 * 0.35, "moved " + moved);
+            Map<String, String> values = cluster.mget(entries.keySet()).get();
+            assertEquals(3000 - moved, values.values().stream().filter(Objects::nonNull).count());
+
+            cluster.removeServer(addresses.get(3));
+            assertEquals(entries, cluster.mget(entries.keySet()).get());
+            assertEquals("3000", cluster.clear().get());
+        } finally {
+            cluster.close();
+            for (NIOMapServer server : servers) {
+                server.close();
+            }
+        }
+        ExecutionException e = assertThrows(ExecutionException.class, () -> cluster.get("k-1").get());
+        assertInstanceOf(ClosedChannelException.class, e.getCause());
+    }
+
+    @Test
+    public void replication() throws IOException, InterruptedException, ExecutionException {
+        NIOMapServer primary = new NIOMapServer(new InetSocketAddress(PORT + 6), encoder);
+        primary.connect();
+        for (int i = 0; i < 1000; i++) {
+            primary.storage.put("k-" + i, "v-" + i);
+        }
+        NIOMapServer replica = new NIOMapServer(new InetSocketAddress(PORT + 7), encoder);
+        replica.setPrimary(new InetSocketAddress("localhost", PORT + 6));
+        replica.connect();
+        NIOMapClient nioMapClient = new NIOMapClient(new InetSocketAddress("localhost", PORT + 7), encoder);
+        nioMapClient.connect();
+        try {
+            // the snapshot, then the mutations in order
+            await(() -> replica.appliedSequence() >= 0);
+            assertEquals(1000, replica.storage.size());
+            primary.storage.put("k-0", "v-0-1");
+            primary.storage.remove("k-1");
+            primary.storage.put("k-1000", "v-1000");
+            await(() -> replica.appliedSequence() == 3);
+            assertEquals(1000, replica.storage.size());
+            assertEquals("v-0-1", nioMapClient.get("k-0").get());
+            assertNull(nioMapClient.get("k-1").get());
+            assertEquals("v-1000", nioMapClient.get("k-1000").get());
+
+            await(() -> Long.valueOf(0).equals(primary.replicationLags().values().stream().findFirst().orElse(-1L)));
+            assertEquals(1, primary.replicationLags().size());
+            assertEquals(0, primary.metrics().snapshot().get("replication.lag"));
+            primary.storage.clear();
+            await(() -> replica.storage.size() == 0);
+
+            // read-only, refused without closing the connection
+            ExecutionException e = assertThrows(ExecutionException.class, () -> nioMapClient.put("k-0", "v-0").get());
+            assertInstanceOf(UnsupportedOperationException.class, e.getCause());
+            assertEquals("read-only replica", e.getCause().getMessage());
+            assertEquals("pong", nioMapClient.ping().get());
+            assertEquals(1, replica.metrics().snapshot().get("server.failed"));
+        } finally {
+            nioMapClient.close();
+            replica.close();
+            primary.close();
+        }
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5_000;
+        while (!condition.getAsBoolean() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(condition.getAsBoolean());
+    }
+
+    @Test
+    public void stats() throws Exception {
+        NIOMapServer server = new NIOMapServer(new InetSocketAddress(PORT + 8), encoder);
+        server.setJmxName("stats");
+        server.connect();
+        NIOMapClient nioMapClient = new NIOMapClient(new InetSocketAddress("localhost", PORT + 8), encoder);
+        nioMapClient.connect();
+        try {
+            for (int i = 0; i < 100; i++) {
+                nioMapClient.put("k-" + i, "v-" + i).get();
+                nioMapClient.get("k-" + i).get();
+            }
+            Map<String, Long> snapshot = server.metrics().snapshot();
+            assertEquals(100, snapshot.get("command.put.nanos.count"));
+            assertEquals(100, snapshot.get("command.get.nanos.count"));
+            assertTrue(snapshot.get("command.get.nanos.p50") <= snapshot.get("command.get.nanos.p99"));
+            assertEquals(1, snapshot.get("connections"));
+            assertEquals(100, snapshot.get("storage.size"));
+            assertTrue(snapshot.get("io.framesIn") >= 200);
+            assertTrue(snapshot.get("io.bytesOut") > 0);
+            assertTrue(snapshot.get("crypto.decryptNanos.count") >= 200);
+
+            String stats = nioMapClient.stats().get();
+            assertTrue(stats.contains("command.put.nanos.count 100\n"), stats);
+
+            MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName("NIOMap:type=NIOMapServer,name=\"stats\"");
+            assertEquals(1L, mBeanServer.getAttribute(name, "Connections"));
+            assertTrue((Long) mBeanServer.getAttribute(name, "FramesIn") >= 201);
+        } finally {
+            nioMapClient.close();
+            server.close();
+        }
+        assertTrue(ManagementFactory.getPlatformMBeanServer().queryNames(new ObjectName("NIOMap:*"), null).isEmpty());
+
+        // the counters of a bounded storage, found beneath the wrappers of the server
+        NIOMapServer bounded = new NIOMapServer(new InetSocketAddress(PORT + 8), encoder,
+                new BoundedStorageEngine(new ShardedStorageEngine(), EvictionPolicy.lru(), 1, 0));
+        bounded.storage.put("k-0", "v-0");
+        bounded.storage.put("k-1", "v-1");
+        bounded.storage.get("k-1");
+        bounded.storage.get("k-0");
+        Map<String, Long> snapshot = bounded.metrics().snapshot();
+        assertEquals(1, snapshot.get("storage.hits"));
+        assertEquals(1, snapshot.get("storage.misses"));
+        assertEquals(1, snapshot.get("storage.evictions"));
+    }
+
+    @Test
+    public void backpressure() throws IOException, InterruptedException, ExecutionException {
+        NIOMapServer server = new NIOMapServer(new InetSocketAddress(PORT + 9), encoder);
+        server.setOutputWatermarks(1024, 1024 * 4);
+        server.connect();
+        NIOMapClient nioMapClient = new NIOMapClient(new InetSocketAddress("localhost", PORT + 9), encoder);
+        try {
+            // pending until connected
+            nioMapClient.setPendingWatermarks(1, 2, NIOMapClient.OVERLOAD_REJECT);
+            CompletableFuture<String> put = nioMapClient.put("k", "v");
+            CompletableFuture<String> get = nioMapClient.get("k");
+            ExecutionException e = assertThrows(ExecutionException.class, () -> nioMapClient.get("k").get());
+            assertInstanceOf(RejectedExecutionException.class, e.getCause());
+            nioMapClient.setPendingWatermarks(1, 2, NIOMapClient.OVERLOAD_THROW);
+            assertThrows(RejectedExecutionException.class, () -> nioMapClient.get("k"));
+            nioMapClient.setPendingWatermarks(1, 2, NIOMapClient.OVERLOAD_BLOCK);
+            nioMapClient.setTimeout(100, TimeUnit.MILLISECONDS);
+            e = assertThrows(ExecutionException.class, () -> nioMapClient.get("k").get());
+            assertInstanceOf(TimeoutException.class, e.getCause());
+            assertEquals(2, nioMapClient.pendingCount());
+
+            nioMapClient.setTimeout(NIOMapClient.TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            nioMapClient.connect();
+            assertNull(put.get());
+            assertEquals("v", get.get());
+            assertEquals(0, nioMapClient.pendingCount());
+
+            // the replies of a batch back up the connection
+            nioMapClient.setPendingWatermarks(8, 16, NIOMapClient.OVERLOAD_BLOCK);
+            char[] val = new char[1024];
+            Arrays.fill(val, 'v');
+            Map<String, String> entries = new LinkedHashMap<>();
+            for (int i = 0; i < 100; i++) {
+                entries.put("k-" + i, new String(val));
+            }
+            assertEquals(100, nioMapClient.mput(entries).get().size());
+            List<CompletableFuture<Map<String, String>>> replies = new ArrayList<>();
+            for (int i = 0; i < 50; i++) {
+                replies.add(nioMapClient.mget(entries.keySet()));
+            }
+            for (CompletableFuture<Map<String, String>> reply : replies) {
+                assertEquals(entries, reply.get());
+            }
+            assertTrue(server.metrics().snapshot().get("io.readPauses") > 0);
+        } finally {
+            nioMapClient.close();
+            server.close();
+        }
+    }
+
+    @Test
+    public void executor() throws IOException, InterruptedException, ExecutionException, TimeoutException {
+        CountDownLatch clearing = new CountDownLatch(1), cleared = new CountDownLatch(1);
+        // a heavy clear
+        NIOMapServer server = new NIOMapServer(new InetSocketAddress(PORT + 10), encoder, new ShardedStorageEngine() {
+            @Override
+            public int clear() {
+                clearing.countDown();
+                try {
+                    cleared.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return super.clear();
+            }
+
+            @Override
+            public String put(String key, String val) {
+                if ("boom".equals(key)) {
+                    throw new IllegalStateException(key);
+                }
+                return super.put(key, val);
+            }
+        });
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        server.setExecutor(executor, NIOMapServer.ORDER_KEY);
+        server.connect();
+        NIOMapClient heavy = new NIOMapClient(new InetSocketAddress("localhost", PORT + 10), encoder);
+        NIOMapClient nioMapClient = new NIOMapClient(new InetSocketAddress("localhost", PORT + 10), encoder);
+        heavy.connect();
+        nioMapClient.connect();
+        try {
+            // in order by key
+            List<CompletableFuture<String>> puts = new ArrayList<>();
+            for (int i = 0; i < 1000; i++) {
+                puts.add(nioMapClient.put("k-" + i % 10, "v-" + i));
+            }
+            for (int i = 0; i < 10; i++) {
+                assertEquals("v-" + (990 + i), nioMapClient.get("k-" + i).get());
+            }
+            for (int i = 0; i < 1000; i++) {
+                assertEquals(i < 10 ? null : "v-" + (i - 10), puts.get(i).get());
+            }
+
+            server.setMaxInFlight(1);
+            CompletableFuture<String> clear = heavy.clear();
+            assertTrue(clearing.await(5, TimeUnit.SECONDS));
+            // served meanwhile, by the same event loop
+            assertEquals("pong", nioMapClient.ping().get(5, TimeUnit.SECONDS));
+            assertEquals("v-990", nioMapClient.get("k-0").get(5, TimeUnit.SECONDS));
+            // but not read from the connection waiting for its clear
+            CompletableFuture<String> held = heavy.ping();
+            Thread.sleep(100);
+            assertFalse(held.isDone());
+            assertFalse(clear.isDone());
+            cleared.countDown();
+            assertEquals("10", clear.get());
+            assertEquals("pong", held.get(5, TimeUnit.SECONDS));
+
+            // a failure closes the connection through its event loop, which counts it out
+            ExecutionException e = assertThrows(ExecutionException.class,
+                    () -> heavy.put("boom", "v").get(5, TimeUnit.SECONDS));
+            assertInstanceOf(ClosedChannelException.class, e.getCause());
+            await(() -> server.metrics().snapshot().get("connections") == 1);
+            assertEquals(1, server.metrics().snapshot().get("errors"));
+            assertEquals("pong", nioMapClient.ping().get(5, TimeUnit.SECONDS));
+        } finally {
+            cleared.countDown();
+            heavy.close();
+            nioMapClient.close();
+            server.close();
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void fsyncAlwaysNeedsExecutor() throws IOException {
+        Path directory = Files.createTempDirectory("wal");
+        DurableStorageEngine storage = new DurableStorageEngine(new ShardedStorageEngine(), directory,
+                WriteAheadLog.FSYNC_ALWAYS, 0);
+        try {
+            // the fsyncs would hold up the event loops
+            NIOMapServer server = new NIOMapServer(new InetSocketAddress(PORT + 15), encoder, storage);
+            assertThrows(IllegalStateException.class, server::connect);
+            ExecutorService executor = Executors.newFixedThreadPool(1);
+            server.setExecutor(executor, NIOMapServer.ORDER_NONE);
+            server.connect();
+            server.close();
+            executor.shutdown();
+        } finally {
+            storage.close();
+            try (Stream<Path> files = Files.list(directory)) {
+                for (Path file : files.collect(Collectors.toList())) {
+                    Files.delete(file);
+                }
+            }
+            Files.delete(directory);
+        }
+    }
+
+    @Test
+    public void blocking() throws Exception {
+        NIOMapServer server = new NIOMapServer(new InetSocketAddress(PORT + 11), encoder);
+        server.connect();
+        BlockingMapServer blockingServer = new BlockingMapServer(new InetSocketAddress(PORT + 12), server);
+        blockingServer.setPlaintextAllowed(true);
+        blockingServer.connect();
+        BlockingMapClient client = new BlockingMapClient(new InetSocketAddress("localhost", PORT + 12), encoder);
+        // the same frames as the event loops
+        BlockingMapClient selectorClient = new BlockingMapClient(new InetSocketAddress("localhost", PORT + 11), encoder);
+        NIOMapClient nioMapClient = new NIOMapClient(new InetSocketAddress("localhost", PORT + 12), encoder);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            client.connect();
+            selectorClient.connect();
+            nioMapClient.setCipher(AESEncoder.CIPHER_CTR);
+            nioMapClient.connect();
+            assertNull(client.put("k1", "v1"));
+            assertEquals("v1", client.get("k1"));
+            assertEquals("v1", selectorClient.get("k1"));
+            assertEquals("v1", nioMapClient.get("k1").get());
+            assertEquals(-1, client.ttl("k1"));
+            assertTrue(client.expire("k1", 1, TimeUnit.HOURS));
+            Map<String, String> entries = new LinkedHashMap<>();
+            entries.put("k2", "v2");
+            entries.put("k3", "v3");
+            client.mput(entries);
+            assertEquals(Arrays.asList("v1", "v2", null),
+                    new ArrayList<>(client.mget(Arrays.asList("k1", "k2", "k4")).values()));
+            assertEquals("pong", client.ping());
+
+            // a thread per connection, plaintext too
+            List<Future<String>> futures = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                int n = i;
+                futures.add(executor.submit(() -> {
+                    try (BlockingMapClient c = new BlockingMapClient(
+                            new InetSocketAddress("localhost", PORT + 12), encoder)) {
+                        c.setCipher(n % 2 == 0 ? AESEncoder.CIPHER_NONE : AESEncoder.CIPHER_GCM);
+                        c.connect();
+                        for (int j = 0; j < 100; j++) {
+                            c.put("t-" + n, "v-" + j);
+                        }
+                        return c.get("t-" + n);
+                    }
+                }));
+            }
+            for (Future<String> future : futures) {
+                assertEquals("v-99", future.get(10, TimeUnit.SECONDS));
+            }
+            assertEquals("11", client.size());
+            // the ones of the threads are gone
+            await(() -> blockingServer.connections() == 2);
+
+            // refused by the server, the connection goes on
+            NIOMapServer replica = new NIOMapServer(new InetSocketAddress(PORT + 16), encoder);
+            replica.setPrimary(new InetSocketAddress("localhost", PORT + 11));
+            BlockingMapServer readOnly = new BlockingMapServer(new InetSocketAddress(PORT + 17), replica);
+            readOnly.connect();
+            try (BlockingMapClient c = new BlockingMapClient(new InetSocketAddress("localhost", PORT + 17), encoder)) {
+                c.connect();
+                UnsupportedOperationException e = assertThrows(UnsupportedOperationException.class,
+                        () -> c.put("k1", "v1"));
+                assertEquals("read-only replica", e.getMessage());
+                assertEquals("pong", c.ping());
+            } finally {
+                readOnly.close();
+            }
+
+            // a failed command closes the connection
+            blockingServer.close();
+            assertThrows(IOException.class, client::ping);
+            assertFalse(client.isOpen());
+            assertThrows(ClosedChannelException.class, client::ping);
+        } finally {
+            client.close();
+            selectorClient.close();
+            nioMapClient.close();
+            blockingServer.close();
+            server.close();
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void closeFailsPending() throws IOException, InterruptedException {
+        NIOMapClient nioMapClient = new NIOMapClient(address, encoder);
+        Future<String> future = nioMapClient.get("k1");
+        nioMapClient.close();
+        ExecutionException e = assertThrows(ExecutionException.class, future::get);
+        assertTrue(e.getCause() instanceof ClosedChannelException);
+    }
+
+    @Test
+    public void timeoutBeforeWritten() throws IOException {
+        // accepted by the kernel, but never served, so the handshake never completes
+        try (ServerSocketChannel silent = ServerSocketChannel.open()) {
+            silent.bind(new InetSocketAddress(PORT + 14));
+            NIOMapClient nioMapClient = new NIOMapClient(new InetSocketAddress("localhost", PORT + 14), encoder);
+            nioMapClient.setTimeout(200, TimeUnit.MILLISECONDS);
+            nioMapClient.connect();
+            Future<String> future = nioMapClient.get("k1");
+            ExecutionException e = assertThrows(ExecutionException.class,
+                    () -> future.get(10_000L, TimeUnit.MILLISECONDS));
+            assertTrue(e.getCause() instanceof TimeoutException);
+            nioMapClient.close();
+        }
+    }
+
     @Test
     public void concurrent() throws IOException, InterruptedException, TimeoutException, ExecutionException {
         final int x = 2, y = 3, threads = x * y;
@@ -0,0 +1,45 @@
+package nio;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Created by Edsuns@qq.com on 2022/4/27.
+ */
+public class BufferPoolTest {
+
+    @Test
+    public void test() {
+        BufferPool pool = new BufferPool(1 << BufferPool.MIN_SHIFT);
+        ByteBuffer bf = pool.acquire(1);
+        assertTrue(bf.isDirect());
+        assertEquals(1 << BufferPool.MIN_SHIFT, bf.capacity());
+        bf.put((byte) 1);
+        pool.release(bf);
+        assertEquals(bf.capacity(), pool.retainedBytes());
+
+        // reused and cleared
+        ByteBuffer reused = pool.acquire(bf.capacity());
+        assertSame(bf, reused);
+        assertEquals(0, reused.position());
+        assertEquals(0, pool.retainedBytes());
+
+        // over the retained limit
+        ByteBuffer other = pool.acquire(1);
+        pool.release(reused);
+        pool.release(other);
+        assertEquals(bf.capacity(), pool.retainedBytes());
+
+        ByteBuffer larger = pool.acquire(bf.capacity() + 1);
+        assertEquals(bf.capacity() * 2, larger.capacity());
+        long allocated = pool.allocatedBytes();
+        ByteBuffer huge = pool.acquire((1 << BufferPool.MAX_SHIFT) + 1);
+        assertEquals((1 << BufferPool.MAX_SHIFT) + 1, huge.capacity());
+        assertEquals(allocated + huge.capacity(), pool.allocatedBytes());
+        pool.release(huge);
+        assertEquals(bf.capacity(), pool.retainedBytes());
+    }
+}
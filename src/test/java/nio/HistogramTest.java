@@ -0,0 +1,43 @@
+package nio;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Created by Edsuns@qq.com on 2022/5/6.
+ */
+public class HistogramTest {
+
+    @Test
+    public void buckets() {
+        int last = -1;
+        for (long v = 0; v < 1 << 20; v++) {
+            int bucket = Histogram.bucket(v);
+            assertTrue(bucket == last || bucket == last + 1, "value " + v);
+            assertTrue(v <= Histogram.highest(bucket));
+            last = bucket;
+        }
+        assertEquals(Histogram.BUCKETS - 1, Histogram.bucket(Long.MAX_VALUE));
+        assertEquals(Long.MAX_VALUE, Histogram.highest(Histogram.BUCKETS - 1));
+    }
+
+    @Test
+    public void percentiles() {
+        Histogram histogram = new Histogram();
+        assertEquals(0, histogram.percentile(99));
+        for (long v = 1; v <= 10_000; v++) {
+            histogram.record(v);
+        }
+        assertEquals(10_000, histogram.count());
+        assertEquals(5000, histogram.mean());
+        assertEquals(10_000, histogram.max());
+        for (double p : new double[]{50, 90, 99, 99.9}) {
+            long exact = (long) Math.ceil(10_000 * p / 100);
+            long value = histogram.percentile(p);
+            // the highest of the bucket, within 1/8
+            assertTrue(value >= exact && value <= exact + exact / Histogram.SUB_BUCKETS, p + ": " + value);
+        }
+        assertEquals(10_000, histogram.percentile(100));
+    }
+}
@@ -0,0 +1,81 @@
+package nio;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedList;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Created by Edsuns@qq.com on 2022/4/24.
+ */
+public class MessageOutputTest {
+
+    @Test
+    public void coalesceAndCap() throws IOException, NoSuchAlgorithmException {
+        AESEncoder encoder = AESEncoder.generateEncoder();
+        NIOComponentTest.Echo component = new NIOComponentTest.Echo(false, encoder);
+        EventLoop loop = new EventLoop(component);
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress("localhost", 0));
+            try (SocketChannel channel = SocketChannel.open(server.getLocalAddress());
+                 SocketChannel peer = server.accept()) {
+                channel.configureBlocking(false);
+                SelectionKey key = channel.register(loop.selector, NIOComponent.OPS);
+                NIOComponent.ChannelContext<?> context = new NIOComponent.ChannelContext<>(key, new LinkedList<>(), loop);
+                context.encoder = encoder;
+                MessageOutput output = context.messageOutput;
+
+                // each frame fills a pooled buffer of its own
+                byte[] message = new byte[InputOutput.BUFFER_SIZE];
+                output.write(message);
+                output.write(message);
+                output.write(message);
+                // queued for a single flush at the end of the iteration
+                assertEquals(3, output.queue.size());
+                assertEquals(1, loop.flushes.size());
+
+                // a flush stops at its limit, and the rest waits for OP_WRITE
+                component.setMaxFlushBytes(1);
+                int first = output.queue.peek().remaining();
+                int rest = 0;
+                for (ByteBuffer frame : output.queue) {
+                    rest += frame.remaining();
+                }
+                rest -= first;
+                output.flush();
+                assertEquals(2, output.queue.size());
+                NIOComponent.updateInterest(context);
+                assertEquals(NIOComponent.OPS | SelectionKey.OP_WRITE, key.interestOps());
+                assertEquals(first, read(peer, first));
+
+                // the remainder goes out together once writable
+                component.setMaxFlushBytes(NIOComponent.DEFAULT_MAX_FLUSH_BYTES);
+                output.flush();
+                assertTrue(output.queue.isEmpty());
+                NIOComponent.updateInterest(context);
+                assertEquals(NIOComponent.OPS, key.interestOps());
+                assertEquals(rest, read(peer, rest));
+            }
+        } finally {
+            loop.close();
+        }
+    }
+
+    private static int read(SocketChannel peer, int bytes) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(bytes);
+        while (buffer.hasRemaining()) {
+            if (peer.read(buffer) < 0) {
+                break;
+            }
+        }
+        return buffer.position();
+    }
+}
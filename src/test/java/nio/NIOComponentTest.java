@@ -0,0 +1,98 @@
+package nio;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedList;
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Created by Edsuns@qq.com on 2022/4/22.
+ */
+public class NIOComponentTest {
+
+    static final int PORT = 3334;
+
+    /**
+     * Writes the messages of its queue, and echoes the received ones when it's a server.
+     */
+    static class Echo extends NIOComponent<Queue<String>> {
+        final BlockingQueue<String> received = new LinkedBlockingQueue<>();
+        volatile ChannelContext<Queue<String>> context;
+
+        Echo(boolean isServer, AESEncoder encoder) {
+            super(new InetSocketAddress("localhost", PORT), isServer, encoder, LinkedList::new);
+        }
+
+        void send(String message) {
+            context.attachment.add(message);
+            requestWrite(context);
+        }
+
+        @Override
+        protected void onConnected(ChannelContext<Queue<String>> context) {
+            this.context = context;
+        }
+
+        @Override
+        protected void onMessage(ChannelContext<Queue<String>> context, String message) {
+            if (isServer) {
+                context.attachment.add(message);
+                requestWrite(context);
+            } else {
+                received.add(message);
+            }
+        }
+
+        @Override
+        protected void onWritable(ChannelContext<Queue<String>> context) throws IOException {
+            String message;
+            while ((message = context.attachment.poll()) != null) {
+                write(context, message);
+            }
+        }
+    }
+
+    @Test
+    public void idleWithoutWriteInterest() throws IOException, NoSuchAlgorithmException, InterruptedException {
+        AESEncoder encoder = AESEncoder.generateEncoder();
+        Echo server = new Echo(true, encoder);
+        server.setWorkers(1, NIOComponent.BALANCE_ROUND_ROBIN);
+        server.connect();
+        Echo client = new Echo(false, encoder);
+        client.connect();
+        try {
+            long deadline = System.currentTimeMillis() + NIOComponent.TIMEOUT_MS;
+            while (client.context == null && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            client.send("ping");
+            assertEquals("ping", client.received.poll(NIOComponent.TIMEOUT_MS, TimeUnit.MILLISECONDS));
+
+            // nothing is left to write, so neither side selects OP_WRITE while idle
+            Thread.sleep(100);
+            assertFalse(writeInterest(client.boss));
+            assertFalse(writeInterest(server.workers[0]));
+        } finally {
+            client.close();
+            server.close();
+        }
+    }
+
+    private static boolean writeInterest(EventLoop loop) {
+        for (SelectionKey key : loop.selector.keys()) {
+            if (key.isValid() && (key.interestOps() & SelectionKey.OP_WRITE) != 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,408 @@
+package store;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Created by Edsuns@qq.com on 2022/4/22.
+ */
+public class StorageEngineTest {
+
+    static void basic(StorageEngine storage) {
+        assertEquals(0, storage.size());
+        assertNull(storage.put("k1", "v1"));
+        assertEquals("v1", storage.put("k1", "v1-1"));
+        assertNull(storage.put("k2", "v2"));
+        assertEquals("v1-1", storage.get("k1"));
+        assertNull(storage.get("k3"));
+        assertArrayEquals("v1-1".getBytes(StandardCharsets.UTF_8), storage.getUtf8(Utf8KeyTest.key("k1")));
+        assertNull(storage.getUtf8(Utf8KeyTest.key("k3")));
+        assertEquals(2, storage.size());
+        // the parts come with no lock held, so the storage can be written meanwhile
+        Map<String, String> parts = new HashMap<>();
+        storage.forEachPart(part -> {
+            for (int i = 0; i < part.size(); i += 2) {
+                parts.put(part.get(i), part.get(i + 1));
+            }
+            assertDoesNotThrow(() -> CompletableFuture.runAsync(() -> storage.put("k1", "v1-1")).get(5, TimeUnit.SECONDS));
+        });
+        assertEquals(2, parts.size());
+        assertEquals("v1-1", parts.get("k1"));
+        assertEquals("v2", parts.get("k2"));
+        assertEquals("v2", storage.remove("k2"));
+        assertNull(storage.remove("k2"));
+        assertEquals(1, storage.clear());
+        assertEquals(0, storage.size());
+        assertNull(storage.get("k1"));
+    }
+
+    @Test
+    public void map() {
+        basic(new MapStorageEngine(new HashMap<>()));
+    }
+
+    @Test
+    public void offHeap() {
+        basic(new OffHeapStorageEngine());
+        basic(new OffHeapStorageEngine(1, 64, null));
+
+        OffHeapStorageEngine storage = new OffHeapStorageEngine(4, 1024, null);
+        final int count = 20_000;
+        for (int i = 0; i < count; i++) {
+            assertNull(storage.put("k-" + i, "v-" + i));
+        }
+        StringBuilder big = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            big.append("big-\u4e2d\u6587-").append(i);
+        }
+        assertEquals("v-7", storage.put("k-7", big.toString()));
+        assertEquals(big.toString(), storage.get("k-7"));
+        assertArrayEquals(big.toString().getBytes(StandardCharsets.UTF_8), storage.getUtf8(Utf8KeyTest.key("k-7")));
+        assertEquals(big.toString(), storage.put("k-7", "v-7"));
+        for (int i = 0; i < count; i += 2) {
+            assertEquals("v-" + i, storage.remove("k-" + i));
+        }
+        assertEquals(count / 2, storage.size());
+        for (int i = 0; i < count; i++) {
+            assertEquals(i % 2 == 0 ? null : "v-" + i, storage.get("k-" + i));
+        }
+        assertTrue(storage.bytesPerEntry() > 0);
+        assertTrue(storage.usedMemory() <= storage.memoryFootprint());
+        assertEquals(count / 2, storage.clear());
+        assertEquals(0, storage.usedMemory());
+    }
+
+    @Test
+    public void offHeapMapped() throws IOException {
+        Path directory = Files.createTempDirectory("slabs");
+        try {
+            basic(new OffHeapStorageEngine(2, 256, directory));
+        } finally {
+            Files.deleteIfExists(directory);
+        }
+    }
+
+    @Test
+    public void durable() throws IOException {
+        Path directory = Files.createTempDirectory("wal");
+        try {
+            DurableStorageEngine storage = new DurableStorageEngine(new ShardedStorageEngine(), directory,
+                    WriteAheadLog.FSYNC_ALWAYS, 0);
+            basic(storage);
+            for (int i = 0; i < 1000; i++) {
+                storage.put("k-" + i, "v-" + i);
+            }
+            storage.snapshot();
+            for (int i = 0; i < 1000; i += 2) {
+                storage.remove("k-" + i);
+            }
+            storage.put("k-1", "v-1-1");
+            storage.close();
+
+            // a torn record at the tail of the log is dropped
+            Path last;
+            try (Stream<Path> files = Files.list(directory)) {
+                last = files.filter(f -> WriteAheadLog.sequence(f) >= 0).max(Path::compareTo).get();
+            }
+            Files.write(last, new byte[]{0, 0, 0, 9, 1, 2}, StandardOpenOption.APPEND);
+
+            storage = new DurableStorageEngine(new OffHeapStorageEngine(), directory,
+                    WriteAheadLog.FSYNC_INTERVAL, 10, 1024);
+            assertEquals(500, storage.size());
+            assertEquals("v-1-1", storage.get("k-1"));
+            assertNull(storage.get("k-2"));
+            assertEquals("v-3", storage.get("k-3"));
+            // snapshots itself in the background once the log passes 1 KB
+            for (int i = 0; i < 1000; i++) {
+                storage.put("k-" + i, "v-" + i);
+            }
+            storage.close();
+            assertNull(storage.snapshotFailure());
+
+            // serves the snapshot as it is
+            storage = new DurableStorageEngine(new MappedStorageEngine(), directory,
+                    WriteAheadLog.FSYNC_NEVER, 0);
+            assertEquals(1000, storage.size());
+            assertEquals("v-2", storage.get("k-2"));
+            storage.close();
+        } finally {
+            try (Stream<Path> files = Files.list(directory)) {
+                for (Path file : files.collect(Collectors.toList())) {
+                    Files.delete(file);
+                }
+            }
+            Files.delete(directory);
+        }
+    }
+
+    @Test
+    public void mapped() throws IOException {
+        basic(new MappedStorageEngine());
+
+        Path index = Files.createTempFile("index", ".dat");
+        try {
+            StorageEngine source = new ShardedStorageEngine();
+            final int count = 10_000;
+            for (int i = 0; i < count; i++) {
+                source.put("k-" + i, "v-" + i);
+            }
+            MappedIndex.write(index, source);
+
+            MappedStorageEngine storage = new MappedStorageEngine(index);
+            assertEquals(count, storage.size());
+            assertEquals("v-7", storage.get("k-7"));
+            assertNull(storage.get("k-" + count));
+            assertEquals("v-7", storage.put("k-7", "v-7-1"));
+            assertEquals("v-7-1", storage.get("k-7"));
+            assertEquals("v-8", storage.remove("k-8"));
+            assertNull(storage.get("k-8"));
+            assertNull(storage.remove("k-8"));
+            assertNull(storage.put("k-8", "v-8"));
+            assertNull(storage.put("new", "v"));
+            assertEquals(count + 1, storage.size());
+            Map<String, String> entries = new HashMap<>();
+            storage.forEach(entries::put);
+            assertEquals(count + 1, entries.size());
+            assertEquals("v-7-1", entries.get("k-7"));
+            assertEquals(count + 1, storage.clear());
+            assertNull(storage.get("k-1"));
+            assertEquals(0, storage.size());
+        } finally {
+            Files.delete(index);
+        }
+    }
+
+    @Test
+    public void expiring() {
+        AtomicLong clock = new AtomicLong(1_000_000);
+        basic(new ExpiringStorageEngine(new ShardedStorageEngine(), clock::get));
+
+        ExpiringStorageEngine storage = new ExpiringStorageEngine(new ShardedStorageEngine(), clock::get);
+        assertNull(storage.put("k1", "v1", 1_000));
+        assertEquals(1_000, storage.ttl("k1"));
+        assertNull(storage.put("k2", "v2"));
+        assertEquals(ExpiringStorageEngine.NO_EXPIRY, storage.ttl("k2"));
+        assertEquals(ExpiringStorageEngine.ABSENT, storage.ttl("absent"));
+        assertTrue(storage.expire("k2", 2_000));
+        assertFalse(storage.expire("absent", 2_000));
+        clock.addAndGet(1_000);
+        // lazily
+        assertNull(storage.get("k1"));
+        assertEquals("v2", storage.get("k2"));
+        assertEquals(1, storage.size());
+        assertEquals(1, storage.expiredCount());
+        // a plain put clears the deadline
+        assertEquals("v2", storage.put("k2", "v2-1"));
+        clock.addAndGet(10_000);
+        storage.tick();
+        assertEquals("v2-1", storage.get("k2"));
+        assertTrue(storage.expire("k2", 0));
+        assertEquals(0, storage.size());
+
+        // actively, whatever the level of the wheel
+        long[] ttls = {50, 5_000, 500_000, 50_000_000, 5_000_000_000L};
+        final int each = 200;
+        long start = clock.get();
+        for (int i = 0; i < each * ttls.length; i++) {
+            storage.put("k-" + i, "v-" + i, ttls[i % ttls.length]);
+        }
+        storage.put("forever", "v");
+        for (int i = 0; i < ttls.length; i++) {
+            clock.set(start + ttls[i] - 1);
+            storage.tick();
+            // never early
+            assertEquals(each * (ttls.length - i) + 1, storage.size());
+            clock.set(start + ttls[i] + ExpiringStorageEngine.TICK_MS);
+            assertEquals(each, storage.tick());
+        }
+        assertEquals("v", storage.get("forever"));
+
+        // a budget per tick
+        for (int i = 0; i < ExpiringStorageEngine.EXPIRE_BUDGET * 2; i++) {
+            storage.put("k-" + i, "v-" + i, 1);
+        }
+        clock.addAndGet(ExpiringStorageEngine.TICK_MS * 2);
+        assertEquals(ExpiringStorageEngine.EXPIRE_BUDGET, storage.tick());
+        assertEquals(ExpiringStorageEngine.EXPIRE_BUDGET + 1, storage.size());
+        assertEquals(ExpiringStorageEngine.EXPIRE_BUDGET, storage.tick());
+        assertEquals(1, storage.size());
+
+        // the deadlines superseded leave the wheel long before they are due
+        for (int round = 0; round < 10; round++) {
+            for (int i = 0; i < 100; i++) {
+                storage.put("k-" + i, "v-" + i, 5_000_000_000L);
+                storage.expire("k-" + i, 50_000_000);
+            }
+            storage.put("k-0", "v-0");
+            storage.remove("k-1");
+            storage.tick();
+        }
+        assertEquals(98, storage.wheelSize());
+        assertEquals(100, storage.clear());
+        storage.tick();
+        assertEquals(0, storage.wheelSize());
+    }
+
+    @Test
+    public void bounded() {
+        basic(new BoundedStorageEngine(new ShardedStorageEngine(), EvictionPolicy.lru(), 100, 0));
+        basic(new BoundedStorageEngine(new ShardedStorageEngine(), EvictionPolicy.tinyLfu(), 0, 1024 * 1024));
+
+        BoundedStorageEngine lru = new BoundedStorageEngine(new ShardedStorageEngine(), EvictionPolicy.lru(), 100, 0);
+        for (int i = 0; i < 200; i++) {
+            lru.put("k-" + i, "v-" + i);
+            // kept recent
+            lru.put("k-0", "v-0");
+        }
+        assertEquals(100, lru.size());
+        assertEquals("v-0", lru.get("k-0"));
+        assertNull(lru.get("k-1"));
+        assertEquals("v-199", lru.get("k-199"));
+        assertEquals(100, lru.evictionCount());
+        assertEquals(2.0 / 3, lru.hitRatio(), 1e-9);
+        // counted on the binary path too
+        assertArrayEquals("v-0".getBytes(StandardCharsets.UTF_8), lru.getUtf8(Utf8KeyTest.key("k-0")));
+        assertNull(lru.getUtf8(Utf8KeyTest.key("k-1")));
+        assertEquals(0.6, lru.hitRatio(), 1e-9);
+
+        // popular keys survive a scan of keys read only once, though too seldom read for LRU
+        for (EvictionPolicy policy : new EvictionPolicy[]{EvictionPolicy.lru(), EvictionPolicy.tinyLfu()}) {
+            BoundedStorageEngine bounded = new BoundedStorageEngine(new ShardedStorageEngine(), policy, 100, 0);
+            for (int i = 0; i < 50; i++) {
+                bounded.put("hot-" + i, "v");
+            }
+            for (int round = 0; round < 20; round++) {
+                for (int i = 0; i < 50; i++) {
+                    bounded.get("hot-" + i);
+                }
+            }
+            for (int i = 0; i < 10_000; i++) {
+                bounded.put("scan-" + i, "v");
+                if (i % 4 == 0) {
+                    bounded.get("hot-" + (i / 4 % 50));
+                }
+            }
+            assertEquals(100, bounded.size());
+            int hot = 0;
+            for (int i = 0; i < 50; i++) {
+                if (bounded.get("hot-" + i) != null) {
+                    hot++;
+                }
+            }
+            if (policy instanceof TinyLfuPolicy) {
+                assertTrue(hot >= 45, "hot " + hot);
+            } else {
+                assertTrue(hot < 10, "hot " + hot);
+            }
+        }
+
+        BoundedStorageEngine bytes = new BoundedStorageEngine(new ShardedStorageEngine(),
+                EvictionPolicy.lru(), 0, BoundedStorageEngine.weigh("k-0", "v-0") * 10L);
+        for (int i = 10; i < 30; i++) {
+            bytes.put("k" + i, "v" + i);
+        }
+        assertEquals(10, bytes.size());
+        assertTrue(bytes.weightedSize() <= BoundedStorageEngine.weigh("k-0", "v-0") * 10L);
+    }
+
+    @Test
+    public void boundedRecorded() throws IOException {
+        Path directory = Files.createTempDirectory("wal");
+        try {
+            // evictions reach the replicas and the log, including the puts rejected by TinyLFU
+            ReplicatedStorageEngine storage = new ReplicatedStorageEngine(new DurableStorageEngine(
+                    new BoundedStorageEngine(new ShardedStorageEngine(), EvictionPolicy.tinyLfu(), 100, 0),
+                    directory, WriteAheadLog.FSYNC_NEVER, 0));
+            Map<String, String> replica = new HashMap<>();
+            storage.subscribe(new ReplicatedStorageEngine.Listener() {
+                @Override
+                public void onPut(long sequence, String key, String val) {
+                    replica.put(key, val);
+                }
+
+                @Override
+                public void onRemove(long sequence, String key) {
+                    replica.remove(key);
+                }
+
+                @Override
+                public void onClear(long sequence) {
+                    replica.clear();
+                }
+            });
+            for (int round = 0; round < 3; round++) {
+                for (int i = 0; i < 500; i++) {
+                    storage.put("k-" + i % (50 + round * 100), "v-" + i);
+                }
+            }
+            Map<String, String> kept = new HashMap<>();
+            storage.forEach(kept::put);
+            assertEquals(100, kept.size());
+            assertEquals(kept, replica);
+            storage.close();
+
+            DurableStorageEngine recovered = new DurableStorageEngine(new ShardedStorageEngine(), directory,
+                    WriteAheadLog.FSYNC_NEVER, 0);
+            Map<String, String> entries = new HashMap<>();
+            recovered.forEach(entries::put);
+            assertEquals(kept, entries);
+            recovered.close();
+        } finally {
+            try (Stream<Path> files = Files.list(directory)) {
+                for (Path file : files.collect(Collectors.toList())) {
+                    Files.delete(file);
+                }
+            }
+            Files.delete(directory);
+        }
+    }
+
+    @Test
+    public void sharded() throws InterruptedException, ExecutionException {
+        basic(new ShardedStorageEngine(1));
+        basic(new ShardedStorageEngine(3));
+
+        final int threads = 4, count = 10_000;
+        StorageEngine storage = new ShardedStorageEngine();
+        ExecutorService executorService = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                final int id = t;
+                futures.add(executorService.submit(() -> {
+                    for (int i = 0; i < count; i++) {
+                        storage.put(id + "k-" + i, "v-" + i);
+                        assertEquals("v-" + i, storage.get(id + "k-" + i));
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executorService.shutdownNow();
+        }
+        assertEquals(threads * count, storage.size());
+        assertEquals(threads * count, storage.clear());
+    }
+}
@@ -0,0 +1,64 @@
+package store;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Created by Edsuns@qq.com on 2022/5/9.
+ */
+public class Utf8KeyTest {
+
+    static Utf8Key key(String s) {
+        return key(s.getBytes(StandardCharsets.UTF_8));
+    }
+
+    static Utf8Key key(byte[] bytes) {
+        // a slice in the middle of a larger buffer
+        ByteBuffer bf = ByteBuffer.allocateDirect(bytes.length + 2);
+        bf.put((byte) 'x').put(bytes).put((byte) 'y');
+        return new Utf8Key().set(bf, 1, bytes.length);
+    }
+
+    @Test
+    public void equalsString() {
+        String[] keys = {"", "k1", "a b\nc", "\u00e9t\u00e9", "\u4e2d\u6587", "\ud83d\ude00 emoji", "\u07ff\u0800\uffff"};
+        Map<String, String> map = new HashMap<>();
+        for (String s : keys) {
+            map.put(s, s);
+        }
+        for (String s : keys) {
+            Utf8Key key = key(s);
+            assertEquals(s.hashCode(), key.hashCode(), s);
+            assertTrue(key.equals(s), s);
+            assertEquals(s, key.toString());
+            assertEquals(s, map.get(key));
+            assertEquals(key, key(s));
+            assertFalse(key.equals(s + "x"));
+        }
+        assertFalse(key("k1").equals("k2"));
+        assertNotEquals(key("k1"), key("k2"));
+    }
+
+    @Test
+    public void malformed() {
+        byte[][] malformed = {
+                {(byte) 0xC0, (byte) 0x80},// overlong
+                {(byte) 0xED, (byte) 0xA0, (byte) 0x80},// surrogate
+                {'a', (byte) 0xE4, (byte) 0xB8},// truncated
+                {(byte) 0xFF, 'b'},
+        };
+        for (byte[] bytes : malformed) {
+            String s = new String(bytes, StandardCharsets.UTF_8);
+            Utf8Key key = key(bytes);
+            assertEquals(s.hashCode(), key.hashCode());
+            assertTrue(key.equals(s));
+            assertEquals(s, key.toString());
+        }
+    }
+}